@@ -1,10 +1,15 @@
 package com.android.ddmlib;
 
+import com.cxplan.projection.core.adb.AdbShardManager;
 import com.cxplan.projection.core.adb.AdbUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author KennyLiu
@@ -30,6 +35,198 @@ public class CXAdbHelper {
         }
     }
 
+    /**
+     * Open a stream to the abstract unix socket on device directly over the adb connection,
+     * no port forward is needed. The returned channel is in blocking mode, and the caller is
+     * responsible for closing it.
+     *
+     * @param device device object.
+     * @param socketName the name of abstract socket, e.g. minicap.
+     * @return the socket channel connected with the abstract socket.
+     * @throws Exception
+     */
+    public static SocketChannel openLocalAbstract(IDevice device, String socketName) throws Exception {
+        InetSocketAddress adbSockAddr = AdbShardManager.getInstance().getSocketAddress(device);
+
+        long start = System.nanoTime();
+        SocketChannel adbChan = SocketChannel.open(adbSockAddr);
+        try {
+            adbChan.configureBlocking(false);
+
+            AdbHelper.setDevice(adbChan, device);
+            byte[] request = AdbHelper.formAdbRequest("localabstract:" + socketName);
+            AdbHelper.write(adbChan, request);
+
+            AdbHelper.AdbResponse resp = AdbHelper.readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.w("CXADBHelper", "Error opening local abstract socket(" + socketName + "): " + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+            AdbShardManager.getInstance().recordRequest(adbSockAddr, System.nanoTime() - start);
+            adbChan.configureBlocking(true);
+            return adbChan;
+        } catch (Exception e) {
+            adbChan.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The implementation of command 'adb forward --list'.
+     *
+     * @return the forwards in adb server, every item is [serial, local, remote].
+     * @throws Exception
+     */
+    public static List<String[]> listForward() throws Exception {
+        return listForward(AndroidDebugBridge.getSocketAddress());
+    }
+
+    /**
+     * List the forwards in specified adb server.
+     *
+     * @param adbSockAddr the address of adb server.
+     * @return the forwards in adb server, every item is [serial, local, remote].
+     * @throws Exception
+     */
+    public static List<String[]> listForward(InetSocketAddress adbSockAddr) throws Exception {
+
+        try (SocketChannel adbChan = SocketChannel.open(adbSockAddr)) {
+            adbChan.configureBlocking(false);
+
+            byte[] request = AdbHelper.formAdbRequest("host:list-forward");
+            AdbHelper.write(adbChan, request);
+
+            AdbHelper.AdbResponse resp = AdbHelper.readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.w("CXADBHelper", "Error listing forward: " + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+
+            byte[] lengthBytes = new byte[4];
+            AdbHelper.read(adbChan, lengthBytes);
+            int length = Integer.parseInt(new String(lengthBytes, AdbHelper.DEFAULT_ENCODING), 16);
+            byte[] data = new byte[length];
+            AdbHelper.read(adbChan, data);
+
+            List<String[]> forwardList = new ArrayList<>();
+            for (String line : new String(data, AdbHelper.DEFAULT_ENCODING).split("\n")) {
+                String[] items = line.trim().split("\\s+");
+                if (items.length == 3) {
+                    forwardList.add(items);
+                }
+            }
+            return forwardList;
+        }
+    }
+
+    /**
+     * Remove all forwards of specified device.
+     *
+     * @param adbSockAddr the address of adb server.
+     * @param serial the serial number of device.
+     * @throws Exception
+     */
+    public static void removeAllForward(InetSocketAddress adbSockAddr, String serial) throws Exception {
+        sendHostRequest(adbSockAddr, "host-serial:" + serial + ":killforward-all");
+    }
+
+    /**
+     * Remove the forward of specified device.
+     *
+     * @param adbSockAddr the address of adb server.
+     * @param serial the serial number of device.
+     * @param local the local address of forward, e.g. tcp:20000.
+     * @throws Exception
+     */
+    public static void removeForward(InetSocketAddress adbSockAddr, String serial, String local) throws Exception {
+        sendHostRequest(adbSockAddr, "host-serial:" + serial + ":killforward:" + local);
+    }
+
+    /**
+     * Create a forward of specified device.
+     *
+     * @param adbSockAddr the address of adb server.
+     * @param serial the serial number of device.
+     * @param local the local address of forward, e.g. tcp:20000.
+     * @param remote the remote address of forward, e.g. tcp:2014 or localabstract:minicap.
+     * @throws Exception
+     */
+    public static void createForward(InetSocketAddress adbSockAddr, String serial, String local, String remote)
+            throws Exception {
+        sendHostRequest(adbSockAddr, "host-serial:" + serial + ":forward:" + local + ";" + remote);
+    }
+
+    /**
+     * The implementation of command 'adb -P serverPort devices'.
+     *
+     * @param adbSockAddr the address of adb server.
+     * @return the devices in adb server, every item is [serial, state].
+     * @throws Exception
+     */
+    public static List<String[]> listDevices(InetSocketAddress adbSockAddr) throws Exception {
+
+        try (SocketChannel adbChan = SocketChannel.open(adbSockAddr)) {
+            adbChan.configureBlocking(false);
+
+            byte[] request = AdbHelper.formAdbRequest("host:devices");
+            AdbHelper.write(adbChan, request);
+
+            AdbHelper.AdbResponse resp = AdbHelper.readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.w("CXADBHelper", "Error listing devices: " + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+
+            byte[] lengthBytes = new byte[4];
+            AdbHelper.read(adbChan, lengthBytes);
+            int length = Integer.parseInt(new String(lengthBytes, AdbHelper.DEFAULT_ENCODING), 16);
+            byte[] data = new byte[length];
+            AdbHelper.read(adbChan, data);
+
+            List<String[]> deviceList = new ArrayList<>();
+            for (String line : new String(data, AdbHelper.DEFAULT_ENCODING).split("\n")) {
+                String[] items = line.trim().split("\\s+");
+                if (items.length == 2) {
+                    deviceList.add(items);
+                }
+            }
+            return deviceList;
+        }
+    }
+
+    /**
+     * Execute a shell command on the adb server which serves specified device.
+     *
+     * @param device device object.
+     * @param cmd the shell command.
+     * @param receiver the receiver of output.
+     * @param timeout the max time of no output.
+     * @param unit the unit of timeout.
+     */
+    public static void executeShellCommand(IDevice device, String cmd, IShellOutputReceiver receiver,
+                                           long timeout, TimeUnit unit) throws TimeoutException,
+            AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        //the latency is not recorded, the time of command is included in it.
+        AdbHelper.executeRemoteCommand(AdbShardManager.getInstance().getSocketAddress(device), cmd, device,
+                receiver, timeout, unit);
+    }
+
+    private static void sendHostRequest(InetSocketAddress adbSockAddr, String command) throws Exception {
+
+        try (SocketChannel adbChan = SocketChannel.open(adbSockAddr)) {
+            adbChan.configureBlocking(false);
+
+            byte[] request = AdbHelper.formAdbRequest(command);
+            AdbHelper.write(adbChan, request);
+
+            AdbHelper.AdbResponse resp = AdbHelper.readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.w("CXADBHelper", "Error executing " + command + ": " + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+        }
+    }
+
     /**
      * The implementation of command 'adb tcpip port'
      * @param port the service port of adbd.
@@ -39,7 +236,7 @@ public class CXAdbHelper {
         if (port < 1) {
             throw new IllegalArgumentException("The port is illegal: " + port);
         }
-        InetSocketAddress adbSockAddr = AndroidDebugBridge.getSocketAddress();
+        InetSocketAddress adbSockAddr = AdbShardManager.getInstance().getSocketAddress(device);
 
         SocketChannel adbChan = null;
         try {
@@ -62,6 +259,73 @@ public class CXAdbHelper {
         }
     }
 
+    /**
+     * Open an interactive shell on specified device, the returned channel is in blocking mode.
+     * The commands are written to channel line by line, and the output of them are read from channel.
+     * The caller is responsible for closing the channel.
+     *
+     * @param device device object.
+     * @return the socket channel connected with the shell of device.
+     * @throws Exception
+     */
+    public static SocketChannel openShell(IDevice device) throws Exception {
+        return openShell(device, "");
+    }
+
+    /**
+     * Execute a shell command on specified device, the output of command is read from the returned
+     * channel, and the channel is closed by peer when the command exits. The returned channel is in
+     * blocking mode, the caller is responsible for closing it.
+     *
+     * @param device device object.
+     * @param cmd the shell command, an empty value opens an interactive shell.
+     * @return the socket channel connected with the shell of device.
+     * @throws Exception
+     */
+    public static SocketChannel openShell(IDevice device, String cmd) throws Exception {
+        return openService(device, "shell:" + cmd);
+    }
+
+    /**
+     * Execute a command on specified device without pty, the output is binary-clean,
+     * so it can be used to transfer file content. The returned channel is in blocking mode,
+     * the caller is responsible for closing it.
+     *
+     * @param device device object.
+     * @param cmd the command.
+     * @return the socket channel which the output of command is read from.
+     * @throws Exception
+     */
+    public static SocketChannel openExec(IDevice device, String cmd) throws Exception {
+        return openService(device, "exec:" + cmd);
+    }
+
+    private static SocketChannel openService(IDevice device, String service) throws Exception {
+        InetSocketAddress adbSockAddr = AdbShardManager.getInstance().getSocketAddress(device);
+
+        long start = System.nanoTime();
+        SocketChannel adbChan = SocketChannel.open(adbSockAddr);
+        try {
+            adbChan.configureBlocking(false);
+
+            AdbHelper.setDevice(adbChan, device);
+            byte[] request = AdbHelper.formAdbRequest(service);
+            AdbHelper.write(adbChan, request);
+
+            AdbHelper.AdbResponse resp = AdbHelper.readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.w("CXADBHelper", "Error opening service(" + service + "): " + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+            AdbShardManager.getInstance().recordRequest(adbSockAddr, System.nanoTime() - start);
+            adbChan.configureBlocking(true);
+            return adbChan;
+        } catch (Exception e) {
+            adbChan.close();
+            throw e;
+        }
+    }
+
     /**
      * The implementation of command 'adb connect deviceIP'
      * @param host the ip address of device.
@@ -69,7 +333,17 @@ public class CXAdbHelper {
      * @throws Exception
      */
     public static void connect(String host, int port) throws Exception {
-        InetSocketAddress adbSockAddr = AndroidDebugBridge.getSocketAddress();
+        connect(AndroidDebugBridge.getSocketAddress(), host, port);
+    }
+
+    /**
+     * The implementation of command 'adb -P serverPort connect deviceIP'
+     * @param adbSockAddr the address of adb server.
+     * @param host the ip address of device.
+     * @param port the port of adbd service.
+     * @throws Exception
+     */
+    public static void connect(InetSocketAddress adbSockAddr, String host, int port) throws Exception {
 
         SocketChannel adbChan = null;
         try {
@@ -99,7 +373,17 @@ public class CXAdbHelper {
      * @throws Exception
      */
     public static void disconnect(String host, int port) throws Exception {
-        InetSocketAddress adbSockAddr = AndroidDebugBridge.getSocketAddress();
+        disconnect(AndroidDebugBridge.getSocketAddress(), host, port);
+    }
+
+    /**
+     * The implementation of command 'adb -P serverPort disconnect deviceIP'
+     * @param adbSockAddr the address of adb server.
+     * @param host the ip address of device.
+     * @param port the port of adbd service.
+     * @throws Exception
+     */
+    public static void disconnect(InetSocketAddress adbSockAddr, String host, int port) throws Exception {
 
         SocketChannel adbChan = null;
         try {
@@ -0,0 +1,287 @@
+package com.cxplan.projection;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.cxplan.projection.core.Application;
+import com.cxplan.projection.script.ScriptObject;
+import com.cxplan.projection.script.ScriptPlaybackEngine;
+import com.cxplan.projection.script.command.ScriptException;
+import com.cxplan.projection.script.plan.ExecutionPlan;
+import com.cxplan.projection.script.plan.PlanStep;
+import com.cxplan.projection.util.StringUtil;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Play scripts on devices without UI, it is the entry point for running regression scripts from scheduler.
+ *
+ * <pre>
+ * HeadlessRunner [-d device-regex] [-o result-file] [-t timeout-seconds] [-w wait-seconds] script-file...
+ * </pre>
+ * The scripts are played one by one, every script is played on all selected devices concurrently.
+ * The devices are selected by the regular expression on device ID or name, all devices are selected by default.
+ * The result is written in JSON(to standard output by default), including the timing of every step of plan.
+ * The logs and other diagnostics are written to standard error, so the standard output carries the result only.
+ * The exit code is 0 if all scripts are finished on all devices, 1 if any fails, 2 if the arguments are illegal
+ * or no device is available.
+ *
+ * @author Kenny
+ * created on 2019/5/30
+ */
+public class HeadlessRunner {
+    private static final Logger logger = org.slf4j.LoggerFactory.getLogger(HeadlessRunner.class);
+
+    private static final long DEFAULT_TIMEOUT = 1800;
+    private static final long DEFAULT_WAIT = 10;
+    //the time to wait for devices to stop after the playback is timeout.
+    private static final long STOP_TIMEOUT = 10000;
+
+    private Pattern deviceFilter;
+    private File resultFile;
+    private long timeout = DEFAULT_TIMEOUT;
+    private long wait = DEFAULT_WAIT;
+    private List<String> scriptFiles = new ArrayList<>();
+    //the standard output, the result is written to it if no result file is specified.
+    private PrintStream resultOutput;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        HeadlessRunner runner = new HeadlessRunner();
+        //the console appender of log4j and the diagnostics printed directly go to standard error.
+        runner.resultOutput = System.out;
+        System.setOut(System.err);
+        try {
+            runner.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: HeadlessRunner [-d device-regex] [-o result-file] [-t timeout-seconds] "
+                    + "[-w wait-seconds] script-file...");
+            System.exit(2);
+        }
+
+        //the threads of adb and connections are never stopped, so the process must exit explicitly.
+        int exitCode = 2;
+        try {
+            Launcher.configure();
+            Launcher.loadServices();
+            if (Launcher.startADB()) {
+                exitCode = runner.run();
+            } else {
+                logger.error("The adb is not available!");
+            }
+        } catch (Exception e) {
+            logger.error("Running scripts failed: " + e.getMessage(), e);
+        } finally {
+            AndroidDebugBridge.terminate();
+            System.exit(exitCode);
+        }
+    }
+
+    void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length) {
+                throw new IllegalArgumentException("The value of option is missing: " + arg);
+            }
+            try {
+                switch (arg) {
+                    case "-d":
+                        deviceFilter = Pattern.compile(args[++i]);
+                        break;
+                    case "-o":
+                        resultFile = new File(args[++i]);
+                        break;
+                    case "-t":
+                        timeout = Long.parseLong(args[++i]);
+                        break;
+                    case "-w":
+                        wait = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        scriptFiles.add(arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("The value of option is not a number: " + arg);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("The device filter is illegal: " + e.getMessage());
+            }
+        }
+        if (scriptFiles.isEmpty()) {
+            throw new IllegalArgumentException("There is no script file specified");
+        }
+    }
+
+    /**
+     * Play all scripts and write the result.
+     *
+     * @return the exit code.
+     */
+    int run() {
+        List<String> deviceIds = selectDevices();
+        if (deviceIds.isEmpty()) {
+            logger.error("There is no device available, filter: {}", deviceFilter);
+            return 2;
+        }
+        logger.info("Play {} scripts on devices: {}", scriptFiles.size(), deviceIds);
+
+        boolean success = true;
+        List<Map<String, Object>> scriptResultList = new ArrayList<>(scriptFiles.size());
+        for (String scriptFile : scriptFiles) {
+            Map<String, Object> scriptResult = play(scriptFile, deviceIds);
+            success &= Boolean.TRUE.equals(scriptResult.get("success"));
+            scriptResultList.add(scriptResult);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", success);
+        result.put("devices", deviceIds);
+        result.put("scripts", scriptResultList);
+        try {
+            writeResult(result);
+        } catch (IOException e) {
+            logger.error("Writing result failed: " + e.getMessage(), e);
+            return 1;
+        }
+        return success ? 0 : 1;
+    }
+
+    /**
+     * Select the devices which match the filter, the devices are waited for if none is loaded.
+     */
+    private List<String> selectDevices() {
+        Application application = Application.getInstance();
+        long deadline = System.currentTimeMillis() + wait * 1000;
+        List<String> deviceIds = new ArrayList<>();
+        while (true) {
+            for (String deviceId : application.getDeviceList()) {
+                if (deviceFilter == null || deviceFilter.matcher(deviceId).find()
+                        || deviceFilter.matcher(String.valueOf(application.getDeviceName(deviceId))).find()) {
+                    deviceIds.add(deviceId);
+                }
+            }
+            if (!deviceIds.isEmpty() || System.currentTimeMillis() >= deadline) {
+                return deviceIds;
+            }
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return deviceIds;
+            }
+        }
+    }
+
+    private Map<String, Object> play(String scriptFile, List<String> deviceIds) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("script", scriptFile);
+        long startTime = System.currentTimeMillis();
+        ScriptObject script;
+        ScriptPlaybackEngine.Playback playback;
+        final CountDownLatch finishLatch = new CountDownLatch(1);
+        try {
+            script = ScriptObject.load(scriptFile);
+            playback = ScriptPlaybackEngine.getInstance().play(script, deviceIds, null,
+                    new ScriptPlaybackEngine.PlaybackListener() {
+                @Override
+                public void onProgress(ScriptPlaybackEngine.DeviceProgress progress) {
+                    if (progress.getState() == ScriptPlaybackEngine.PlayState.FAILED) {
+                        logger.error("Playing script failed on device({}): {}", progress.getDeviceId(),
+                                progress.getError());
+                    }
+                }
+
+                @Override
+                public void onFinished(ScriptPlaybackEngine.Playback playback) {
+                    finishLatch.countDown();
+                }
+            });
+        } catch (IOException | ScriptException e) {
+            logger.error("Loading script failed: " + scriptFile, e);
+            result.put("success", false);
+            result.put("error", e.getMessage());
+            return result;
+        }
+
+        boolean timeoutExceeded = false;
+        try {
+            if (!finishLatch.await(timeout, TimeUnit.SECONDS)) {
+                logger.error("The script is timeout: {}", scriptFile);
+                timeoutExceeded = true;
+                playback.stop();
+                finishLatch.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            playback.stop();
+            Thread.currentThread().interrupt();
+        }
+
+        boolean success = !timeoutExceeded;
+        List<Map<String, Object>> deviceResultList = new ArrayList<>(deviceIds.size());
+        for (ScriptPlaybackEngine.DeviceProgress progress : playback.getProgress()) {
+            success &= progress.getState() == ScriptPlaybackEngine.PlayState.FINISHED;
+            deviceResultList.add(toResult(progress, playback.getPlan()));
+        }
+        result.put("success", success);
+        if (timeoutExceeded) {
+            result.put("error", "timeout");
+        }
+        result.put("commandCount", script.getCommandCount());
+        result.put("elapsed", System.currentTimeMillis() - startTime);
+        result.put("devices", deviceResultList);
+        return result;
+    }
+
+    private Map<String, Object> toResult(ScriptPlaybackEngine.DeviceProgress progress, ExecutionPlan plan) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("device", progress.getDeviceId());
+        result.put("state", progress.getState().name());
+        result.put("executed", progress.getExecutedCount());
+        result.put("total", progress.getTotalCount());
+        result.put("elapsed", progress.getElapsedTime());
+        result.put("wait", progress.getWaitTime());
+        result.put("execute", progress.getExecuteTime());
+        if (progress.getError() != null) {
+            result.put("error", progress.getError());
+        }
+
+        //the steps are executed in order, so the times are of the first steps of plan.
+        List<Long> commandTimes = progress.getCommandTimes();
+        List<Map<String, Object>> stepList = new ArrayList<>(commandTimes.size());
+        for (int i = 0; i < commandTimes.size() && i < plan.size(); i++) {
+            PlanStep step = plan.getStep(i);
+            Map<String, Object> stepResult = new LinkedHashMap<>();
+            stepResult.put("index", step.getCommandIndex());
+            stepResult.put("count", step.getCommandCount());
+            stepResult.put("kind", step.getKind().name());
+            stepResult.put("type", step.getCommand().getType().getName());
+            stepResult.put("time", commandTimes.get(i));
+            stepList.add(stepResult);
+        }
+        result.put("steps", stepList);
+        result.put("readinessTimes", progress.getReadinessTimes());
+        return result;
+    }
+
+    private void writeResult(Map<String, Object> result) throws IOException {
+        if (resultFile == null) {
+            resultOutput.println(StringUtil.JSON_MAPPER_NOTNULL.writerWithDefaultPrettyPrinter()
+                    .writeValueAsString(result));
+            resultOutput.flush();
+        } else {
+            StringUtil.JSON_MAPPER_NOTNULL.writerWithDefaultPrettyPrinter().writeValue(resultFile, result);
+            logger.info("The result is written to {}", resultFile.getAbsolutePath());
+        }
+    }
+}
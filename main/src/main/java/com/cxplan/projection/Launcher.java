@@ -1,11 +1,12 @@
 package com.cxplan.projection;
 
 import com.android.ddmlib.AndroidDebugBridge;
-import com.android.ddmlib.CXAdbHelper;
 import com.android.ddmlib.IDevice;
 import com.cxplan.projection.core.Application;
 import com.cxplan.projection.core.ServiceFactory;
+import com.cxplan.projection.core.adb.AdbShardManager;
 import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.ForwardManager;
 import com.cxplan.projection.core.command.CommandHandlerFactory;
 import com.cxplan.projection.core.connection.IDeviceConnection;
 import com.cxplan.projection.core.setting.ConfigChangedListener;
@@ -15,6 +16,7 @@ import com.cxplan.projection.core.setting.SettingEvent;
 import com.cxplan.projection.ui.laf.CXLookAndFeel;
 import com.cxplan.projection.ui.util.GUIUtil;
 import com.cxplan.projection.util.CommonUtil;
+import com.cxplan.projection.util.StringUtil;
 import com.cxplan.projection.util.SystemUtil;
 import org.apache.log4j.PropertyConfigurator;
 import org.slf4j.Logger;
@@ -23,6 +25,8 @@ import javax.swing.*;
 import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 
@@ -34,21 +38,7 @@ public class Launcher {
     private static final Logger logger = org.slf4j.LoggerFactory.getLogger(Launcher.class);
 
     public static void main(String[] args) {
-        String configPath = SystemUtil.CONFIG_PATH;
-        //1. log configuration 100
-        InputStream logFile = Launcher.class.getResourceAsStream("/log.properties");
-        try {
-            LogManager.getLogManager().readConfiguration(logFile);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        String log4jConfig = configPath + "/log4j.properties";
-        System.out.println("log4j config: " + log4jConfig);
-        PropertyConfigurator.configure(log4jConfig);
-        java.util.logging.Logger.getGlobal().setLevel(Level.WARNING);
-
-        //load system setting.
-        Setting.getInstance().addPropertyChangeListener(new DeviceSettingListener());
+        configure();
         GUIUtil.lastSelectedDir = Setting.getInstance().getProperty(SettingConstant.KEY_LAST_SELECTED_DIR, null);
 
         try {
@@ -65,11 +55,7 @@ public class Launcher {
         }
 
         //2. load service
-        Application context = Application.getInstance();
-        // 扫描指定包下的服务并初始化
-        ServiceFactory.initialize(context, "com.cxplan.projection.service");
-        // 载入所有的命令处理器
-        CommandHandlerFactory.loadHandler(context, "com.cxplan.projection.command");
+        Application context = loadServices();
 
         //3. start ADB service
         startADB();
@@ -82,7 +68,42 @@ public class Launcher {
         frame.setVisible(true);
     }
 
-    private static void startADB() {
+    /**
+     * Configure the log and load system setting.
+     */
+    static void configure() {
+        String configPath = SystemUtil.CONFIG_PATH;
+        //1. log configuration 100
+        InputStream logFile = Launcher.class.getResourceAsStream("/log.properties");
+        try {
+            LogManager.getLogManager().readConfiguration(logFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        String log4jConfig = configPath + "/log4j.properties";
+        System.out.println("log4j config: " + log4jConfig);
+        PropertyConfigurator.configure(log4jConfig);
+        java.util.logging.Logger.getGlobal().setLevel(Level.WARNING);
+
+        //load system setting.
+        Setting.getInstance().addPropertyChangeListener(new DeviceSettingListener());
+    }
+
+    static Application loadServices() {
+        Application context = Application.getInstance();
+        // 扫描指定包下的服务并初始化
+        ServiceFactory.initialize(context, "com.cxplan.projection.service");
+        // 载入所有的命令处理器
+        CommandHandlerFactory.loadHandler(context, "com.cxplan.projection.command");
+        return context;
+    }
+
+    /**
+     * Start ADB service and load all devices, the devices are brought up before returning.
+     *
+     * @return false if the ADB is not available.
+     */
+    static boolean startADB() {
         //start ADB service
         // 如果指定了SDK目录，则用SDK中的adb
         String adbLocation = System.getenv("ANDROID_HOME");
@@ -102,7 +123,7 @@ public class Launcher {
         final AndroidDebugBridge adb = AndroidDebugBridge.createBridge(adbLocation, false);
         if (adb == null) {
             GUIUtil.showErrorMessageDialog("The adb is not available!");
-            return;
+            return false;
         }
         try {
             logger.info("wait 1 seconds!");
@@ -115,15 +136,19 @@ public class Launcher {
             logger.info("The number of devices: {}", adb.getDevices().length);
         } else {
             logger.info("Starting adb service failed");
-            return;
+            return false;
         }
 
-        //remove all forward
+        //start extra adb servers for network devices.
+        AdbShardManager.getInstance().initialize(adbLocation, parseShardPorts(
+                Setting.getInstance().getProperty(SettingConstant.KEY_ADB_SHARD_PORTS, null)));
+
+        //remove the forwards leaked by previous sessions.
         try {
-            CXAdbHelper.removeAllForward();
+            ForwardManager.getInstance().reconcile();
         } catch (Exception e) {
-            logger.error("Removing all forward failed: " + e.getMessage(), e);
-            return;
+            logger.error("Reconciling forwards failed: " + e.getMessage(), e);
+            return false;
         }
 
         //read all devices
@@ -155,7 +180,22 @@ public class Launcher {
                 }
             }
         });
+        return true;
+    }
 
+    private static List<Integer> parseShardPorts(String value) {
+        List<Integer> portList = new ArrayList<>();
+        if (StringUtil.isBlank(value)) {
+            return portList;
+        }
+        for (String item : value.split(",")) {
+            try {
+                portList.add(Integer.parseInt(item.trim()));
+            } catch (NumberFormatException e) {
+                logger.error("The port of adb shard is illegal: " + item);
+            }
+        }
+        return portList;
     }
 
     private static class DeviceSettingListener implements ConfigChangedListener {
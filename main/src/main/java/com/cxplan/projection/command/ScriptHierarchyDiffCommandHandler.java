@@ -0,0 +1,39 @@
+package com.cxplan.projection.command;
+
+import com.cxplan.projection.core.command.AbstractCommandHandler;
+import com.cxplan.projection.net.message.Message;
+import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.message.MessageUtil;
+import com.cxplan.projection.script.HierarchyDiff;
+import com.cxplan.projection.script.ViewNodeCodec;
+import com.cxplan.projection.script.io.ScriptDeviceConnection;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Apply the diff of view hierarchy pushed by script process to the cached hierarchy.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class ScriptHierarchyDiffCommandHandler extends AbstractCommandHandler {
+    private static final Logger logger = LoggerFactory.getLogger(ScriptHierarchyDiffCommandHandler.class);
+
+    public ScriptHierarchyDiffCommandHandler() {
+        super(MessageUtil.CMD_CONTROLLER_SCRIPT_HIERARCHY_DIFF);
+    }
+
+    @Override
+    public void process(IoSession session, Message message) throws MessageException {
+        ScriptDeviceConnection connection = getConnection(session);
+        String dataString = message.getParameter("data");
+        HierarchyDiff diff = ViewNodeCodec.readHierarchyDiff(dataString);
+
+        if (!connection.getHierarchyCache().applyDiff(diff)) {
+            //the diff is lost, start over with a full one.
+            logger.info("Request the full hierarchy of device({}) again", connection.getJId().getId());
+            connection.watchHierarchy();
+        }
+    }
+}
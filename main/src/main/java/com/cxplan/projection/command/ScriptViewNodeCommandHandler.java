@@ -5,8 +5,8 @@ import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.message.MessageException;
 import com.cxplan.projection.net.message.MessageUtil;
 import com.cxplan.projection.script.ViewNode;
+import com.cxplan.projection.script.ViewNodeCodec;
 import com.cxplan.projection.script.io.ScriptDeviceConnection;
-import com.cxplan.projection.util.StringUtil;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,7 +27,7 @@ public class ScriptViewNodeCommandHandler extends AbstractCommandHandler {
         ScriptDeviceConnection connection = getConnection(session);
         String dataString = message.getParameter("data");
         int seqNum = message.getParameter("seq");
-        ViewNode viewNode = StringUtil.json2Object(dataString, ViewNode.class);
+        ViewNode viewNode = ViewNodeCodec.readViewNode(dataString);
 
         if (!connection.isRecording()) {
             logger.error("The script recording is not started: " + connection.getJId().getId());
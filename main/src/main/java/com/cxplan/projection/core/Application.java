@@ -3,17 +3,25 @@ package com.cxplan.projection.core;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import com.cxplan.projection.IApplication;
+import com.cxplan.projection.core.adb.AdbShardManager;
+import com.cxplan.projection.core.adb.AdbShellSession;
 import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.DeploymentCache;
+import com.cxplan.projection.core.adb.DeviceProcessSupervisor;
 import com.cxplan.projection.core.adb.ForwardManager;
 import com.cxplan.projection.core.connection.DeviceConnectionEvent;
 import com.cxplan.projection.core.connection.DeviceConnectionListener;
 import com.cxplan.projection.core.connection.DeviceReconnectionManager;
 import com.cxplan.projection.core.connection.IDeviceConnection;
+import com.cxplan.projection.core.image.FrameJournal;
+import com.cxplan.projection.core.image.FrameStabilityMonitor;
 import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
 import com.cxplan.projection.i18n.StringManager;
 import com.cxplan.projection.i18n.StringManagerFactory;
-import com.cxplan.projection.model.DeviceInfo;
+import com.cxplan.projection.net.CompressionFilter;
 import com.cxplan.projection.net.DSCodecFactory;
+import com.cxplan.projection.net.DispatchFilter;
 import com.cxplan.projection.net.DeviceIoHandlerAdapter;
 import com.cxplan.projection.script.ScriptConnectionEvent;
 import com.cxplan.projection.script.ScriptConnectionListener;
@@ -24,9 +32,7 @@ import com.cxplan.projection.service.IInfrastructureService;
 import com.cxplan.projection.service.IScriptService;
 import com.cxplan.projection.ui.util.GUIUtil;
 import com.cxplan.projection.util.StringUtil;
-import com.cxplan.projection.util.SystemUtil;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
-import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import javax.swing.event.EventListenerList;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -47,6 +54,9 @@ public class Application implements IApplication {
     private static final StringManager stringMgr =
             StringManagerFactory.getStringManager(Application.class);
 
+    //the deadline of loading all devices when application is started.
+    private static final long LOAD_DEVICES_TIMEOUT = 60 * 1000;
+
     private static Application instance;
 
     public static Application getInstance() {
@@ -68,10 +78,10 @@ public class Application implements IApplication {
         }
         // 确保上下文被创建
         Application.getInstance();
-        List<Future> futureList = new ArrayList<>(devices.length);
+        List<CompletableFuture<BootstrapReport>> futureList = new ArrayList<>(devices.length);
         for (IDevice device : devices) {
             try {
-                Future future = instance.doAddDevice(device, false);
+                CompletableFuture<BootstrapReport> future = instance.doAddDevice(device, false);
                 if (future != null) {
                     futureList.add(future);
                 }
@@ -84,24 +94,63 @@ public class Application implements IApplication {
             }
         }
 
+        //all devices are brought up concurrently, so the deadline is shared by all futures.
+        long deadline = System.currentTimeMillis() + LOAD_DEVICES_TIMEOUT;
         int success = 0;
-        for(Future future : futureList) {
+        List<BootstrapReport> reportList = new ArrayList<>(futureList.size());
+        for(CompletableFuture<BootstrapReport> future : futureList) {
             try {
-                future.get(1, TimeUnit.MINUTES);
-                success++;
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                BootstrapReport report = future.get(remaining, TimeUnit.MILLISECONDS);
+                reportList.add(report);
+                if (report.isSuccess()) {
+                    success++;
+                }
             } catch (Exception e) {
-                e.printStackTrace();
+                logger.error("Waiting for the bring-up of device failed: " + e.getMessage(), e);
             }
         }
+        logBootstrapReports(reportList);
 
         if (success < devices.length) {
-            logger.error("Loading devices failed, Success：" + instance.deviceMap.size()
-                    + ", Fail：" + (devices.length - instance.deviceMap.size()));
+            logger.error("Loading devices failed, Success：" + success
+                    + ", Fail：" + (devices.length - success));
         } else {
             logger.info("Load all devices successfully!");
         }
     }
 
+    /**
+     * Log the average and max time of every bring-up stage over all devices.
+     */
+    private static void logBootstrapReports(List<BootstrapReport> reportList) {
+        if (reportList.isEmpty()) {
+            return;
+        }
+        Map<String, long[]> stageMap = new LinkedHashMap<>();//stage -> [sum, max]
+        long maxTotal = 0;
+        for (BootstrapReport report : reportList) {
+            maxTotal = Math.max(maxTotal, report.getTotalTime());
+            for (Map.Entry<String, Long> entry : report.getStageTimes().entrySet()) {
+                long[] value = stageMap.get(entry.getKey());
+                if (value == null) {
+                    value = new long[2];
+                    stageMap.put(entry.getKey(), value);
+                }
+                value[0] += entry.getValue();
+                value[1] = Math.max(value[1], entry.getValue());
+            }
+        }
+        StringBuilder sb = new StringBuilder("Bring-up of ").append(reportList.size())
+                .append(" devices finished in ").append(maxTotal).append("ms");
+        for (Map.Entry<String, long[]> entry : stageMap.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append("(avg=")
+                    .append(entry.getValue()[0] / reportList.size())
+                    .append("ms, max=").append(entry.getValue()[1]).append("ms)");
+        }
+        logger.info(sb.toString());
+    }
+
     public synchronized void addDevice(IDevice device) {
         try {
             doAddDevice(device, true);
@@ -138,7 +187,7 @@ public class Application implements IApplication {
         scriptConnectionMap = new ConcurrentHashMap<>();
 
         loadSystemParameters();
-        deviceThreadPool = Executors.newFixedThreadPool(5);
+        deviceThreadPool = Executors.newFixedThreadPool(8);
         executors = Executors.newCachedThreadPool();
 
         createDeviceConnector();
@@ -151,18 +200,19 @@ public class Application implements IApplication {
 
     /**
      * Initialize the connection with device, include below action:
-     * 1. Check whether the mediate package is installed, meanwhile start the main process.
-     * 2. Create a port forward for message channel.
-     * 3. Open message channel.
+     * 1. Probe the device: ip, old image service process and screen size.
+     * 2. Load the setting of device.
+     * 3. Create a port forward for message channel.
      *
-     * These actions are executed in another thread.
+     * These actions are executed by {@link DeviceBootstrap} in device thread pool,
+     * the independent actions run concurrently.
      *
      *
      * @param device device object.
      * @param notifyController flag determinate whether the device adding action should be notified controller.
-     * @return Future object which control the execution thread.
+     * @return Future object which is completed with the report of bring-up.
      */
-    private Future<?> doAddDevice(final IDevice device, final boolean notifyController) throws RuntimeException {
+    private CompletableFuture<BootstrapReport> doAddDevice(final IDevice device, final boolean notifyController) throws RuntimeException {
         final String id = AdbUtil.getDeviceId(device);
         final boolean existed = deviceMap.containsKey(id);
 
@@ -175,12 +225,18 @@ public class Application implements IApplication {
                 deviceConnection.setUsbChannel(device);
             }
         } else {
+            //the ip is resolved by the probe stage of bootstrap.
             deviceConnection = new DefaultDeviceConnection(id, device, this);
-            String ip = AdbUtil.getDeviceIp(device);
-            deviceConnection.setIp(ip);
             deviceMap.put(id, deviceConnection);
         }
         if (existed) {
+            //the new channel of device is routed to its adb server.
+            deviceThreadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    AdbShardManager.getInstance().assign(device);
+                }
+            });
             return null;
         }
         //create script connection.
@@ -190,64 +246,16 @@ public class Application implements IApplication {
             scriptConnectionMap.put(id, scriptConnection);
         }
 
-        final DefaultDeviceConnection connection = deviceConnection;
-
-        Runnable task = new Runnable() {
-            @Override
-            public void run() {
-                logger.info("The device (serial=" + id + ") is online");
-
-                try {
-                    if (notifyController) {
-                        fireOnDeviceCreatedEvent(connection);
-                    }
-                } catch (Exception e) {
-                    logger.error("initializing device(" + id + ") failed: " + e.getMessage(), e);
-                    return;
-                }
-
-                //load setting
-                Setting.getInstance().loadDeviceSetting(id);
-                SystemUtil.installConfig(connection);
-
-                //clean environment( kill old image service process )
-                int pid = getInfrastructureService().getMinicapProcessID(id);
-                AdbUtil.killProcess(pid, device);
-
-                //create forward by adb
-                try {
-                    int port = ForwardManager.getInstance().putMessageForward(id);
-                    device.createForward(port, ForwardManager.MESSAGE_REMOTE_PORT);
-                } catch (Exception e) {
-                    logger.error("Creating forward for device(" + id + ") failed: " + e.getMessage(), e);
-                    return;
-                }
-
-                //check screen size
-                if (connection.getScreenWidth() < 1
-                        || connection.getScreenHeight() < 1) {
-                    Dimension dim = AdbUtil.getPhysicalSize(device);
-                    DeviceInfo di = (DeviceInfo) connection.getDeviceMeta();
-                    di.setScreenWidth(dim.width);
-                    di.setScreenHeight(dim.height);
-                }
-                //connect to cxplan.
-                /*try {
-                    deviceConnection.connect(true);
-                } catch (Exception e) {
-                    logger.error("Connecting to device(" + id + ") failed: " + e.getMessage(), e);
-                    if (deviceReconnectManager.isMonitoring()) {
-                        deviceReconnectManager.addConnection(deviceConnection);
-                    }
-                    return;
-                }*/
-
-            }
-        };
-        return deviceThreadPool.submit(task);
+        DeviceBootstrap bootstrap = new DeviceBootstrap(this, deviceConnection, notifyController, deviceThreadPool);
+        return bootstrap.start();
     }
 
     public synchronized void removeDevice(IDevice device) {
+        //the shell session is bound to the channel of device.
+        AdbShellSession.closeSession(device);
+        AdbShardManager.getInstance().release(device);
+        DeploymentCache.getInstance().forget(device);
+        DeviceProcessSupervisor.getInstance().stopAll(device);
         String id = AdbUtil.getDeviceId(device);
         DefaultDeviceConnection pm = deviceMap.get(id);
         if (pm == null) {
@@ -257,6 +265,8 @@ public class Application implements IApplication {
         if (!pm.removeDeviceChannel(device)) {
             logger.info("there is no channel, the connection will be removed: {}", id);
             removeDeviceConnection(id);
+            FrameJournal.close(id);
+            FrameStabilityMonitor.getInstance().remove(id);
         } else {
             if (!pm.hasUsbChannel()) {//Only script is supported on usb channel.
                 //remove script
@@ -290,6 +300,13 @@ public class Application implements IApplication {
         return executors;
     }
 
+    /**
+     * Return the reconnection manager of devices, the retry statistics of devices can be retrieved from it.
+     */
+    public DeviceReconnectionManager getDeviceReconnectManager() {
+        return deviceReconnectManager;
+    }
+
     @Override
     public IDeviceService getDeviceService() {
         IDeviceService deviceService = ServiceFactory.getService("deviceService");
@@ -525,16 +542,23 @@ public class Application implements IApplication {
         NioSocketConnector connector = new NioSocketConnector();
 
         connector.setHandler(new DeviceIoHandlerAdapter(this));
+        //The events of device sessions are dispatched by a fixed worker pool of each connector.
+        int dispatchWorkers = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int compressionThreshold = Setting.getInstance().getIntProperty(SettingConstant.KEY_COMPRESSION_THRESHOLD,
+                CompressionFilter.DEFAULT_THRESHOLD);
+        connector.getFilterChain().addLast("compression", new CompressionFilter(compressionThreshold));
         connector.getFilterChain().addLast("codec", new ProtocolCodecFilter( new DSCodecFactory()));
-        connector.getFilterChain().addLast("threadModel", new ExecutorFilter(executors));
+        connector.getFilterChain().addLast("threadModel", new DispatchFilter(dispatchWorkers));
 
         deviceConnector = connector;
 
         NioSocketConnector scriptConnector = new NioSocketConnector();
 
         scriptConnector.setHandler(new ScriptDeviceIoHandlerAdapter(this));
+        //the hierarchy dumps and view nodes are compressed with the view dictionary, small messages are not.
+        scriptConnector.getFilterChain().addLast("compression", new CompressionFilter(compressionThreshold));
         scriptConnector.getFilterChain().addLast("codec", new ProtocolCodecFilter( new DSCodecFactory()));
-        scriptConnector.getFilterChain().addLast("threadModel", new ExecutorFilter(executors));
+        scriptConnector.getFilterChain().addLast("threadModel", new DispatchFilter(dispatchWorkers));
 
         scriptDeviceConnector = scriptConnector;
 
@@ -0,0 +1,72 @@
+package com.cxplan.projection.core;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of device bring-up, records the time cost of every stage.
+ *
+ * @author Kenny
+ * created on 2019/5/17
+ */
+public class BootstrapReport {
+
+    private final String deviceId;
+    private final long startTime;
+    private long endTime;
+    //stage name -> time cost(milliseconds)
+    private final Map<String, Long> stageTimes = new LinkedHashMap<>();
+    //stage name -> error message
+    private final Map<String, String> stageErrors = new LinkedHashMap<>();
+
+    public BootstrapReport(String deviceId) {
+        this.deviceId = deviceId;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    synchronized void recordStage(String stage, long cost, Throwable error) {
+        stageTimes.put(stage, cost);
+        if (error != null) {
+            stageErrors.put(stage, error.getMessage() == null ? error.getClass().getName() : error.getMessage());
+        }
+    }
+
+    synchronized void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public synchronized Map<String, Long> getStageTimes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(stageTimes));
+    }
+
+    public synchronized Map<String, String> getStageErrors() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(stageErrors));
+    }
+
+    /**
+     * Return the total time(milliseconds) of bring-up, the stages run concurrently,
+     * so it is less than the sum of stage time.
+     */
+    public synchronized long getTotalTime() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public synchronized boolean isSuccess() {
+        return endTime > 0 && stageErrors.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BootstrapReport{" +
+                "deviceId='" + deviceId + '\'' +
+                ", total=" + getTotalTime() +
+                ", stages=" + stageTimes +
+                (stageErrors.isEmpty() ? "" : ", errors=" + stageErrors) +
+                '}';
+    }
+}
@@ -1,5 +1,7 @@
 package com.cxplan.projection.core;
 
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.CXAdbHelper;
 import com.android.ddmlib.IDevice;
 import com.cxplan.projection.IApplication;
 import com.cxplan.projection.core.adb.AdbUtil;
@@ -7,6 +9,7 @@ import com.cxplan.projection.core.adb.DeviceForward;
 import com.cxplan.projection.core.adb.ForwardManager;
 import com.cxplan.projection.core.connection.*;
 import com.cxplan.projection.core.image.ControllerImageSession;
+import com.cxplan.projection.core.image.FrameJournal;
 import com.cxplan.projection.core.image.ImageProcessThread;
 import com.cxplan.projection.core.image.ImageSessionID;
 import com.cxplan.projection.core.image.ImageSessionManager;
@@ -14,11 +17,13 @@ import com.cxplan.projection.core.setting.Setting;
 import com.cxplan.projection.core.setting.SettingConstant;
 import com.cxplan.projection.model.DeviceInfo;
 import com.cxplan.projection.model.IDeviceMeta;
+import com.cxplan.projection.net.CompressionFilter;
 import com.cxplan.projection.net.DeviceIoHandlerAdapter;
 import com.cxplan.projection.net.message.JID;
 import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.message.MessageException;
 import com.cxplan.projection.net.message.MessageUtil;
+import com.cxplan.projection.net.protocol.FrameCompressor;
 import com.cxplan.projection.service.IInfrastructureService;
 import com.cxplan.projection.util.CommonUtil;
 import org.apache.mina.core.future.ConnectFuture;
@@ -326,6 +331,7 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
     @Override
     public boolean openImageChannel(final ConnectStatusListener listener) {
         ImageSessionManager.getInstance().addImageSession(getId(), new ControllerImageSession(getId()));
+        FrameJournal.open(getId());
 
         if (imageChannel != null && imageChannel.isConnected()) {
             if (imageThread != null && imageThread.isAlive()) {
@@ -407,25 +413,28 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
 
     private void removeMessagePortForward() {
         //remove message forward
+        DeviceForward forward = ForwardManager.getInstance().removeMessageForward(getId());
         try {
-            DeviceForward forward = ForwardManager.getInstance().removeMessageForward(getId());
             if (forward != null) {
-                getDevice().removeForward(forward.getLocalPort(), forward.getRemotePort());
+                AdbUtil.removeForward(getDevice(), forward.getLocalPort());
             }
         } catch (Exception e) {
             logger.error("Removing message forward failed: " + e.getMessage(), e);
+        } finally {
+            ForwardManager.getInstance().releaseForward(forward);
         }
     }
     private void removeImagePortForward() {
         //remove image forward
+        DeviceForward forward = ForwardManager.getInstance().removeImageForward(getId());
         try {
-            DeviceForward forward = ForwardManager.getInstance().removeImageForward(getId());
             if (forward != null) {
-                getDevice().removeForward(forward.getLocalPort(), forward.getRemoteSocketName(),
-                        IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+                AdbUtil.removeForward(getDevice(), forward.getLocalPort());
             }
         } catch (Exception e) {
             logger.error("Removing image forward failed: " + e.getMessage(), e);
+        } finally {
+            ForwardManager.getInstance().releaseForward(forward);
         }
     }
     /**
@@ -467,7 +476,7 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
                 host = "localhost";
                 port = getMessageForwardPort();
                 //ensure the forward available.
-                device.createForward(port, ForwardManager.MESSAGE_REMOTE_PORT);
+                AdbUtil.createForward(device, port, ForwardManager.MESSAGE_REMOTE_PORT);
                 logger.info("Use usb channel to connect message service: {}", getId());
             }
 
@@ -506,6 +515,11 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
                     SettingConstant.KEY_DEVICE_IMAGE_ZOOM_RATE, SettingConstant.DEFAULT_ZOOM_RATE);
             createMsg.setParameter("iq", imageQuality);
             createMsg.setParameter("zr", zoomRate);
+            if (usingWirelessDevice() && Setting.getInstance().getBooleanProperty(
+                    SettingConstant.KEY_WIRELESS_COMPRESSION, true)) {
+                //ask device for compression, the device will echo it if compression is supported.
+                createMsg.setParameter("cz", FrameCompressor.DICTIONARY_VIEW_V1);
+            }
             try {
                 if (wait) {
                     Message retMsg = MessageUtil.request(this, createMsg, 5000);
@@ -569,6 +583,13 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
             cd.deviceMeta.setMediateVersionCode(mediateVersionCode);
         }
 
+        Byte compressDictionary = message.getParameter("cz");
+        if (compressDictionary != null) {
+            CompressionFilter.enableCompression(messageSession, compressDictionary);
+        } else {
+            CompressionFilter.disableCompression(messageSession);
+        }
+
         logger.info("initialize session for phone({}) successfully!", getId());
 
         messageSession.getConfig().setIdleTime(IdleStatus.READER_IDLE, 15);
@@ -618,26 +639,11 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
         try {
             //start minicap service
             IInfrastructureService infrastructureService = ServiceFactory.getService("infrastructureService");
-            //check installation
-            if (!infrastructureService.checkMinicapInstallation(getId())) {
-                logger.warn("The minicap is not installed: " + getId());
-                infrastructureService.installMinicap(getId());
-            }
+            //check installation, the files are pushed only if their content differs from local files.
+            infrastructureService.installMinicap(getId());
             //start minicap service
             infrastructureService.startMinicapService(getId());
 
-            String host;
-            int port;
-            if (usingWirelessDevice()) {
-                host = getIp();
-                port = ForwardManager.IMAGE_REMOTE_PORT;
-            } else {//usb mode
-                host = "localhost";
-                port = getImageForwardPort();
-                device.createForward(port, ForwardManager.IMAGE_REMOTE_SOCKET_NAME,
-                        IDevice.DeviceUnixSocketNamespace.ABSTRACT);
-            }
-
             //set up ADB inputer as default input method.
             checkInputerInstallation();
 
@@ -648,10 +654,17 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
                 imageChannel = null;
             }
 
-            SocketChannel imageSocketChannel = SocketChannel.open();
-            SocketAddress sa = new InetSocketAddress(host, port);
-            logger.info("connecting to image server[{}:{}]", host,port);
-            imageSocketChannel.connect(sa);
+            SocketChannel imageSocketChannel;
+            if (usingWirelessDevice()) {
+                imageSocketChannel = openImageSocket(getIp(), ForwardManager.IMAGE_REMOTE_PORT);
+            } else if (Setting.getInstance().getBooleanProperty(SettingConstant.KEY_IMAGE_DIRECT_TRANSPORT, true)) {
+                //usb mode: the stream is carried by adb connection directly.
+                imageSocketChannel = openDirectImageSocket();
+            } else {//usb mode: through port forward.
+                int port = getImageForwardPort();
+                AdbUtil.createForward(device, port, ForwardManager.IMAGE_REMOTE_SOCKET_NAME);
+                imageSocketChannel = openImageSocket("localhost", port);
+            }
 
             setImageChannel(imageSocketChannel);
             logger.info("Connect to image server successfully!");
@@ -683,6 +696,30 @@ public class DefaultDeviceConnection extends BaseDeviceConnection implements IDe
                 DeviceConnectionEvent.ConnectionType.IMAGE);
     }
 
+    private SocketChannel openImageSocket(String host, int port) throws IOException {
+        SocketChannel imageSocketChannel = SocketChannel.open();
+        SocketAddress sa = new InetSocketAddress(host, port);
+        logger.info("connecting to image server[{}:{}]", host,port);
+        imageSocketChannel.connect(sa);
+        return imageSocketChannel;
+    }
+
+    /**
+     * Open the abstract socket of image service over adb connection, it saves the relay of
+     * port forward and a local port. The forward mode is used if the direct stream is rejected.
+     */
+    private SocketChannel openDirectImageSocket() throws Exception {
+        logger.info("connecting to image server[localabstract:{}] directly", ForwardManager.IMAGE_REMOTE_SOCKET_NAME);
+        try {
+            return CXAdbHelper.openLocalAbstract(device, ForwardManager.IMAGE_REMOTE_SOCKET_NAME);
+        } catch (AdbCommandRejectedException e) {
+            logger.warn("Opening image stream directly failed, use port forward instead: " + e.getMessage());
+        }
+        int port = getImageForwardPort();
+        AdbUtil.createForward(device, port, ForwardManager.IMAGE_REMOTE_SOCKET_NAME);
+        return openImageSocket("localhost", port);
+    }
+
     private void checkInputerInstallation() {
         IInfrastructureService infrastructureService = ServiceFactory.getService("infrastructureService");
         String builtInputer = CommonUtil.TOUCH_INPUTER;
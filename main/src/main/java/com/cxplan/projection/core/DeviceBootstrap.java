@@ -0,0 +1,214 @@
+package com.cxplan.projection.core;
+
+import com.android.ddmlib.IDevice;
+import com.cxplan.projection.core.adb.AdbShardManager;
+import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.ForwardManager;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.model.DeviceInfo;
+import com.cxplan.projection.util.CommonUtil;
+import com.cxplan.projection.util.StringUtil;
+import com.cxplan.projection.util.SystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The bring-up pipeline of device.
+ *
+ * <pre>
+ *                       / probe(one batched adb shell: ip, minicap process, screen size)  \
+ * shard -- created ----+-- setting(load device setting)                                    +--- cleanup(kill old minicap, apply probe result)
+ *                       \ forward(message port forward)                                   /
+ * </pre>
+ * The stages in the middle run concurrently. A failed stage is recorded in report,
+ * the other stages go on.
+ *
+ * @author Kenny
+ * created on 2019/5/17
+ */
+public class DeviceBootstrap {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceBootstrap.class);
+
+    public static final String STAGE_SHARD = "shard";
+    public static final String STAGE_CREATED = "created";
+    public static final String STAGE_PROBE = "probe";
+    public static final String STAGE_SETTING = "setting";
+    public static final String STAGE_FORWARD = "forward";
+    public static final String STAGE_CLEANUP = "cleanup";
+
+    private static final int PROBE_TIMEOUT = 8000;
+
+    private final Application application;
+    private final DefaultDeviceConnection connection;
+    private final IDevice device;
+    private final boolean notifyController;
+    private final Executor executor;
+    private final BootstrapReport report;
+
+    public DeviceBootstrap(Application application, DefaultDeviceConnection connection,
+                           boolean notifyController, Executor executor) {
+        this.application = application;
+        this.connection = connection;
+        this.device = connection.getDevice();
+        this.notifyController = notifyController;
+        this.executor = executor;
+        this.report = new BootstrapReport(connection.getId());
+    }
+
+    /**
+     * Start the pipeline, the returned future is completed when all stages are finished.
+     */
+    public CompletableFuture<BootstrapReport> start() {
+        final String id = connection.getId();
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("The device (serial=" + id + ") is online");
+                stage(STAGE_SHARD, new Runnable() {
+                    @Override
+                    public void run() {
+                        AdbShardManager.getInstance().assign(device);
+                    }
+                });
+                stage(STAGE_CREATED, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (notifyController) {
+                            application.fireOnDeviceCreatedEvent(connection);
+                        }
+                    }
+                });
+            }
+        }, executor).thenCompose(new java.util.function.Function<Void, CompletableFuture<BootstrapReport>>() {
+            @Override
+            public CompletableFuture<BootstrapReport> apply(Void aVoid) {
+                if (!report.getStageErrors().isEmpty()) {
+                    report.finish();
+                    return CompletableFuture.completedFuture(report);
+                }
+                return runStages();
+            }
+        });
+    }
+
+    private CompletableFuture<BootstrapReport> runStages() {
+        final String id = connection.getId();
+        final ProbeResult probeResult = new ProbeResult();
+
+        CompletableFuture<Void> probe = CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                stage(STAGE_PROBE, new Runnable() {
+                    @Override
+                    public void run() {
+                        probe(probeResult);
+                    }
+                });
+            }
+        }, executor);
+        CompletableFuture<Void> setting = CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                stage(STAGE_SETTING, new Runnable() {
+                    @Override
+                    public void run() {
+                        Setting.getInstance().loadDeviceSetting(id);
+                        SystemUtil.installConfig(connection);
+                    }
+                });
+            }
+        }, executor);
+        CompletableFuture<Void> forward = CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                stage(STAGE_FORWARD, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int port = ForwardManager.getInstance().putMessageForward(id);
+                            AdbUtil.createForward(device, port, ForwardManager.MESSAGE_REMOTE_PORT);
+                        } catch (Exception e) {
+                            throw new RuntimeException("Creating forward for device(" + id + ") failed: " + e.getMessage(), e);
+                        }
+                    }
+                });
+            }
+        }, executor);
+
+        return CompletableFuture.allOf(probe, setting, forward).thenApplyAsync(
+                new java.util.function.Function<Void, BootstrapReport>() {
+            @Override
+            public BootstrapReport apply(Void aVoid) {
+                stage(STAGE_CLEANUP, new Runnable() {
+                    @Override
+                    public void run() {
+                        cleanup(probeResult);
+                    }
+                });
+                report.finish();
+                logger.info("The bring-up of device is finished: {}", report);
+                return report;
+            }
+        }, executor);
+    }
+
+    /**
+     * Retrieve all information needed by bring-up in one shell invocation.
+     */
+    private void probe(ProbeResult result) {
+        boolean needSize = connection.getScreenWidth() < 1 || connection.getScreenHeight() < 1;
+        String psCmd = AdbUtil.getPsCommand(device) + "|grep minicap";
+        String[] outputs;
+        if (needSize) {
+            outputs = AdbUtil.shellBatch(device, PROBE_TIMEOUT, "ifconfig wlan0", psCmd, "wm size");
+        } else {
+            outputs = AdbUtil.shellBatch(device, PROBE_TIMEOUT, "ifconfig wlan0", psCmd);
+        }
+
+        result.ip = AdbUtil.parseDeviceIp(outputs[0]);
+        if (!StringUtil.isEmpty(outputs[1])) {
+            result.minicapPid = CommonUtil.resolveProcessID(outputs[1].trim(), "/data/local/tmp/minicap");
+        }
+        if (needSize) {
+            result.physicalSize = AdbUtil.parsePhysicalSize(outputs[2]);
+        }
+    }
+
+    private void cleanup(ProbeResult result) {
+        if (result.ip != null) {
+            connection.setIp(result.ip);
+        }
+        //clean environment( kill old image service process )
+        AdbUtil.killProcess(result.minicapPid, device);
+
+        //check screen size
+        if (result.physicalSize != null) {
+            DeviceInfo di = (DeviceInfo) connection.getDeviceMeta();
+            di.setScreenWidth(result.physicalSize.width);
+            di.setScreenHeight(result.physicalSize.height);
+        }
+    }
+
+    private void stage(String name, Runnable task) {
+        long start = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            task.run();
+        } catch (Throwable e) {
+            error = e;
+            logger.error("The stage(" + name + ") of device(" + connection.getId() + ") failed: " + e.getMessage(), e);
+        }
+        report.recordStage(name, System.currentTimeMillis() - start, error);
+    }
+
+    private static class ProbeResult {
+        volatile String ip;
+        volatile int minicapPid = -1;
+        volatile Dimension physicalSize;
+    }
+}
@@ -0,0 +1,277 @@
+package com.cxplan.projection.core.adb;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.CXAdbHelper;
+import com.android.ddmlib.IDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Route the devices to several adb servers(shards).
+ *
+ * <p>The devices are discovered by the bridge of ddmlib, which is bound to the primary adb server,
+ * and ddmlib allows one bridge in a process only. A device is assigned to the least loaded shard when
+ * it is online, the raw adb requests of it(shell, forward, image stream and so on) are sent to that shard,
+ * the primary server keeps tracking its state only. The network devices are connected to the shard
+ * additionally, a usb device is assigned to a shard only if the shard sees it too, otherwise it is
+ * served by the primary server.
+ *
+ * <p>The latency of requests is recorded for every shard, the saturated shards are avoided by new
+ * assignments. A device is never moved while it is online, because its streams are bound to the shard,
+ * so the load is rebalanced when the devices are reconnected.
+ *
+ * @author Kenny
+ * created on 2019/5/21
+ */
+public class AdbShardManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdbShardManager.class);
+
+    //the shard is regarded as saturated if the average latency of requests exceeds this value.
+    private static final long SATURATED_LATENCY = 50;//milliseconds
+
+    private static class Holder {
+        private static final AdbShardManager INSTANCE = new AdbShardManager();
+    }
+
+    public static AdbShardManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * An adb server and its load.
+     */
+    public static class AdbShard {
+        private final InetSocketAddress address;
+        private final boolean primary;
+        private final AtomicInteger deviceCount = new AtomicInteger();
+        private final AtomicLong requestCount = new AtomicLong();
+        //exponential weighted moving average of request latency(microseconds).
+        private volatile long latencyAverage;
+
+        AdbShard(InetSocketAddress address, boolean primary) {
+            this.address = address;
+            this.primary = primary;
+        }
+
+        void recordRequest(long nanos) {
+            requestCount.incrementAndGet();
+            long micros = nanos / 1000;
+            long old = latencyAverage;
+            latencyAverage = old == 0 ? micros : old + (micros - old) / 8;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public boolean isPrimary() {
+            return primary;
+        }
+
+        public int getDeviceCount() {
+            return deviceCount.get();
+        }
+
+        public long getRequestCount() {
+            return requestCount.get();
+        }
+
+        public long getLatencyAverage() {
+            return latencyAverage;
+        }
+
+        @Override
+        public String toString() {
+            return "AdbShard{" +
+                    "port=" + address.getPort() +
+                    ", devices=" + deviceCount +
+                    ", requests=" + requestCount +
+                    ", latency=" + latencyAverage + "us" +
+                    '}';
+        }
+    }
+
+    private final List<AdbShard> shardList = new CopyOnWriteArrayList<>();
+    //device serial -> shard
+    private final Map<String, AdbShard> routeMap = new ConcurrentHashMap<>();
+
+    private AdbShardManager() {
+    }
+
+    /**
+     * Start the extra adb servers.
+     * The primary server is the one connected by ddmlib.
+     *
+     * @param adbLocation the location of adb program.
+     * @param extraPorts the ports of extra adb servers.
+     */
+    public synchronized void initialize(String adbLocation, List<Integer> extraPorts) {
+        if (!shardList.isEmpty()) {
+            return;
+        }
+        InetSocketAddress primaryAddress = AndroidDebugBridge.getSocketAddress();
+        shardList.add(new AdbShard(primaryAddress, true));
+        for (int port : extraPorts) {
+            if (port == primaryAddress.getPort()) {
+                continue;
+            }
+            try {
+                Process process = new ProcessBuilder(adbLocation, "-P", String.valueOf(port), "start-server")
+                        .redirectErrorStream(true).start();
+                if (!process.waitFor(10, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                    logger.error("Starting adb server on port({}) failed", port);
+                    continue;
+                }
+            } catch (Exception e) {
+                logger.error("Starting adb server on port(" + port + ") failed: " + e.getMessage(), e);
+                continue;
+            }
+            shardList.add(new AdbShard(new InetSocketAddress(primaryAddress.getAddress(), port), false));
+            logger.info("The adb server on port({}) is added as a shard", port);
+        }
+    }
+
+    /**
+     * Return the address of adb server which serves specified device.
+     */
+    public InetSocketAddress getSocketAddress(IDevice device) {
+        AdbShard shard = routeMap.get(device.getSerialNumber());
+        return shard == null ? AndroidDebugBridge.getSocketAddress() : shard.getAddress();
+    }
+
+    public List<AdbShard> getShards() {
+        if (shardList.isEmpty()) {
+            List<AdbShard> list = new ArrayList<>(1);
+            list.add(new AdbShard(AndroidDebugBridge.getSocketAddress(), true));
+            return list;
+        }
+        return new ArrayList<>(shardList);
+    }
+
+    /**
+     * Assign the device to the least loaded shard, it is invoked when the device is online.
+     */
+    public void assign(IDevice device) {
+        String serial = device.getSerialNumber();
+        if (shardList.isEmpty() || routeMap.containsKey(serial)) {
+            return;
+        }
+        AdbShard shard = shardList.get(0);
+        if (shardList.size() > 1) {
+            boolean wireless = AdbUtil.isWirelessDevice(device);
+            for (AdbShard candidate : sortByLoad()) {
+                if (candidate.isPrimary()) {
+                    break;
+                }
+                if (wireless ? connectTo(candidate, serial) : isAttached(candidate, serial)) {
+                    shard = candidate;
+                    break;
+                }
+            }
+        }
+        if (routeMap.putIfAbsent(serial, shard) == null) {
+            shard.deviceCount.incrementAndGet();
+            logger.info("The device({}) is served by adb server on port({})", serial, shard.getAddress().getPort());
+        } else if (!shard.isPrimary() && AdbUtil.isWirelessDevice(device)) {
+            disconnectFrom(shard, serial);
+        }
+    }
+
+    /**
+     * Release the device from its shard, it is invoked when the device is offline.
+     */
+    public void release(IDevice device) {
+        String serial = device.getSerialNumber();
+        AdbShard shard = routeMap.remove(serial);
+        if (shard == null) {
+            return;
+        }
+        shard.deviceCount.decrementAndGet();
+        //the primary server keeps tracking the device.
+        if (!shard.isPrimary() && AdbUtil.isWirelessDevice(device)) {
+            disconnectFrom(shard, serial);
+        }
+    }
+
+    /**
+     * Record the time cost of a request sent to specified adb server.
+     */
+    public void recordRequest(InetSocketAddress address, long nanos) {
+        for (AdbShard shard : shardList) {
+            if (shard.getAddress().equals(address)) {
+                shard.recordRequest(nanos);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sort the shards by load, the saturated shards are put at the end.
+     */
+    List<AdbShard> sortByLoad() {
+        List<AdbShard> list = new ArrayList<>(shardList);
+        Collections.sort(list, new Comparator<AdbShard>() {
+            @Override
+            public int compare(AdbShard o1, AdbShard o2) {
+                boolean saturated1 = o1.getLatencyAverage() >= SATURATED_LATENCY * 1000;
+                boolean saturated2 = o2.getLatencyAverage() >= SATURATED_LATENCY * 1000;
+                if (saturated1 != saturated2) {
+                    return saturated1 ? 1 : -1;
+                }
+                return Integer.compare(o1.getDeviceCount(), o2.getDeviceCount());
+            }
+        });
+        return list;
+    }
+
+    private boolean isAttached(AdbShard shard, String serial) {
+        try {
+            for (String[] item : CXAdbHelper.listDevices(shard.getAddress())) {
+                if (item[0].equals(serial)) {
+                    return "device".equals(item[1]);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Listing devices of adb server on port(" + shard.getAddress().getPort()
+                    + ") failed: " + e.getMessage(), e);
+        }
+        return false;
+    }
+
+    private boolean connectTo(AdbShard shard, String serial) {
+        int index = serial.lastIndexOf(':');
+        try {
+            CXAdbHelper.connect(shard.getAddress(), serial.substring(0, index),
+                    Integer.parseInt(serial.substring(index + 1)));
+            return true;
+        } catch (Exception e) {
+            logger.error("Connecting device(" + serial + ") to adb server on port(" + shard.getAddress().getPort()
+                    + ") failed: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void disconnectFrom(AdbShard shard, String serial) {
+        int index = serial.lastIndexOf(':');
+        try {
+            CXAdbHelper.disconnect(shard.getAddress(), serial.substring(0, index),
+                    Integer.parseInt(serial.substring(index + 1)));
+        } catch (Exception e) {
+            logger.error("Disconnecting device(" + serial + ") from adb server on port(" + shard.getAddress().getPort()
+                    + ") failed: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.cxplan.projection.core.adb;
+
+import com.android.ddmlib.CXAdbHelper;
+import com.android.ddmlib.IDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A persistent interactive shell on device.
+ * Many commands are written to one shell, the output of each command is enclosed by
+ * sentinel lines(the end one carries exit status), so every command has its own future.
+ * The commands written without waiting are executed in one round trip.
+ *
+ * <p>The session is shared by all callers of same device channel, it is retrieved by
+ * {@link #getSession(IDevice)}. A broken session is replaced on next retrieving.
+ *
+ * @author Kenny
+ * created on 2019/5/18
+ */
+public class AdbShellSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdbShellSession.class);
+
+    //ISO-8859-1 maps every byte to one char, so the raw bytes can be restored from the buffer.
+    private static final Charset RAW_CHARSET = Charset.forName("ISO-8859-1");
+    private static final Charset OUTPUT_CHARSET = Charset.forName("UTF-8");
+    private static final String BEGIN_MARKER_PREFIX = "__CX_BEGIN_";
+    private static final String MARKER_PREFIX = "__CX_END_";
+
+    //serial number -> session
+    private static final Map<String, AdbShellSession> sessionMap = new ConcurrentHashMap<>();
+
+    /**
+     * Return the shell session of specified device, the session is opened if it doesn't exist.
+     */
+    public static AdbShellSession getSession(IDevice device) throws IOException {
+        String key = device.getSerialNumber();
+        AdbShellSession session = sessionMap.get(key);
+        if (session != null && session.isAlive()) {
+            return session;
+        }
+        synchronized (sessionMap) {
+            session = sessionMap.get(key);
+            if (session != null && session.isAlive()) {
+                return session;
+            }
+            session = new AdbShellSession(device);
+            session.open();
+            sessionMap.put(key, session);
+            return session;
+        }
+    }
+
+    /**
+     * Close the shell session of specified device, it is invoked when the device is offline.
+     */
+    public static void closeSession(IDevice device) {
+        AdbShellSession session = sessionMap.remove(device.getSerialNumber());
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * The result of command.
+     */
+    public static class CommandResult {
+        private final String output;
+        private final int exitCode;
+
+        public CommandResult(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    private static class PendingCommand {
+        final String beginMarker;
+        final String marker;
+        final CompletableFuture<CommandResult> future = new CompletableFuture<>();
+
+        PendingCommand(String beginMarker, String marker) {
+            this.beginMarker = beginMarker;
+            this.marker = marker;
+        }
+    }
+
+    private final IDevice device;
+    private final String serialNumber;
+    private SocketChannel channel;
+    private Thread pumpThread;
+    private volatile boolean alive;
+    private long sequence;
+    private final Object writeLock = new Object();
+    private final ConcurrentLinkedQueue<PendingCommand> pendingQueue = new ConcurrentLinkedQueue<>();
+    private final StringBuilder outputBuffer = new StringBuilder();
+
+    private AdbShellSession(IDevice device) {
+        this.device = device;
+        this.serialNumber = device.getSerialNumber();
+    }
+
+    private void open() throws IOException {
+        try {
+            channel = CXAdbHelper.openShell(device);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Opening shell session failed(" + serialNumber + "): " + e.getMessage(), e);
+        }
+        alive = true;
+        pumpThread = new Thread("AdbShell Thread-" + serialNumber) {
+            @Override
+            public void run() {
+                pump();
+            }
+        };
+        pumpThread.setDaemon(true);
+        pumpThread.start();
+
+        //Turn off the echo and prompt of terminal.
+        submit("stty -echo 2>/dev/null; PS1=''; PS2=''");
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public IDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Write a command to shell, the future is completed when the sentinel of command is read.
+     * The stderr of command is merged into the output.
+     *
+     * @param cmd the shell command, it should not wait for input.
+     * @return the future of command result.
+     */
+    public CompletableFuture<CommandResult> submit(String cmd) {
+        PendingCommand pending;
+        synchronized (writeLock) {
+            if (!alive) {
+                CompletableFuture<CommandResult> future = new CompletableFuture<>();
+                future.completeExceptionally(new IOException("The shell session is closed: " + serialNumber));
+                return future;
+            }
+            long seq = sequence++;
+            //The empty quotes keep the markers out of the echoed command text.
+            String line = "echo " + BEGIN_MARKER_PREFIX + "\"\"" + seq + "__; (" + cmd + ") 2>&1; echo "
+                    + MARKER_PREFIX + "\"\"" + seq + "__ $?";
+            pending = new PendingCommand(BEGIN_MARKER_PREFIX + seq + "__", MARKER_PREFIX + seq + "__");
+            pendingQueue.add(pending);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(OUTPUT_CHARSET));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                logger.error("Writing command to shell failed(" + serialNumber + "): " + e.getMessage(), e);
+                close();
+            }
+        }
+        return pending.future;
+    }
+
+    /**
+     * Execute a command and wait for the result.
+     * The session is closed if the command doesn't finish in time, because the following
+     * commands are blocked by it.
+     *
+     * @param cmd the shell command.
+     * @param timeout the max time of waiting(milliseconds).
+     */
+    public CommandResult execute(String cmd, long timeout) throws IOException {
+        return waitFor(submit(cmd), timeout);
+    }
+
+    /**
+     * Wait for the result of submitted command.
+     */
+    public CommandResult waitFor(CompletableFuture<CommandResult> future, long timeout) throws IOException {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.error("The command of shell session timed out({}), the session is closed", serialNumber);
+            close();
+            throw new IOException("The shell command timed out: " + serialNumber);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Waiting for shell command is interrupted", e);
+        }
+    }
+
+    public void close() {
+        synchronized (writeLock) {
+            if (!alive) {
+                return;
+            }
+            alive = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+        sessionMap.remove(serialNumber, this);
+        failPendingCommands(new IOException("The shell session is closed: " + serialNumber));
+    }
+
+    private void pump() {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try {
+            while (alive) {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    logger.info("The shell session is finished: {}", serialNumber);
+                    break;
+                }
+                buffer.flip();
+                outputBuffer.append(new String(buffer.array(), 0, buffer.limit(), RAW_CHARSET));
+                resolveOutput();
+            }
+        } catch (IOException e) {
+            if (alive) {
+                logger.error("Reading shell session failed(" + serialNumber + "): " + e.getMessage(), e);
+            }
+        }
+        close();
+    }
+
+    private void resolveOutput() {
+        while (true) {
+            PendingCommand pending = pendingQueue.peek();
+            if (pending == null) {
+                return;
+            }
+            int index = outputBuffer.indexOf(pending.marker);
+            if (index == -1) {
+                return;
+            }
+            int lineEnd = outputBuffer.indexOf("\n", index);
+            if (lineEnd == -1) {//the exit status is not complete.
+                return;
+            }
+            String status = outputBuffer.substring(index + pending.marker.length(), lineEnd).trim();
+            //The prompt and echo of terminal are out of the markers, only the output of command is kept.
+            int begin = outputBuffer.lastIndexOf(pending.beginMarker, index);
+            if (begin == -1) {
+                begin = 0;
+            } else {
+                begin = outputBuffer.indexOf("\n", begin) + 1;
+            }
+            byte[] raw = outputBuffer.substring(begin, index).getBytes(RAW_CHARSET);
+            outputBuffer.delete(0, lineEnd + 1);
+            pendingQueue.poll();
+
+            String output = new String(raw, OUTPUT_CHARSET).replace("\r", "");
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+            pending.future.complete(new CommandResult(output, exitCode));
+        }
+    }
+
+    private void failPendingCommands(Throwable cause) {
+        PendingCommand pending;
+        while ((pending = pendingQueue.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+}
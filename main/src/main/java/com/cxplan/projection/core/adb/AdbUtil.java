@@ -8,6 +8,9 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -77,7 +80,14 @@ public class AdbUtil {
     //Physical size: 720x1280
     public static Dimension getPhysicalSize(IDevice device) {
         String cmd = "wm size";
-        String ret = shell(cmd, device);
+        String ret = query(cmd, device);
+        return parsePhysicalSize(ret);
+    }
+
+    /**
+     * Resolve the output of 'wm size'.
+     */
+    public static Dimension parsePhysicalSize(String ret) {
         if (StringUtil.isEmpty(ret)) {
             return null;
         }
@@ -112,7 +122,14 @@ public class AdbUtil {
      */
     public static String getPackagePath(String packageName, IDevice device) {
         String cmd = "pm path " + packageName;
-        String ret = shell(cmd, device);
+        String ret = query(cmd, device);
+        return parsePackagePath(ret);
+    }
+
+    /**
+     * Resolve the output of 'pm path'.
+     */
+    public static String parsePackagePath(String ret) {
         if (StringUtil.isEmpty(ret)) {//the package doesn't exist.
             return null;
         }
@@ -135,7 +152,14 @@ public class AdbUtil {
      */
     public static int getPackageVersionCode(String packageName, IDevice device) {
         String cmd = "dumpsys package " + packageName + "|grep versionCode";
-        String ret = shell(cmd, device);
+        String ret = query(cmd, device);
+        return parseVersionCode(ret);
+    }
+
+    /**
+     * Resolve the version code from the output of 'dumpsys package'.
+     */
+    public static int parseVersionCode(String ret) {
         if (StringUtil.isEmpty(ret)) {//the package doesn't exist.
             return -1;
         }
@@ -166,6 +190,87 @@ public class AdbUtil {
         return code;
     }
 
+    /**
+     * Execute several shell commands in one round trip. The commands are written to the
+     * shell session of device together, the output of each command is separated by sentinel markers.
+     * If the shell session is unavailable, the commands are joined and executed in one shell invocation.
+     *
+     * @param device device object.
+     * @param timeout the max time of executing all commands(milliseconds).
+     * @param cmds the shell commands.
+     * @return the output of each command, the order is same with commands.
+     *         The output of command is null if the sentinel of command is missing.
+     */
+    public static String[] shellBatch(IDevice device, int timeout, String... cmds) {
+        try {
+            AdbShellSession session = AdbShellSession.getSession(device);
+            List<CompletableFuture<AdbShellSession.CommandResult>> futureList = new ArrayList<>(cmds.length);
+            for (String cmd : cmds) {
+                futureList.add(session.submit(cmd));
+            }
+            long deadline = System.currentTimeMillis() + timeout;
+            String[] result = new String[cmds.length];
+            for (int i = 0; i < cmds.length; i++) {
+                long remaining = Math.max(1, deadline - System.currentTimeMillis());
+                result[i] = session.waitFor(futureList.get(i), remaining).getOutput();
+            }
+            return result;
+        } catch (IOException e) {
+            logger.warn("The shell session is unavailable, execute batch commands in one invocation: " + e.getMessage());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cmds.length; i++) {
+            //The empty quotes keep the marker out of the command text, only the output of echo matches it.
+            sb.append(cmds[i]).append(";echo ").append(BATCH_MARKER_PREFIX).append("\"\"").append(i).append("__;");
+        }
+        String output = shell(sb.toString(), timeout, device);
+        return splitBatchOutput(output, cmds.length);
+    }
+
+    /**
+     * Execute a short query command by the shell session of device, it saves the cost
+     * of opening adb transport. The command is executed by a new shell invocation if the
+     * shell session is unavailable.
+     *
+     * @param cmd the shell command, it must be finished in a short time.
+     * @param device device object.
+     * @return the output of command.
+     */
+    public static String query(String cmd, IDevice device) {
+        try {
+            return AdbShellSession.getSession(device).execute(cmd, 5000).getOutput();
+        } catch (IOException e) {
+            logger.warn("The shell session is unavailable: " + e.getMessage());
+        }
+        return shell(cmd, device);
+    }
+
+    static final String BATCH_MARKER_PREFIX = "__CX_END_";
+
+    static String[] splitBatchOutput(String output, int count) {
+        String[] result = new String[count];
+        if (output == null) {
+            return result;
+        }
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            String marker = BATCH_MARKER_PREFIX + i + "__";
+            int index = output.indexOf(marker, start);
+            if (index == -1) {
+                logger.error("The output of batch command is incomplete: " + i + "/" + count);
+                break;
+            }
+            result[i] = output.substring(start, index);
+            start = index + marker.length();
+            //skip the line break of marker.
+            while (start < output.length() && (output.charAt(start) == '\r' || output.charAt(start) == '\n')) {
+                start++;
+            }
+        }
+        return result;
+    }
+
     public static String shell(String cmd, IDevice device) {
         // 5000 is the default timeout from the ddmlib.
         // This timeout arg is needed to the backwards compatibility.
@@ -184,7 +289,7 @@ public class AdbUtil {
     public static String shell(String cmd, int timeout, IDevice device) {
         CommandOutputCapture capture = new CommandOutputCapture();
         try {
-            device.executeShellCommand(cmd, capture, timeout, TimeUnit.MILLISECONDS);
+            CXAdbHelper.executeShellCommand(device, cmd, capture, timeout, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -208,7 +313,7 @@ public class AdbUtil {
     }
     public static void shellBlockingCommand(String cmd, IDevice device, int timeout) throws AdbCommandRejectedException, IOException, TimeoutException {
         try {
-            device.executeShellCommand(cmd, new LoggingOutputReceiver(), timeout, TimeUnit.SECONDS);
+            CXAdbHelper.executeShellCommand(device, cmd, new LoggingOutputReceiver(), timeout, TimeUnit.SECONDS);
         } catch (ShellCommandUnresponsiveException e) {
             logger.info("blocking cmd: {}", e.getMessage());
         }
@@ -225,7 +330,7 @@ public class AdbUtil {
         String cmd = AdbUtil.getPsCommand(device) + "|grep " + packageName;
         String ret;
         try {
-            ret = AdbUtil.shell(cmd, device);
+            ret = AdbUtil.query(cmd, device);
             if (StringUtil.isEmpty(ret)) {
                 return -1;
             }
@@ -271,6 +376,30 @@ public class AdbUtil {
      * @param device the device object.
      * @return true: wireless, false: usb cable.
      */
+    /**
+     * Forward the local port to the port on device, the request is sent to the adb server which serves the device.
+     */
+    public static void createForward(IDevice device, int localPort, int remotePort) throws Exception {
+        CXAdbHelper.createForward(AdbShardManager.getInstance().getSocketAddress(device), device.getSerialNumber(),
+                "tcp:" + localPort, "tcp:" + remotePort);
+    }
+
+    /**
+     * Forward the local port to the abstract unix socket on device.
+     */
+    public static void createForward(IDevice device, int localPort, String remoteSocketName) throws Exception {
+        CXAdbHelper.createForward(AdbShardManager.getInstance().getSocketAddress(device), device.getSerialNumber(),
+                "tcp:" + localPort, "localabstract:" + remoteSocketName);
+    }
+
+    /**
+     * Remove the forward of local port from the adb server which serves the device.
+     */
+    public static void removeForward(IDevice device, int localPort) throws Exception {
+        CXAdbHelper.removeForward(AdbShardManager.getInstance().getSocketAddress(device), device.getSerialNumber(),
+                "tcp:" + localPort);
+    }
+
     public static boolean isWirelessDevice(IDevice device) {
         String featureName = device.getSerialNumber();
         if (featureName != null && featureName.endsWith(":5555")) {
@@ -289,7 +418,14 @@ public class AdbUtil {
      */
     public static String getDeviceIp(IDevice device) {
         String cmd = "ifconfig wlan0";
-        String ret = shell(cmd, device);
+        String ret = query(cmd, device);
+        return parseDeviceIp(ret);
+    }
+
+    /**
+     * Resolve the ip address from the output of 'ifconfig wlan0'.
+     */
+    public static String parseDeviceIp(String ret) {
         if (StringUtil.isEmpty(ret)) {//the package doesn't exist.
             return null;
         }
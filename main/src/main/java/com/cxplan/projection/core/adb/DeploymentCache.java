@@ -0,0 +1,326 @@
+package com.cxplan.projection.core.adb;
+
+import com.android.ddmlib.IDevice;
+import com.cxplan.projection.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record the content hash(md5) of artifacts deployed to devices, only the artifacts
+ * whose content differs from the local file are pushed.
+ *
+ * <p>The hash of local file is computed once for all devices, it is recomputed
+ * when the file is modified. The hashes of files on device are retrieved by
+ * a single 'md5sum' command, and are remembered for the device serial until the
+ * device is offline. The remembered files are still checked by their sizes on device
+ * before they are skipped, so the files removed by wiping or re-flashing are pushed again.
+ *
+ * @author Kenny
+ * created on 2019/5/19
+ */
+public class DeploymentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeploymentCache.class);
+
+    private static DeploymentCache instance;
+
+    public static synchronized DeploymentCache getInstance() {
+        if (instance == null) {
+            instance = new DeploymentCache();
+        }
+        return instance;
+    }
+
+    /**
+     * A local file which should be deployed to specified remote path.
+     */
+    public static class Artifact {
+        private final File localFile;
+        private final String remotePath;
+        private final boolean executable;
+
+        public Artifact(File localFile, String remotePath, boolean executable) {
+            this.localFile = localFile;
+            this.remotePath = remotePath;
+            this.executable = executable;
+        }
+
+        public File getLocalFile() {
+            return localFile;
+        }
+
+        public String getRemotePath() {
+            return remotePath;
+        }
+
+        public boolean isExecutable() {
+            return executable;
+        }
+
+        @Override
+        public String toString() {
+            return localFile.getPath() + " -> " + remotePath;
+        }
+    }
+
+    //local path|last modified|length -> md5
+    private final ConcurrentHashMap<String, String> localHashMap = new ConcurrentHashMap<>();
+    //device serial -> (remote path -> md5)
+    private final ConcurrentHashMap<String, Map<String, String>> deviceHashMap = new ConcurrentHashMap<>();
+
+    private DeploymentCache() {
+    }
+
+    /**
+     * Deploy the artifacts to device, the artifacts which have been on device are skipped.
+     *
+     * @param device device object.
+     * @param artifacts the artifacts should be on device.
+     * @return the artifacts pushed actually.
+     */
+    public List<Artifact> deploy(IDevice device, List<Artifact> artifacts) {
+        String serial = device.getSerialNumber();
+        Map<String, String> deployedMap = getDeployedMap(serial);
+
+        //1. compare with the record of device.
+        Map<Artifact, String> localHashes = new HashMap<>();
+        List<Artifact> unknownList = new ArrayList<>();
+        List<Artifact> recordedList = new ArrayList<>();
+        for (Artifact artifact : artifacts) {
+            String hash = getLocalHash(artifact.getLocalFile());
+            localHashes.put(artifact, hash);
+            if (hash.equals(deployedMap.get(artifact.getRemotePath()))) {
+                recordedList.add(artifact);
+            } else {
+                unknownList.add(artifact);
+            }
+        }
+        //the record may be stale, the recorded files are checked by size which is cheaper than hash.
+        if (recordedList.size() > 0) {
+            List<String> remotePaths = new ArrayList<>(recordedList.size());
+            for (Artifact artifact : recordedList) {
+                remotePaths.add(artifact.getRemotePath());
+            }
+            Map<String, Long> remoteSizes = getRemoteSizes(device, remotePaths);
+            for (Artifact artifact : recordedList) {
+                Long size = remoteSizes.get(artifact.getRemotePath());
+                if (size == null || size != artifact.getLocalFile().length()) {
+                    logger.info("The deployed file is changed on device({}): {}", serial, artifact.getRemotePath());
+                    deployedMap.remove(artifact.getRemotePath());
+                    unknownList.add(artifact);
+                }
+            }
+        }
+        if (unknownList.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+
+        //2. check the files on device by one command.
+        List<String> remotePaths = new ArrayList<>(unknownList.size());
+        for (Artifact artifact : unknownList) {
+            remotePaths.add(artifact.getRemotePath());
+        }
+        Map<String, String> remoteHashes = getRemoteHashes(device, remotePaths);
+
+        //3. push the different files.
+        List<Artifact> pushList = new ArrayList<>();
+        StringBuilder chmod = new StringBuilder();
+        for (Artifact artifact : unknownList) {
+            String hash = localHashes.get(artifact);
+            if (hash.equals(remoteHashes.get(artifact.getRemotePath()))) {
+                deployedMap.put(artifact.getRemotePath(), hash);
+                continue;
+            }
+            try {
+                device.pushFile(artifact.getLocalFile().getAbsolutePath(), artifact.getRemotePath());
+            } catch (Exception e) {
+                deployedMap.remove(artifact.getRemotePath());
+                throw new RuntimeException("Pushing file failed(" + artifact + "): " + e.getMessage(), e);
+            }
+            if (artifact.isExecutable()) {
+                chmod.append(chmod.length() == 0 ? "chmod 777" : "").append(" ").append(artifact.getRemotePath());
+            }
+            deployedMap.put(artifact.getRemotePath(), hash);
+            pushList.add(artifact);
+        }
+        if (chmod.length() > 0) {
+            AdbUtil.query(chmod.toString(), device);
+        }
+        if (pushList.size() > 0) {
+            logger.info("Deployed {} of {} artifacts to device({}): {}", pushList.size(),
+                    artifacts.size(), serial, pushList);
+        }
+
+        return pushList;
+    }
+
+    /**
+     * Check whether the installed package on device is identical with local apk file.
+     *
+     * @param device device object.
+     * @param installedPath the path of installed package on device, it is returned by 'pm path'.
+     * @param apkFile the local apk file.
+     */
+    public boolean isInstalledPackageCurrent(IDevice device, String installedPath, File apkFile) {
+        if (StringUtil.isEmpty(installedPath) || !apkFile.exists()) {
+            return false;
+        }
+        String localHash = getLocalHash(apkFile);
+        List<String> pathList = new ArrayList<>(1);
+        pathList.add(installedPath);
+        String remoteHash = getRemoteHashes(device, pathList).get(installedPath);
+        return localHash.equals(remoteHash);
+    }
+
+    /**
+     * Forget the deployment record of device, it is invoked when device is offline.
+     */
+    public void forget(IDevice device) {
+        deviceHashMap.remove(device.getSerialNumber());
+    }
+
+    private Map<String, String> getDeployedMap(String serial) {
+        Map<String, String> map = deviceHashMap.get(serial);
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            Map<String, String> old = deviceHashMap.putIfAbsent(serial, map);
+            if (old != null) {
+                map = old;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Return the md5 of local file. The concurrent callers of same file wait for the first one,
+     * so the file is read from disk once.
+     */
+    String getLocalHash(final File file) {
+        String key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+        return localHashMap.computeIfAbsent(key,
+                new java.util.function.Function<String, String>() {
+            @Override
+            public String apply(String s) {
+                return md5(file);
+            }
+        });
+    }
+
+    private Map<String, String> getRemoteHashes(IDevice device, List<String> remotePaths) {
+        StringBuilder paths = new StringBuilder();
+        for (String path : remotePaths) {
+            paths.append(" ").append(path);
+        }
+        //'md5sum' is not supported by the toolbox of old system, the 'md5' is used instead.
+        String cmd = "(md5sum" + paths + " || md5" + paths + ") 2>/dev/null";
+        String ret;
+        try {
+            ret = AdbUtil.query(cmd, device);
+        } catch (Exception e) {
+            logger.error("Retrieving file hash from device failed: " + e.getMessage(), e);
+            ret = null;
+        }
+        return parseHashOutput(ret);
+    }
+
+    private Map<String, Long> getRemoteSizes(IDevice device, List<String> remotePaths) {
+        StringBuilder paths = new StringBuilder();
+        for (String path : remotePaths) {
+            paths.append(" ").append(path);
+        }
+        //'stat' is not supported by the toolbox of old system, the 'wc' is used instead.
+        String cmd = "(stat -c '%s %n'" + paths + " || wc -c" + paths + ") 2>/dev/null";
+        String ret;
+        try {
+            ret = AdbUtil.query(cmd, device);
+        } catch (Exception e) {
+            logger.error("Retrieving file size from device failed: " + e.getMessage(), e);
+            ret = null;
+        }
+        return parseSizeOutput(ret);
+    }
+
+    /**
+     * Resolve the output of stat or wc, every line is formatted as 'size path'.
+     */
+    static Map<String, Long> parseSizeOutput(String ret) {
+        Map<String, Long> sizeMap = new HashMap<>();
+        if (StringUtil.isEmpty(ret)) {
+            return sizeMap;
+        }
+        StringTokenizer lines = new StringTokenizer(ret, "\r\n");
+        while (lines.hasMoreTokens()) {
+            StringTokenizer st = new StringTokenizer(lines.nextToken());
+            if (st.countTokens() != 2) {
+                continue;
+            }
+            String size = st.nextToken();
+            String path = st.nextToken();
+            try {
+                sizeMap.put(path, Long.parseLong(size));
+            } catch (NumberFormatException e) {
+                //not a line of file.
+            }
+        }
+        return sizeMap;
+    }
+
+    /**
+     * Resolve the output of md5sum, every line is formatted as 'hash  path'.
+     */
+    static Map<String, String> parseHashOutput(String ret) {
+        Map<String, String> hashMap = new HashMap<>();
+        if (StringUtil.isEmpty(ret)) {
+            return hashMap;
+        }
+        StringTokenizer lines = new StringTokenizer(ret, "\r\n");
+        while (lines.hasMoreTokens()) {
+            StringTokenizer st = new StringTokenizer(lines.nextToken());
+            if (st.countTokens() != 2) {
+                continue;
+            }
+            String hash = st.nextToken();
+            String path = st.nextToken();
+            if (hash.length() == 32) {
+                hashMap.put(path, hash.toLowerCase());
+            }
+        }
+        return hashMap;
+    }
+
+    private static String md5(File file) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Reading file failed: " + file.getAbsolutePath(), e);
+        }
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.cxplan.projection.core.adb;
+
+/**
+ * Describe the infrastructure environment of device:
+ * the installation of packages, the running processes and the installation of minicap.
+ *
+ * @author Kenny
+ * created on 2019/5/18
+ */
+public class DeviceEnvironment {
+
+    private String mainPackagePath;
+    private int mainPackageVersion = -1;
+    private String scriptPackagePath;
+    private int scriptPackageVersion = -1;
+    private int mainProcessId = -1;
+    private int scriptProcessId = -1;
+    private int minicapProcessId = -1;
+    private boolean minicapInstalled;
+
+    public String getMainPackagePath() {
+        return mainPackagePath;
+    }
+
+    public void setMainPackagePath(String mainPackagePath) {
+        this.mainPackagePath = mainPackagePath;
+    }
+
+    public int getMainPackageVersion() {
+        return mainPackageVersion;
+    }
+
+    public void setMainPackageVersion(int mainPackageVersion) {
+        this.mainPackageVersion = mainPackageVersion;
+    }
+
+    public String getScriptPackagePath() {
+        return scriptPackagePath;
+    }
+
+    public void setScriptPackagePath(String scriptPackagePath) {
+        this.scriptPackagePath = scriptPackagePath;
+    }
+
+    public int getScriptPackageVersion() {
+        return scriptPackageVersion;
+    }
+
+    public void setScriptPackageVersion(int scriptPackageVersion) {
+        this.scriptPackageVersion = scriptPackageVersion;
+    }
+
+    public int getMainProcessId() {
+        return mainProcessId;
+    }
+
+    public void setMainProcessId(int mainProcessId) {
+        this.mainProcessId = mainProcessId;
+    }
+
+    public int getScriptProcessId() {
+        return scriptProcessId;
+    }
+
+    public void setScriptProcessId(int scriptProcessId) {
+        this.scriptProcessId = scriptProcessId;
+    }
+
+    public int getMinicapProcessId() {
+        return minicapProcessId;
+    }
+
+    public void setMinicapProcessId(int minicapProcessId) {
+        this.minicapProcessId = minicapProcessId;
+    }
+
+    public boolean isMinicapInstalled() {
+        return minicapInstalled;
+    }
+
+    public void setMinicapInstalled(boolean minicapInstalled) {
+        this.minicapInstalled = minicapInstalled;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceEnvironment{" +
+                "mainPackagePath='" + mainPackagePath + '\'' +
+                ", mainPackageVersion=" + mainPackageVersion +
+                ", scriptPackagePath='" + scriptPackagePath + '\'' +
+                ", scriptPackageVersion=" + scriptPackageVersion +
+                ", mainProcessId=" + mainProcessId +
+                ", scriptProcessId=" + scriptProcessId +
+                ", minicapProcessId=" + minicapProcessId +
+                ", minicapInstalled=" + minicapInstalled +
+                '}';
+    }
+}
@@ -0,0 +1,490 @@
+package com.cxplan.projection.core.adb;
+
+import com.android.ddmlib.CXAdbHelper;
+import com.android.ddmlib.IDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supervise the long-running processes on devices, such as main process and script process.
+ *
+ * <p>The output streams of all processes are watched by one selector thread, the exit of process
+ * is detected when its stream is closed. The exited process is restarted with exponential backoff
+ * by a shared scheduler, unless it is stopped or it exits too quickly too many times.
+ * The scheduler only keeps the timers, the blocking shell commands are launched by a small bounded pool,
+ * so a slow device never delays the processes of other devices.
+ * The latest output of every process is kept in a bounded ring buffer.
+ * The stopped and failed processes are kept with their final status until they are started again.
+ *
+ * @author Kenny
+ * created on 2019/5/20
+ */
+public class DeviceProcessSupervisor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceProcessSupervisor.class);
+
+    private static final long BACKOFF_BASE = 1000;
+    private static final long BACKOFF_CAP = 30 * 1000;
+    //the process which runs longer than this time is regarded as stable, its backoff is reset.
+    private static final long STABLE_TIME = 60 * 1000;
+    //the max count of continuous unstable runs, the process is failed after it.
+    private static final int MAX_UNSTABLE_RUNS = 5;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    //the max count of processes being launched at the same time.
+    private static final int LAUNCH_THREADS = 4;
+
+    private static class Holder {
+        private static final DeviceProcessSupervisor INSTANCE = new DeviceProcessSupervisor();
+    }
+
+    public static DeviceProcessSupervisor getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public enum ProcessState {
+        STARTING, RUNNING, BACKOFF, STOPPED, FAILED
+    }
+
+    /**
+     * The snapshot of supervised process.
+     */
+    public static class ProcessStatus {
+        private final String serialNumber;
+        private final String name;
+        private final ProcessState state;
+        private final int restartCount;
+        private final long startTime;
+        private final String lastOutput;
+
+        ProcessStatus(SupervisedProcess process) {
+            this.serialNumber = process.serialNumber;
+            this.name = process.name;
+            this.state = process.state;
+            this.restartCount = process.restartCount;
+            this.startTime = process.startTime;
+            this.lastOutput = process.output.toString();
+        }
+
+        public String getSerialNumber() {
+            return serialNumber;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ProcessState getState() {
+            return state;
+        }
+
+        public int getRestartCount() {
+            return restartCount;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Return the latest output of process, the size is limited by the ring buffer.
+         */
+        public String getLastOutput() {
+            return lastOutput;
+        }
+
+        @Override
+        public String toString() {
+            return "ProcessStatus{" +
+                    "serialNumber='" + serialNumber + '\'' +
+                    ", name='" + name + '\'' +
+                    ", state=" + state +
+                    ", restartCount=" + restartCount +
+                    '}';
+        }
+    }
+
+    /**
+     * A fixed size buffer which keeps the latest bytes.
+     */
+    static class OutputRingBuffer {
+        private final byte[] data;
+        private int position;
+        private boolean full;
+
+        OutputRingBuffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        synchronized void write(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), data.length - position);
+                buffer.get(data, position, count);
+                position += count;
+                if (position == data.length) {
+                    position = 0;
+                    full = true;
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (!full) {
+                return new String(data, 0, position, Charset.forName("UTF-8"));
+            }
+            byte[] ret = new byte[data.length];
+            System.arraycopy(data, position, ret, 0, data.length - position);
+            System.arraycopy(data, 0, ret, data.length - position, position);
+            return new String(ret, Charset.forName("UTF-8"));
+        }
+    }
+
+    private static boolean isTerminated(ProcessState state) {
+        return state == ProcessState.STOPPED || state == ProcessState.FAILED;
+    }
+
+    private static class SupervisedProcess {
+        final String key;
+        final String serialNumber;
+        final String name;
+        final IDevice device;
+        final String command;
+        final OutputRingBuffer output = new OutputRingBuffer(OUTPUT_BUFFER_SIZE);
+
+        //the state is changed with the lock of process, so a stopped process is never restarted.
+        volatile ProcessState state = ProcessState.STARTING;
+        volatile SocketChannel channel;
+        //the time when the process is launched successfully, 0 if the latest launch fails.
+        volatile long startTime;
+        volatile int restartCount;
+        int unstableRuns;
+
+        SupervisedProcess(String key, IDevice device, String name, String command) {
+            this.key = key;
+            this.serialNumber = device.getSerialNumber();
+            this.device = device;
+            this.name = name;
+            this.command = command;
+        }
+    }
+
+    private final ConcurrentHashMap<String, SupervisedProcess> processMap = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<SupervisedProcess> registerQueue = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService launchExecutor;
+    private Selector selector;
+    private Thread selectorThread;
+
+    private DeviceProcessSupervisor() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Process Supervisor-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LAUNCH_THREADS, LAUNCH_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Process Launcher-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        launchExecutor = executor;
+    }
+
+    /**
+     * Start a process on device and supervise it. Nothing is done if the process with same name
+     * is supervised already on the device channel.
+     *
+     * @param device device object.
+     * @param name the name of process, it is unique in one device.
+     * @param command the shell command which starts the process, it should not exit until the process exits.
+     * @return true: the process is started, false: the process is supervised already.
+     */
+    public boolean start(IDevice device, String name, String command) {
+        String key = buildKey(device.getSerialNumber(), name);
+        SupervisedProcess process = new SupervisedProcess(key, device, name, command);
+        while (true) {
+            SupervisedProcess old = processMap.putIfAbsent(key, process);
+            if (old == null) {
+                break;
+            }
+            if (!isTerminated(old.state)) {
+                return false;
+            }
+            //replace the terminated one.
+            if (processMap.replace(key, old, process)) {
+                break;
+            }
+        }
+        scheduleStart(process, 0);
+        return true;
+    }
+
+    /**
+     * Stop supervising the process, the shell stream is closed.
+     */
+    public void stop(IDevice device, String name) {
+        SupervisedProcess process = processMap.get(buildKey(device.getSerialNumber(), name));
+        if (process == null) {
+            return;
+        }
+        synchronized (process) {
+            if (isTerminated(process.state)) {
+                return;
+            }
+            process.state = ProcessState.STOPPED;
+        }
+        closeChannel(process);
+        logger.info("The process({}) on device({}) is not supervised any more", name, process.serialNumber);
+    }
+
+    /**
+     * Stop supervising all processes of device channel, it is invoked when the device is offline.
+     */
+    public void stopAll(IDevice device) {
+        for (SupervisedProcess process : new ArrayList<>(processMap.values())) {
+            if (process.serialNumber.equals(device.getSerialNumber())) {
+                stop(device, process.name);
+            }
+        }
+    }
+
+    public boolean isSupervised(IDevice device, String name) {
+        SupervisedProcess process = processMap.get(buildKey(device.getSerialNumber(), name));
+        return process != null && !isTerminated(process.state);
+    }
+
+    /**
+     * Return the status of specified process, the stopped or failed process is returned with its final status.
+     * A null value is returned if the process is never started.
+     */
+    public ProcessStatus getStatus(IDevice device, String name) {
+        SupervisedProcess process = processMap.get(buildKey(device.getSerialNumber(), name));
+        return process == null ? null : new ProcessStatus(process);
+    }
+
+    /**
+     * Return the status of all processes, including the stopped and failed ones.
+     */
+    public List<ProcessStatus> getAllStatus() {
+        List<ProcessStatus> list = new ArrayList<>(processMap.size());
+        for (SupervisedProcess process : processMap.values()) {
+            list.add(new ProcessStatus(process));
+        }
+        return list;
+    }
+
+    private void scheduleStart(final SupervisedProcess process, long delay) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                launch(process);
+            }
+        };
+        if (delay <= 0) {
+            launchExecutor.execute(task);
+            return;
+        }
+        //the timer only hands the launch over to the launch pool.
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                launchExecutor.execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void launch(SupervisedProcess process) {
+        synchronized (process) {
+            if (isTerminated(process.state)) {
+                return;
+            }
+            if (!process.device.isOnline()) {
+                logger.info("The device({}) is offline, stop supervising the process: {}",
+                        process.serialNumber, process.name);
+                process.state = ProcessState.STOPPED;
+                return;
+            }
+            process.state = ProcessState.STARTING;
+            //a failed launch is counted as an unstable run.
+            process.startTime = 0;
+        }
+        SocketChannel channel;
+        try {
+            channel = CXAdbHelper.openShell(process.device, process.command);
+            channel.configureBlocking(false);
+        } catch (Exception e) {
+            logger.error("Starting process(" + process.name + ") on device(" + process.serialNumber + ") failed: "
+                    + e.getMessage(), e);
+            onExit(process);
+            return;
+        }
+        synchronized (process) {
+            process.channel = channel;
+            if (process.state == ProcessState.STOPPED) {
+                closeChannel(process);
+                return;
+            }
+            process.startTime = System.currentTimeMillis();
+            process.state = ProcessState.RUNNING;
+        }
+        logger.info("The process({}) on device({}) is started", process.name, process.serialNumber);
+        registerQueue.add(process);
+        ensureSelector().wakeup();
+    }
+
+    private void onExit(SupervisedProcess process) {
+        closeChannel(process);
+        long runTime;
+        boolean failed;
+        synchronized (process) {
+            if (isTerminated(process.state)) {
+                return;
+            }
+            runTime = process.startTime > 0 ? System.currentTimeMillis() - process.startTime : 0;
+            if (runTime >= STABLE_TIME) {
+                process.unstableRuns = 0;
+            } else {
+                process.unstableRuns++;
+            }
+            failed = process.unstableRuns > MAX_UNSTABLE_RUNS;
+            if (failed) {
+                process.state = ProcessState.FAILED;
+            } else {
+                process.state = ProcessState.BACKOFF;
+                process.restartCount++;
+            }
+        }
+        if (failed) {
+            logger.error("The process({}) on device({}) exits too frequently, it will not be restarted. output:\n{}",
+                    process.name, process.serialNumber, process.output);
+            return;
+        }
+        long delay = Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(process.unstableRuns, 16));
+        logger.info("The process({}) on device({}) exited after {}ms, restart it in {}ms",
+                process.name, process.serialNumber, runTime, delay);
+        scheduleStart(process, delay);
+    }
+
+    private void closeChannel(SupervisedProcess process) {
+        SocketChannel channel = process.channel;
+        process.channel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private synchronized Selector ensureSelector() {
+        if (selector != null) {
+            return selector;
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        selectorThread = new Thread("Process Supervisor Selector") {
+            @Override
+            public void run() {
+                select();
+            }
+        };
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return selector;
+    }
+
+    private void select() {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                continue;
+            }
+
+            SupervisedProcess process;
+            while ((process = registerQueue.poll()) != null) {
+                SocketChannel channel = process.channel;
+                if (channel == null) {
+                    continue;
+                }
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, process);
+                } catch (ClosedChannelException e) {
+                    scheduleExit(process);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                process = (SupervisedProcess) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    buffer.clear();
+                    int count = ((SocketChannel) key.channel()).read(buffer);
+                    if (count < 0) {
+                        key.cancel();
+                        scheduleExit(process);
+                    } else if (count > 0) {
+                        buffer.flip();
+                        process.output.write(buffer);
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    scheduleExit(process);
+                }
+            }
+        }
+    }
+
+    private void scheduleExit(final SupervisedProcess process) {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                onExit(process);
+            }
+        });
+    }
+
+    private static String buildKey(String serialNumber, String name) {
+        return serialNumber + "|" + name;
+    }
+}
@@ -1,13 +1,34 @@
 package com.cxplan.projection.core.adb;
 
-import java.util.*;
+import com.android.ddmlib.CXAdbHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * Manage the local ports of adb forwards.
+ * The ports of every forward type are allocated from a fixed range, the allocation is
+ * lock-free. A port is probed by binding before it is handed out, and is reclaimed when
+ * the forward has been removed from adb server, see {@link #releaseForward(DeviceForward)}.
+ *
  * @author KennyLiu
  * @created on 2018/5/4
  */
 public class ForwardManager {
 
+    private static final Logger logger = LoggerFactory.getLogger(ForwardManager.class);
+
     public static final int MESSAGE_PORT_START = 20000;
     public static final int MESSAGE_REMOTE_PORT = 2014;
     public static final int IMAGE_REMOTE_PORT = 2015;
@@ -19,208 +40,292 @@ public class ForwardManager {
     public static final int SCRIPT_PORT_START = 45000;
 
     public static final String IMAGE_REMOTE_SOCKET_NAME = "minicap";
-    private static ForwardManager instance;
+
+    private static class Holder {
+        private static final ForwardManager INSTANCE = new ForwardManager();
+    }
 
     public static ForwardManager getInstance() {
-        if (instance == null) {
-            instance = new ForwardManager();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * A range of local ports, the used ports are marked in a bitset.
+     */
+    static class PortRange {
+        final String name;
+        final int start;
+        final int end;//inclusive
+        final AtomicLongArray bits;
+        //the next position to search, it spreads the allocations over the range.
+        final AtomicInteger hint = new AtomicInteger();
+
+        PortRange(String name, int start, int end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.bits = new AtomicLongArray(((end - start) >> 6) + 1);
+        }
+
+        boolean contains(int port) {
+            return port >= start && port <= end;
+        }
+
+        int size() {
+            return end - start + 1;
+        }
+
+        /**
+         * Mark the port as used, return false if it is used already.
+         */
+        boolean mark(int port) {
+            int index = port - start;
+            int word = index >> 6;
+            long mask = 1L << (index & 63);
+            while (true) {
+                long value = bits.get(word);
+                if ((value & mask) != 0) {
+                    return false;
+                }
+                if (bits.compareAndSet(word, value, value | mask)) {
+                    return true;
+                }
+            }
+        }
+
+        void clear(int port) {
+            int index = port - start;
+            int word = index >> 6;
+            long mask = 1L << (index & 63);
+            while (true) {
+                long value = bits.get(word);
+                if ((value & mask) == 0) {
+                    return;
+                }
+                if (bits.compareAndSet(word, value, value & ~mask)) {
+                    return;
+                }
+            }
         }
 
-        return instance;
+        /**
+         * Take a free port which can be bound on local host.
+         * The port which can't be bound is unmarked again, it is probed next time.
+         */
+        int take() {
+            int size = size();
+            int from = hint.get();
+            for (int i = 0; i < size; i++) {
+                int index = (from + i) % size;
+                int port = start + index;
+                if (!mark(port)) {
+                    continue;
+                }
+                if (!isPortAvailable(port)) {
+                    clear(port);
+                    logger.warn("The {} port is occupied by other process: {}", name, port);
+                    continue;
+                }
+                hint.set((index + 1) % size);
+                return port;
+            }
+            throw new RuntimeException("allocating " + name + " forward port failed: there is no free port in ["
+                    + start + ", " + end + "]");
+        }
     }
 
+    private final PortRange messageRange = new PortRange("message", MESSAGE_PORT_START, 29999);
+    private final PortRange imageRange = new PortRange("image", IMAGE_PORT_START, 39999);
+    private final PortRange monkeyRange = new PortRange("monkey", MONKEY_PORT_START, 44999);
+    private final PortRange scriptRange = new PortRange("script", SCRIPT_PORT_START, 45999);
+
     /**
      * key: device id, value: message forward related with device.
      */
-    private Map<String, DeviceForward> messageForwardMap;
-    private Set<Integer> messagePortQueue;
-    private int currentMessagePort;
-
+    private final ConcurrentHashMap<String, DeviceForward> messageForwardMap = new ConcurrentHashMap<>();
     /**
      * key: device id, value: image forward related with device.
      */
-    private Map<String, DeviceForward> imageForwardMap;
-    private Set<Integer> imagePortQueue;
-    private int currentImagePort;
-
+    private final ConcurrentHashMap<String, DeviceForward> imageForwardMap = new ConcurrentHashMap<>();
     /**
      * key: device id, value: monkey forward related with device.
      */
-    private Map<String, DeviceForward> monkeyForwardMap;
-    private Set<Integer> monkeyPortQueue;
-    private int currentMonkeyPort;
-
+    private final ConcurrentHashMap<String, DeviceForward> monkeyForwardMap = new ConcurrentHashMap<>();
     /**
      * key: device id, value: script forward related with device.
      */
-    private Map<String, DeviceForward> scriptForwardMap;
-    private Set<Integer> scriptPortQueue;
-    private int currentScriptPort;
-
+    private final ConcurrentHashMap<String, DeviceForward> scriptForwardMap = new ConcurrentHashMap<>();
 
     private ForwardManager() {
-        messageForwardMap = Collections.synchronizedMap(new HashMap<String, DeviceForward>());
-        messagePortQueue = new HashSet<>();
-        currentMessagePort = MESSAGE_PORT_START;
-
-        imageForwardMap = Collections.synchronizedMap(new HashMap<String, DeviceForward>());
-        imagePortQueue = new HashSet<>();
-        currentImagePort = IMAGE_PORT_START;
+    }
 
-        monkeyForwardMap = Collections.synchronizedMap(new HashMap<String, DeviceForward>());
-        monkeyPortQueue = new HashSet<>();
-        currentMonkeyPort = MONKEY_PORT_START;
+    public int putMessageForward(String deviceId) {
+        return putForward(messageForwardMap, messageRange, deviceId, MESSAGE_REMOTE_PORT, null);
+    }
 
-        scriptForwardMap = Collections.synchronizedMap(new HashMap<String, DeviceForward>());
-        scriptPortQueue = new HashSet<>();
-        currentScriptPort = SCRIPT_PORT_START;
+    public DeviceForward removeMessageForward(String deviceId) {
+        return removeForward(messageForwardMap, deviceId);
     }
 
-    public synchronized int putMessageForward(String deviceId) {
-        DeviceForward forward = messageForwardMap.get(deviceId);
-        if (forward == null) {
-            forward = new DeviceForward();
-            forward.setRemotePort(MESSAGE_REMOTE_PORT);
-            forward.setLocalPort(takeMessagePort());
-            messageForwardMap.put(deviceId, forward);
-        }
-        return forward.getLocalPort();
+    public int putImageForward(String deviceId) {
+        return putForward(imageForwardMap, imageRange, deviceId, 0, IMAGE_REMOTE_SOCKET_NAME);
     }
 
-    public synchronized DeviceForward removeMessageForward(String deviceId) {
-        DeviceForward forward = messageForwardMap.remove(deviceId);
-        if (forward == null) {
-            return null;
-        }
-        returnPort(messagePortQueue, forward.getLocalPort());
-        return forward;
+    public DeviceForward removeImageForward(String deviceId) {
+        return removeForward(imageForwardMap, deviceId);
     }
-    public synchronized int putImageForward(String deviceId) {
-        DeviceForward forward = imageForwardMap.get(deviceId);
-        if (forward == null) {
-            forward = new DeviceForward();
-            forward.setRemoteSocketName(IMAGE_REMOTE_SOCKET_NAME);
-            forward.setLocalPort(takeImagePort());
-            imageForwardMap.put(deviceId, forward);
-        }
-        return forward.getLocalPort();
+
+    public int putMonkeyForward(String deviceId) {
+        return putForward(monkeyForwardMap, monkeyRange, deviceId, MONKEY_REMOTE_PORT, null);
     }
 
-    public synchronized DeviceForward removeImageForward(String deviceId) {
-        DeviceForward forward = imageForwardMap.remove(deviceId);
-        if (forward == null) {
-            return null;
-        }
-        returnPort(imagePortQueue, forward.getLocalPort());
-        return forward;
+    public DeviceForward removeMonkeyForward(String deviceId) {
+        return removeForward(monkeyForwardMap, deviceId);
     }
 
-    public synchronized int putMonkeyForward(String deviceId) {
-        DeviceForward forward = monkeyForwardMap.get(deviceId);
-        if (forward == null) {
-            forward = new DeviceForward();
-            forward.setRemotePort(MONKEY_REMOTE_PORT);
-            forward.setLocalPort(takeMonkeyPort());
-            monkeyForwardMap.put(deviceId, forward);
-        }
-        return forward.getLocalPort();
+    public int putScriptForward(String deviceId) {
+        return putForward(scriptForwardMap, scriptRange, deviceId, SCRIPT_REMOTE_PORT, null);
     }
 
-    public synchronized DeviceForward removeMonkeyForward(String deviceId) {
-        DeviceForward forward = monkeyForwardMap.remove(deviceId);
-        if (forward == null) {
-            return null;
-        }
-        returnPort(monkeyPortQueue, forward.getLocalPort());
-        return forward;
+    public DeviceForward removeScriptForward(String deviceId) {
+        return removeForward(scriptForwardMap, deviceId);
     }
 
-    public synchronized int putScriptForward(String deviceId) {
-        DeviceForward forward = scriptForwardMap.get(deviceId);
-        if (forward == null) {
-            forward = new DeviceForward();
-            forward.setRemotePort(SCRIPT_REMOTE_PORT);
-            forward.setLocalPort(takeScriptPort());
-            scriptForwardMap.put(deviceId, forward);
+    /**
+     * Reconcile with the forwards in adb server. The forwards whose local port is in the
+     * ranges of this manager are leaked by previous sessions(this method is invoked when
+     * application is started), they are removed in one batch. The forwards created by other
+     * tools are kept.
+     *
+     * @return the count of removed forwards.
+     */
+    public int reconcile() throws Exception {
+        int count = 0;
+        for (AdbShardManager.AdbShard shard : AdbShardManager.getInstance().getShards()) {
+            count += reconcile(shard.getAddress());
         }
-        return forward.getLocalPort();
+        return count;
     }
 
-    public synchronized DeviceForward removeScriptForward(String deviceId) {
-        DeviceForward forward = scriptForwardMap.remove(deviceId);
-        if (forward == null) {
-            return null;
+    private int reconcile(InetSocketAddress adbSockAddr) throws Exception {
+        List<String[]> forwardList = CXAdbHelper.listForward(adbSockAddr);
+        //serial -> leaked local addresses
+        Map<String, List<String>> leakedMap = new HashMap<>();
+        //serial -> count of all forwards
+        Map<String, Integer> totalMap = new HashMap<>();
+        for (String[] forward : forwardList) {
+            String serial = forward[0];
+            Integer total = totalMap.get(serial);
+            totalMap.put(serial, total == null ? 1 : total + 1);
+
+            int port = parseTcpPort(forward[1]);
+            if (port == -1 || getRange(port) == null) {
+                continue;
+            }
+            List<String> leakedList = leakedMap.get(serial);
+            if (leakedList == null) {
+                leakedList = new ArrayList<>();
+                leakedMap.put(serial, leakedList);
+            }
+            leakedList.add(forward[1]);
         }
-        returnPort(scriptPortQueue, forward.getLocalPort());
-        return forward;
-    }
 
-    private void returnPort(Set<Integer> portQueue, int localPort) {
-        portQueue.add(localPort);
-    }
-    private int takeMessagePort() {
-        int port = -1;
-        for (int p : messagePortQueue) {
-            port = p;
-            break;
+        int count = 0;
+        for (Map.Entry<String, List<String>> entry : leakedMap.entrySet()) {
+            String serial = entry.getKey();
+            List<String> leakedList = entry.getValue();
+            try {
+                if (leakedList.size() == totalMap.get(serial)) {
+                    CXAdbHelper.removeAllForward(adbSockAddr, serial);
+                } else {
+                    for (String local : leakedList) {
+                        CXAdbHelper.removeForward(adbSockAddr, serial, local);
+                    }
+                }
+                count += leakedList.size();
+            } catch (Exception e) {
+                logger.error("Removing leaked forwards of device(" + serial + ") failed: " + e.getMessage(), e);
+            }
         }
-        if (port != -1) {
-            messagePortQueue.remove(port);
-            return port;
+        if (count > 0) {
+            logger.info("{} leaked forwards are removed from adb server({}): {}", count, adbSockAddr.getPort(), leakedMap);
         }
+        return count;
+    }
 
-        if (currentMessagePort > 29999) {
-            throw new RuntimeException("allocating message forward port failed: the max value is reached: " + currentMessagePort);
-        }
-        return currentMessagePort++;
+    private int putForward(ConcurrentHashMap<String, DeviceForward> forwardMap, final PortRange range,
+                           String deviceId, final int remotePort, final String remoteSocketName) {
+        DeviceForward forward = forwardMap.computeIfAbsent(deviceId,
+                new java.util.function.Function<String, DeviceForward>() {
+            @Override
+            public DeviceForward apply(String id) {
+                DeviceForward forward = new DeviceForward();
+                forward.setId(id);
+                if (remoteSocketName != null) {
+                    forward.setRemoteSocketName(remoteSocketName);
+                } else {
+                    forward.setRemotePort(remotePort);
+                }
+                forward.setLocalPort(range.take());
+                return forward;
+            }
+        });
+        return forward.getLocalPort();
     }
-    private int takeImagePort() {
-        int port = -1;
-        for (int p : imagePortQueue) {
-            port = p;
-            break;
+
+    /**
+     * Reclaim the local port of forward, it should be invoked after the forward is removed from adb server,
+     * otherwise the port may be handed out while it is still bound by adb. The port is probed again
+     * before it is reused, so it can be released even if the removing fails.
+     */
+    public void releaseForward(DeviceForward forward) {
+        if (forward == null) {
+            return;
         }
-        if (port != -1) {
-            imagePortQueue.remove(port);
-            return port;
+        PortRange range = getRange(forward.getLocalPort());
+        if (range != null) {
+            range.clear(forward.getLocalPort());
         }
+    }
 
-        if (currentImagePort > 39999) {
-            throw new RuntimeException("allocating image forward port failed: the max value is reached: " + currentImagePort);
-        }
-        return currentImagePort++;
+    /**
+     * Remove the record of forward, the port is still marked as used until {@link #releaseForward(DeviceForward)}.
+     */
+    private DeviceForward removeForward(ConcurrentHashMap<String, DeviceForward> forwardMap, String deviceId) {
+        return forwardMap.remove(deviceId);
     }
-    private int takeMonkeyPort() {
-        int port = -1;
-        for (int p : monkeyPortQueue) {
-            port = p;
-            break;
-        }
-        if (port != -1) {
-            monkeyPortQueue.remove(port);
-            return port;
-        }
 
-        if (currentMonkeyPort > 44999) {
-            throw new RuntimeException("allocating monkey forward port failed: the max value is reached: " + currentMonkeyPort);
+    private PortRange getRange(int port) {
+        if (messageRange.contains(port)) {
+            return messageRange;
+        } else if (imageRange.contains(port)) {
+            return imageRange;
+        } else if (monkeyRange.contains(port)) {
+            return monkeyRange;
+        } else if (scriptRange.contains(port)) {
+            return scriptRange;
         }
-        return currentMonkeyPort++;
+        return null;
     }
-    private int takeScriptPort() {
-        int port = -1;
-        for (int p : scriptPortQueue) {
-            port = p;
-            break;
+
+    private static int parseTcpPort(String address) {
+        if (address == null || !address.startsWith("tcp:")) {
+            return -1;
         }
-        if (port != -1) {
-            scriptPortQueue.remove(port);
-            return port;
+        try {
+            return Integer.parseInt(address.substring(4));
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
 
-        if (currentScriptPort > 45999) {
-            throw new RuntimeException("allocating script forward port failed: the max value is reached: " + currentScriptPort);
+    static boolean isPortAvailable(int port) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(false);
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return true;
+        } catch (IOException e) {
+            return false;
         }
-        return currentScriptPort++;
     }
-
 }
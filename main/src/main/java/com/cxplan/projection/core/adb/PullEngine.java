@@ -0,0 +1,541 @@
+package com.cxplan.projection.core.adb;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.CXAdbHelper;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pull files from devices in chunks.
+ *
+ * <p>A file is split into fixed size chunks, every chunk is read by a 'dd' command over an 'exec:'
+ * stream and is written to its position of local file through a shared {@link FileChannel}.
+ * The chunks of all transfers are executed by one bounded pool, and the bandwidth of all transfers
+ * is limited by a global token bucket(see {@link SettingConstant#KEY_PULL_BANDWIDTH_LIMIT}).
+ *
+ * <p>The content is written to a partial file which is preallocated to the remote size, the finished
+ * chunks are recorded in a sidecar file. An interrupted transfer is resumed from the finished chunks
+ * when the same file is pulled again. The partial file is renamed to the target when all chunks are finished.
+ *
+ * <p>The sync service is used instead if the device doesn't support 'exec:' service.
+ *
+ * @author Kenny
+ * created on 2019/5/22
+ */
+public class PullEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PullEngine.class);
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 4;
+    private static final int CHUNK_RETRY_COUNT = 2;
+    private static final int MAX_REPORT_COUNT = 32;
+    private static final String PART_SUFFIX = ".cxpart";
+    private static final String META_SUFFIX = ".cxpart.meta";
+    private static final long META_MAGIC = 0x43585055_4C4C3031L;//CXPULL01
+    private static final int META_HEADER_SIZE = 16;//magic + remote size
+
+    private static class Holder {
+        private static final PullEngine INSTANCE = new PullEngine();
+    }
+
+    public static PullEngine getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * The statistics of a finished transfer.
+     */
+    public static class PullReport {
+        private final String remote;
+        private final String local;
+        private final long size;
+        private final long resumedBytes;
+        private final long transferredBytes;
+        private final long elapsedTime;
+        private final boolean chunked;
+
+        PullReport(String remote, String local, long size, long resumedBytes, long transferredBytes,
+                   long elapsedTime, boolean chunked) {
+            this.remote = remote;
+            this.local = local;
+            this.size = size;
+            this.resumedBytes = resumedBytes;
+            this.transferredBytes = transferredBytes;
+            this.elapsedTime = elapsedTime;
+            this.chunked = chunked;
+        }
+
+        public String getRemote() {
+            return remote;
+        }
+
+        public String getLocal() {
+            return local;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Return the bytes which had been on disk before this transfer.
+         */
+        public long getResumedBytes() {
+            return resumedBytes;
+        }
+
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public boolean isChunked() {
+            return chunked;
+        }
+
+        /**
+         * Return the throughput of this transfer(MB/s).
+         */
+        public double getThroughput() {
+            if (elapsedTime <= 0) {
+                return 0;
+            }
+            return transferredBytes * 1000.0 / elapsedTime / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return "PullReport{" +
+                    "remote='" + remote + '\'' +
+                    ", size=" + size +
+                    ", resumed=" + resumedBytes +
+                    ", transferred=" + transferredBytes +
+                    ", elapsed=" + elapsedTime + "ms" +
+                    ", throughput=" + String.format("%.2f", getThroughput()) + "MB/s" +
+                    ", chunked=" + chunked +
+                    '}';
+        }
+    }
+
+    /**
+     * Limit the rate of bytes shared by all transfers.
+     */
+    static class TokenBucket {
+        private long rate;//bytes per second, 0 means unlimited.
+        private double tokens;
+        private long lastTime = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            if (this.rate != rate) {
+                this.rate = rate;
+                this.tokens = 0;
+                this.lastTime = System.nanoTime();
+            }
+        }
+
+        /**
+         * Take the tokens of specified bytes, the caller is blocked until the tokens are enough.
+         */
+        void acquire(int bytes) throws InterruptedException {
+            long waitTime;
+            synchronized (this) {
+                if (rate <= 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                //at most one second of burst is allowed.
+                tokens = Math.min(rate, tokens + (now - lastTime) * rate / 1e9);
+                lastTime = now;
+                tokens -= bytes;
+                if (tokens >= 0) {
+                    return;
+                }
+                waitTime = (long) (-tokens * 1000 / rate);
+            }
+            if (waitTime > 0) {
+                Thread.sleep(waitTime);
+            }
+        }
+    }
+
+    /**
+     * The state of one transfer shared by its chunks.
+     */
+    private static class Transfer {
+        final IDevice device;
+        final String remote;
+        final File target;
+        final File partFile;
+        final File metaFile;
+        final SyncService.ISyncProgressMonitor monitor;
+        final AtomicLong transferredBytes = new AtomicLong();
+        long size;
+        long resumedBytes;
+        long startTime;
+        FileChannel dataChannel;
+        FileChannel metaChannel;
+
+        Transfer(IDevice device, String remote, String local, SyncService.ISyncProgressMonitor monitor) {
+            this.device = device;
+            this.remote = remote;
+            this.target = new File(local);
+            this.partFile = new File(local + PART_SUFFIX);
+            this.metaFile = new File(local + META_SUFFIX);
+            this.monitor = monitor;
+        }
+
+        int getChunkCount() {
+            return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+
+        void advance(int work) {
+            transferredBytes.addAndGet(work);
+            if (monitor != null) {
+                synchronized (monitor) {
+                    monitor.advance(work);
+                }
+            }
+        }
+
+        void closeChannels() {
+            try {
+                if (dataChannel != null) {
+                    dataChannel.close();
+                }
+            } catch (IOException e) {
+            }
+            try {
+                if (metaChannel != null) {
+                    metaChannel.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private final ExecutorService pool;
+    private final TokenBucket tokenBucket = new TokenBucket();
+    private final LinkedList<PullReport> reportList = new LinkedList<>();
+
+    private PullEngine() {
+        pool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Pull Engine-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+    }
+
+    /**
+     * Pull a file from device. The transfer is resumed if a partial file of previous transfer exists.
+     *
+     * @param device device object.
+     * @param remote the path of file on device.
+     * @param size the size of remote file, it is retrieved from device if the value is not positive.
+     * @param local the local path.
+     * @param monitor the progress monitor, it is notified from the threads of engine, nullable.
+     * @return the future of transfer report.
+     */
+    public CompletableFuture<PullReport> pull(IDevice device, String remote, long size, String local,
+                                              SyncService.ISyncProgressMonitor monitor) {
+        tokenBucket.setRate(Setting.getInstance().getLongProperty(SettingConstant.KEY_PULL_BANDWIDTH_LIMIT, 0) * 1024);
+        final Transfer transfer = new Transfer(device, remote, local, monitor);
+        transfer.size = size;
+        return CompletableFuture.supplyAsync(new java.util.function.Supplier<List<Integer>>() {
+            @Override
+            public List<Integer> get() {
+                return prepare(transfer);
+            }
+        }, pool).thenCompose(new java.util.function.Function<List<Integer>, CompletableFuture<PullReport>>() {
+            @Override
+            public CompletableFuture<PullReport> apply(List<Integer> chunkList) {
+                return pullChunks(transfer, chunkList);
+            }
+        }).handle(new java.util.function.BiFunction<PullReport, Throwable, CompletableFuture<PullReport>>() {
+            @Override
+            public CompletableFuture<PullReport> apply(PullReport report, Throwable throwable) {
+                transfer.closeChannels();
+                if (throwable == null) {
+                    return CompletableFuture.completedFuture(report);
+                }
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                if (cause instanceof AdbCommandRejectedException) {
+                    logger.warn("The exec service is rejected by device({}), pull file by sync service: {}",
+                            transfer.device.getSerialNumber(), cause.getMessage());
+                    return CompletableFuture.supplyAsync(new java.util.function.Supplier<PullReport>() {
+                        @Override
+                        public PullReport get() {
+                            return syncPull(transfer);
+                        }
+                    }, pool);
+                }
+                CompletableFuture<PullReport> future = new CompletableFuture<>();
+                future.completeExceptionally(cause);
+                return future;
+            }
+        }).thenCompose(new java.util.function.Function<CompletableFuture<PullReport>, CompletableFuture<PullReport>>() {
+            @Override
+            public CompletableFuture<PullReport> apply(CompletableFuture<PullReport> future) {
+                return future;
+            }
+        }).thenApply(new java.util.function.Function<PullReport, PullReport>() {
+            @Override
+            public PullReport apply(PullReport report) {
+                logger.info("Pulling file is finished: {}", report);
+                synchronized (reportList) {
+                    reportList.addLast(report);
+                    if (reportList.size() > MAX_REPORT_COUNT) {
+                        reportList.removeFirst();
+                    }
+                }
+                if (transfer.monitor != null) {
+                    transfer.monitor.stop();
+                }
+                return report;
+            }
+        });
+    }
+
+    /**
+     * Return the reports of latest transfers.
+     */
+    public List<PullReport> getRecentReports() {
+        synchronized (reportList) {
+            return new ArrayList<>(reportList);
+        }
+    }
+
+    /**
+     * Open the partial file and resolve the unfinished chunks.
+     */
+    private List<Integer> prepare(Transfer transfer) {
+        if (transfer.size <= 0) {
+            transfer.size = querySize(transfer.device, transfer.remote);
+        }
+        int chunkCount = transfer.getChunkCount();
+        List<Integer> chunkList = new ArrayList<>(chunkCount);
+        byte[] finished;
+        try {
+            transfer.metaChannel = new RandomAccessFile(transfer.metaFile, "rw").getChannel();
+            finished = readMeta(transfer.metaChannel, transfer.size, chunkCount);
+            if (finished == null || !transfer.partFile.exists() || transfer.partFile.length() != transfer.size) {
+                finished = new byte[chunkCount];
+                writeMetaHeader(transfer.metaChannel, transfer.size, chunkCount);
+            }
+
+            RandomAccessFile dataFile = new RandomAccessFile(transfer.partFile, "rw");
+            dataFile.setLength(transfer.size);//preallocate
+            transfer.dataChannel = dataFile.getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Opening local file failed(" + transfer.partFile + "): " + e.getMessage(), e);
+        }
+
+        for (int i = 0; i < chunkCount; i++) {
+            if (finished[i] == 0) {
+                chunkList.add(i);
+            } else {
+                transfer.resumedBytes += getChunkLength(transfer, i);
+            }
+        }
+        if (transfer.resumedBytes > 0) {
+            logger.info("Resume pulling file({}) from {} of {} bytes", transfer.remote,
+                    transfer.resumedBytes, transfer.size);
+        }
+
+        if (transfer.monitor != null) {
+            synchronized (transfer.monitor) {
+                transfer.monitor.start((int) transfer.size);
+                if (transfer.resumedBytes > 0) {
+                    transfer.monitor.advance((int) transfer.resumedBytes);
+                }
+            }
+        }
+        transfer.startTime = System.currentTimeMillis();
+        return chunkList;
+    }
+
+    private CompletableFuture<PullReport> pullChunks(final Transfer transfer, List<Integer> chunkList) {
+        CompletableFuture<?>[] futures = new CompletableFuture[chunkList.size()];
+        for (int i = 0; i < futures.length; i++) {
+            final int chunk = chunkList.get(i);
+            futures[i] = CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    pullChunkWithRetry(transfer, chunk);
+                }
+            }, pool);
+        }
+        return CompletableFuture.allOf(futures).thenApply(new java.util.function.Function<Void, PullReport>() {
+            @Override
+            public PullReport apply(Void aVoid) {
+                transfer.closeChannels();
+                complete(transfer);
+                return new PullReport(transfer.remote, transfer.target.getAbsolutePath(), transfer.size,
+                        transfer.resumedBytes, transfer.transferredBytes.get(),
+                        System.currentTimeMillis() - transfer.startTime, true);
+            }
+        });
+    }
+
+    private void pullChunkWithRetry(Transfer transfer, int chunk) {
+        for (int i = 0; ; i++) {
+            try {
+                pullChunk(transfer, chunk);
+                return;
+            } catch (AdbCommandRejectedException e) {
+                throw new CompletionException(e);
+            } catch (Exception e) {
+                if (i >= CHUNK_RETRY_COUNT) {
+                    throw new RuntimeException("Pulling chunk(" + chunk + ") of file(" + transfer.remote
+                            + ") failed: " + e.getMessage(), e);
+                }
+                logger.warn("Pulling chunk({}) of file({}) failed, retry it: {}", chunk, transfer.remote, e.getMessage());
+            }
+        }
+    }
+
+    private void pullChunk(Transfer transfer, int chunk) throws Exception {
+        long offset = (long) chunk * CHUNK_SIZE;
+        long length = getChunkLength(transfer, chunk);
+        String cmd = "dd if='" + transfer.remote + "' bs=" + BLOCK_SIZE + " skip=" + (offset / BLOCK_SIZE)
+                + " count=" + (CHUNK_SIZE / BLOCK_SIZE) + " 2>/dev/null";
+        long received = 0;
+        try (SocketChannel channel = CXAdbHelper.openExec(transfer.device, cmd)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            while (received < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BLOCK_SIZE, length - received));
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    break;
+                }
+                if (count == 0) {
+                    continue;
+                }
+                tokenBucket.acquire(count);
+                buffer.flip();
+                long position = offset + received;
+                while (buffer.hasRemaining()) {
+                    position += transfer.dataChannel.write(buffer, position);
+                }
+                received += count;
+                transfer.advance(count);
+            }
+        }
+        if (received != length) {
+            //the progress of broken chunk is counted again by retry.
+            transfer.advance((int) -received);
+            throw new IOException("The chunk is incomplete: " + received + "/" + length);
+        }
+        //The data is flushed before the chunk is marked as finished.
+        transfer.dataChannel.force(false);
+        ByteBuffer mark = ByteBuffer.wrap(new byte[]{1});
+        transfer.metaChannel.write(mark, META_HEADER_SIZE + chunk);
+    }
+
+    private PullReport syncPull(Transfer transfer) {
+        transfer.closeChannels();
+        transfer.partFile.delete();
+        transfer.metaFile.delete();
+        long startTime = System.currentTimeMillis();
+        try {
+            transfer.device.getSyncService().pullFile(transfer.remote, transfer.partFile.getAbsolutePath(),
+                    transfer.monitor == null ? SyncService.getNullProgressMonitor() : transfer.monitor);
+        } catch (Exception e) {
+            throw new RuntimeException("Pulling file failed(" + transfer.remote + "): " + e.getMessage(), e);
+        }
+        complete(transfer);
+        long size = transfer.target.length();
+        return new PullReport(transfer.remote, transfer.target.getAbsolutePath(), size, 0, size,
+                System.currentTimeMillis() - startTime, false);
+    }
+
+    private void complete(Transfer transfer) {
+        transfer.metaFile.delete();
+        if (transfer.target.exists() && !transfer.target.delete()) {
+            throw new RuntimeException("Deleting existed file failed: " + transfer.target);
+        }
+        if (!transfer.partFile.renameTo(transfer.target)) {
+            throw new RuntimeException("Renaming partial file failed: " + transfer.partFile);
+        }
+    }
+
+    private long getChunkLength(Transfer transfer, int chunk) {
+        return Math.min(CHUNK_SIZE, transfer.size - (long) chunk * CHUNK_SIZE);
+    }
+
+    /**
+     * Read the finished flags of chunks, null is returned if the meta doesn't match the remote file.
+     */
+    private static byte[] readMeta(FileChannel channel, long size, int chunkCount) throws IOException {
+        if (channel.size() != META_HEADER_SIZE + chunkCount) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(META_HEADER_SIZE + chunkCount);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        if (buffer.getLong() != META_MAGIC || buffer.getLong() != size) {
+            return null;
+        }
+        byte[] finished = new byte[chunkCount];
+        buffer.get(finished);
+        return finished;
+    }
+
+    private static void writeMetaHeader(FileChannel channel, long size, int chunkCount) throws IOException {
+        channel.truncate(0);
+        ByteBuffer buffer = ByteBuffer.allocate(META_HEADER_SIZE + chunkCount);
+        buffer.putLong(META_MAGIC).putLong(size);
+        buffer.position(0);
+        buffer.limit(buffer.capacity());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+    }
+
+    private static long querySize(IDevice device, String remote) {
+        String ret = AdbUtil.query("stat -c %s '" + remote + "'", device);
+        if (StringUtil.isNotEmpty(ret)) {
+            try {
+                return Long.parseLong(ret.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        throw new RuntimeException("Retrieving the size of file failed(" + remote + "): " + ret);
+    }
+}
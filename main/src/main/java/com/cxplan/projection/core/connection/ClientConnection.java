@@ -1,9 +1,13 @@
 package com.cxplan.projection.core.connection;
 
+import com.cxplan.projection.net.DispatchFilter;
+import com.cxplan.projection.net.DispatchStatistics;
 import com.cxplan.projection.net.message.JID;
 import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.message.MessageException;
 import com.cxplan.projection.net.message.MessageListener;
+import com.cxplan.projection.net.protocol.IStreamSink;
+import com.cxplan.projection.net.protocol.StreamSinkResolver;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 
@@ -11,6 +15,8 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -18,7 +24,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  * @author kenny
  */
-public class ClientConnection {
+public class ClientConnection implements StreamSinkResolver {
 
     protected JID id;
     protected IoSession messageSession;
@@ -30,6 +36,11 @@ public class ClientConnection {
      */
     protected final Collection<MessageCollector> collectors = new ConcurrentLinkedQueue<MessageCollector>();
 
+    /**
+     * The sinks for byte array fields of responses, the key is message ID.
+     */
+    protected final Map<String, IStreamSink> streamSinkMap = new ConcurrentHashMap<>();
+
     protected PropertyChangeSupport pcs = new PropertyChangeSupport(this);
 
 
@@ -85,6 +96,17 @@ public class ClientConnection {
         messageSession.write(buffer);
     }
 
+    /**
+     * Send a message which has been encoded to device.
+     * The buffer is not changed, so an encoded message can be sent many times.
+     */
+    public void sendEncodedMessage(IoBuffer buffer) throws MessageException {
+        if (messageSession == null || !messageSession.isConnected()) {
+            throw new MessageException("与客户端无连接，无法发送, 当前连接：" + id);
+        }
+        messageSession.write(buffer.duplicate());
+    }
+
     /**
      * Connect to server.
      */
@@ -145,6 +167,16 @@ public class ClientConnection {
 
         return ret;
     }
+
+    /**
+     * Return the dispatching statistics of message session.
+     *
+     * @return statistics object, a null value will be returned if the connection is not connected.
+     */
+    public DispatchStatistics getDispatchStatistics() {
+        return DispatchFilter.getStatistics(messageSession);
+    }
+
     /**
      * Remove a packet collector of this connection.
      *
@@ -174,6 +206,30 @@ public class ClientConnection {
         return collector.processMessage(message);
     }
 
+    /**
+     * Register a sink for the byte array field of message with specified ID.
+     * The content of field will be written to sink directly instead of being buffered in memory.
+     * The sink is used only once.
+     *
+     * @param messageId the ID of message.
+     * @param sink the stream sink.
+     */
+    public void registerStreamSink(String messageId, IStreamSink sink) {
+        streamSinkMap.put(messageId, sink);
+    }
+
+    public IStreamSink removeStreamSink(String messageId) {
+        return streamSinkMap.remove(messageId);
+    }
+
+    @Override
+    public IStreamSink resolveStreamSink(String messageId, String command, String key) {
+        if (streamSinkMap.isEmpty()) {
+            return null;
+        }
+        return streamSinkMap.remove(messageId);
+    }
+
     public void addPropertyListener(PropertyChangeListener listener) {
         pcs.addPropertyChangeListener(listener);
     }
@@ -4,6 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kenny
@@ -11,23 +13,52 @@ import java.util.*;
  */
 public class ReconnectionManager {
     private static final Logger logger = LoggerFactory.getLogger(ReconnectionManager.class);
-    // the connections need to be reconnected.
-    private Set<ConnectionMeta> connectionSet;
-    private Set<ConnectionMeta> waitingSet;
-    private Thread reconnectionThread;
+
+    /**
+     * The attempts of all managers are scheduled by a shared executor.
+     */
+    private static final ScheduledExecutorService scheduler;
+    static {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4, new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Reconnection Scheduler-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT_ATTEMPTS = 4;
+    //The base delay of backoff.
+    protected static final long BASE_DELAY = 1000;
+    //The max delay of backoff.
+    protected static final long MAX_DELAY = 30000;
+    //The delay of attempt which is postponed because of concurrent limit.
+    protected static final long THROTTLE_DELAY = 300;
+
+    // the connections need to be reconnected, the key is connection ID.
+    private final Map<String, ConnectionMeta> connectionMap = new ConcurrentHashMap<>();
+    private final Map<String, RetryStatistics> statisticsMap = new ConcurrentHashMap<>();
+    //limit the count of attempts in progress, the adb and device startup are expensive.
+    private final Semaphore attemptPermits;
+    private final Random random = new Random();
     protected String title;
 
     // Holds the state of the reconnection
-    protected boolean done = true;
+    protected volatile boolean done = true;
     protected int maxTryCount = 20000;
 
-    protected boolean isInLoop;
-
     public ReconnectionManager(String title) {
+        this(title, DEFAULT_MAX_CONCURRENT_ATTEMPTS);
+    }
+
+    public ReconnectionManager(String title, int maxConcurrentAttempts) {
         this.title = title;
-        connectionSet = Collections.synchronizedSet(new HashSet<ConnectionMeta>());
-        waitingSet = Collections.synchronizedSet(new HashSet<ConnectionMeta>());
-        isInLoop = false;
+        this.attemptPermits = new Semaphore(maxConcurrentAttempts);
     }
 
     public void openMonitor() {
@@ -35,6 +66,9 @@ public class ReconnectionManager {
     }
     public void closeMonitor() {
         done = true;
+        for (ConnectionMeta meta : new ArrayList<>(connectionMap.values())) {
+            removeReconnect(meta.connection, false);
+        }
     }
 
     public boolean isMonitoring() {
@@ -42,8 +76,8 @@ public class ReconnectionManager {
     }
 
     /**
-     * Add a connection to reconnect queue. The connection should wait for next attempt
-     * if the reconnect thread is in loop.
+     * Add a connection to reconnect queue. The first attempt is scheduled after a random delay,
+     * so the connections dropped at the same time don't retry in lockstep.
      *
      * The return value indicates whether given connection is in reconnect queue.
      *
@@ -57,28 +91,20 @@ public class ReconnectionManager {
             return false;
         }
 
-        ConnectionMeta meta = new ConnectionMeta();
-        meta.connection = connection;
-        meta.lastAttemptTime = System.currentTimeMillis();
-        if (isInLoop) {
-            if (connectionSet.contains(meta)) {
-                logger.info("The {} ({}) is executing reconnection operation.", title, id);
-            } else {
-                if (waitingSet.add(meta)) {
-                    logger.info("The {} ({}) should wait for next attempt.", title, id);
-                } else {
-                    logger.info("The {} ({}) should wait for next attempt(already in waiting queue).", title, id);
-                }
+        ConnectionMeta meta = new ConnectionMeta(connection);
+        ConnectionMeta old = connectionMap.putIfAbsent(id, meta);
+        if (old != null) {
+            if (old.connection != connection) {
+                //the connection object is replaced.
+                old.connection = connection;
             }
-
-            return true;
-        }
-        if (connectionSet.add(meta)) {
-            logger.info("The {} ({}) is added to reconnection queue." , title, id);
-            reconnect();
-        } else {
             logger.info("The {} ({}) exists in queue already!", title, id);
+            return true;
         }
+
+        getRetryStatistics(id, true).recordDisconnected();
+        logger.info("The {} ({}) is added to reconnection queue." , title, id);
+        schedule(meta, nextDelay(0));
         return true;
     }
 
@@ -107,91 +133,79 @@ public class ReconnectionManager {
     }
 
     /**
-     * Starts a reconnection mechanism if it was configured to do that.
-     * The algorithm is been executed when the first connection error is detected.
-     * <p/>
-     * The reconnection mechanism will try to reconnect periodically in this way:
-     * <ol>
-     * <li>First it will try 6 times every 10 seconds.
-     * <li>Then it will try 10 times every 1 minute.
-     * <li>Finally it will try indefinitely every 5 minutes.
-     * </ol>
+     * Return the delay of next attempt, exponential backoff with full jitter:
+     * random(0, min(MAX_DELAY, BASE_DELAY * 2^attempts)).
+     *
+     * @param attempts the count of attempts which have been made.
      */
-    synchronized protected void reconnect() {
-        // Since there is no thread running, creates a new one to attempt
-        // the reconnection.
-        // avoid to run duplicated reconnectionThread -- fd: 16/09/2010
-        if (reconnectionThread!=null && reconnectionThread.isAlive()) return;
-
-        reconnectionThread = new Thread("Device Reconnection monitor") {
-
-            /**
-             * The process will try the reconnection until the connection succeed or the user
-             * cancell it
-             */
-            public void run() {
-                Map<String, Integer> tryCountMap = new HashMap<>();
-                while (true) {
-                    if (connectionSet.size() > 0) {
-                        List<ConnectionMeta> connectionList;
-                        try {
-                            connectionList = new ArrayList<>(connectionSet);
-                        } catch (Exception ex) {
-                            try {
-                                Thread.sleep(100);
-                            } catch (InterruptedException e) {
-                            }
-                            continue;
-                        }
-
-                        isInLoop = true;
-                        for (ConnectionMeta meta : connectionList) {
-                            Integer tryCount = tryCountMap.get(meta.connection.getJId().getId());
-                            if (tryCount == null) {
-                                tryCount = 0;
-                            }
-                            if (isReconnectionAllowed(meta.connection) && meta.isTimeUp()) {
-                                try {
-                                    meta.lastAttemptTime = System.currentTimeMillis();
-                                    if (!isConnected(meta.connection)) {
-                                        meta.connection.connect();
-                                    }
-                                } catch (Exception e) {
-                                    logger.error("[" + meta.connection.getJId().getId() + "]尝试重新连接手机服务失败: " + e.getMessage(), e);
-                                }finally {
-                                    tryCount++;
-                                    logger.info("[" + meta.connection.getJId().getId() + "]try to reconnect: " + tryCount);
-                                    if (tryCount > maxTryCount) {
-                                        connectionSet.remove(meta);
-                                    } else {
-                                        tryCountMap.put(meta.connection.getJId().getId(), tryCount);
-                                    }
-                                }
-                            }
-                        }
-                        isInLoop = false;
-                        if (waitingSet.size() > 0) {
-                            logger.info("add waiting connection: " + waitingSet.size());
-                            connectionSet.addAll(waitingSet);
-                            waitingSet.clear();
-                        }
-                    } else {
-                        logger.info("Reconnection is finished!");
-                        break;
-                    }
-
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                    }
+    protected long nextDelay(int attempts) {
+        long ceiling = BASE_DELAY << Math.min(attempts, 16);
+        if (ceiling > MAX_DELAY || ceiling <= 0) {
+            ceiling = MAX_DELAY;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
 
+    private void schedule(final ConnectionMeta meta, final long delay) {
+        if (done) {
+            return;
+        }
+        try {
+            meta.future = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(meta, delay);
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.error("Scheduling reconnection failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Make an attempt of reconnection, and schedule next attempt if it is failed.
+     */
+    private void attempt(ConnectionMeta meta, long delay) {
+        String id = meta.getId();
+        if (connectionMap.get(id) != meta) {
+            return;//removed
+        }
+        if (!isReconnectionAllowed(meta.connection)) {
+            return;
+        }
+        RetryStatistics statistics = getRetryStatistics(id, true);
+        if (!attemptPermits.tryAcquire()) {
+            statistics.recordThrottled();
+            schedule(meta, THROTTLE_DELAY + nextDelay(0) / 2);
+            return;
+        }
 
+        try {
+            meta.attempts++;
+            statistics.recordAttempt(delay);
+            logger.info("[{}]try to reconnect {}: {}", id, title, meta.attempts);
+            if (!isConnected(meta.connection)) {
+                meta.connection.connect();
             }
-        };
-        reconnectionThread.setName(title + " Reconnection Manager");
-        reconnectionThread.setDaemon(true);
-        reconnectionThread.start();
+        } catch (Throwable e) {
+            statistics.recordFailure(e);
+            logger.error("[" + id + "]尝试重新连接手机服务失败: " + e.getMessage(), e);
+        } finally {
+            attemptPermits.release();
+        }
+
+        if (connectionMap.get(id) != meta) {
+            return;
+        }
+        if (meta.attempts >= maxTryCount) {
+            logger.warn("[{}]The reconnection of {} is aborted: {}", id, title, statistics);
+            removeReconnect(meta.connection, false);
+            return;
+        }
+        //If the connection is connected, the next round will remove it when the connected event is missed.
+        schedule(meta, nextDelay(meta.attempts));
     }
 
     /**
@@ -202,69 +216,72 @@ public class ReconnectionManager {
      * @param finished the case flag. true: reconnection is finished successfully, false: aborted.
      */
     public void removeReconnect(ClientConnection connection, boolean finished) {
-        ConnectionMeta meta = new ConnectionMeta();
-        meta.connection = connection;
-        if (connectionSet.remove(meta)) {
-            if (finished) {
-                logger.info("The {} reconnection is successfully: {}", title, connection.getJId().getId());
-            } else {
-                logger.info("The reconnection to {}({}) should be ignored: the {} is removed",
-                        title, meta.connection.getJId().getId(), title);
-            }
+        String id = connection.getJId().getId();
+        ConnectionMeta meta = connectionMap.remove(id);
+        if (meta == null) {
+            return;
+        }
+        if (meta.future != null) {
+            meta.future.cancel(false);
         }
-        if (waitingSet.remove(meta)) {
-            if (finished) {
-                logger.info("The {}({}) reconnection should be ignored: the {} has connected to controller.",
-                        title, connection.getJId().getId());
-            } else {
-                logger.info("The {}({}) is removed from waiting queue: the {} is onRemoved",
-                        title, meta.connection.getJId().getId(), title);
+        RetryStatistics statistics = getRetryStatistics(id, true);
+        statistics.recordFinished(finished);
+        if (finished) {
+            logger.info("The {} reconnection is successfully: {}, {}", title, id, statistics);
+        } else {
+            logger.info("The reconnection to {}({}) should be ignored: the {} is removed",
+                    title, id, title);
+        }
+    }
+
+    /**
+     * Return the retry statistics of specified connection.
+     *
+     * @param id the connection ID.
+     * @return statistics object, a null value will be returned if the connection has never been reconnected.
+     */
+    public RetryStatistics getRetryStatistics(String id) {
+        return getRetryStatistics(id, false);
+    }
+
+    public Collection<RetryStatistics> getAllRetryStatistics() {
+        return Collections.unmodifiableCollection(statisticsMap.values());
+    }
+
+    /**
+     * Return the count of connections in reconnecting.
+     */
+    public int getReconnectingCount() {
+        return connectionMap.size();
+    }
+
+    private RetryStatistics getRetryStatistics(String id, boolean create) {
+        RetryStatistics statistics = statisticsMap.get(id);
+        if (statistics == null && create) {
+            statistics = new RetryStatistics(id);
+            RetryStatistics old = statisticsMap.putIfAbsent(id, statistics);
+            if (old != null) {
+                statistics = old;
             }
         }
+        return statistics;
     }
+
     protected class ConnectionMeta {
-        public ClientConnection connection;
+        public volatile ClientConnection connection;
         /**
          * Holds the current number of reconnection attempts
          */
-        int attempts = 0;
-
-        long lastAttemptTime = 0;
+        volatile int attempts = 0;
 
-        public ConnectionMeta(){}
+        volatile ScheduledFuture<?> future;
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof ConnectionMeta)) return false;
-
-            ConnectionMeta that = (ConnectionMeta) o;
-
-            return connection.getJId().getId().equals(that.connection.getJId().getId());
-        }
-
-        @Override
-        public int hashCode() {
-            return connection.getJId().getId().hashCode();
+        public ConnectionMeta(ClientConnection connection) {
+            this.connection = connection;
         }
 
-        public boolean isTimeUp() {
-            return (System.currentTimeMillis() - lastAttemptTime) >= (timeDelay()*1000);
-        }
-        /**
-         * Returns the number of seconds until the next reconnection attempt.
-         *
-         * @return the number of seconds until the next reconnection attempt.
-         */
-        private int timeDelay() {
-            attempts++;
-            if (attempts < 3) {
-                return 1;
-            } else if (attempts < 100) {
-                return 5;
-            } else {
-                return 10;
-            }
+        public String getId() {
+            return connection.getJId().getId();
         }
     }
 }
@@ -0,0 +1,118 @@
+package com.cxplan.projection.core.connection;
+
+/**
+ * The statistics of reconnection for one connection.
+ *
+ * @author Kenny
+ * created on 2019/5/15
+ */
+public class RetryStatistics {
+
+    private final String id;
+    private int attempts;
+    private int failures;
+    private int successes;
+    //The count of attempts which are postponed because of concurrent limit.
+    private int throttled;
+    private long lastAttemptTime;
+    private long lastDelay;
+    private String lastError;
+    //The time when the connection is lost, 0 means the connection is not in reconnecting.
+    private long disconnectedTime;
+    private long lastDowntime;
+
+    public RetryStatistics(String id) {
+        this.id = id;
+    }
+
+    synchronized void recordDisconnected() {
+        if (disconnectedTime == 0) {
+            disconnectedTime = System.currentTimeMillis();
+        }
+    }
+
+    synchronized void recordAttempt(long delay) {
+        attempts++;
+        lastAttemptTime = System.currentTimeMillis();
+        lastDelay = delay;
+    }
+
+    synchronized void recordFailure(Throwable error) {
+        failures++;
+        lastError = error == null ? null : error.getMessage();
+    }
+
+    synchronized void recordThrottled() {
+        throttled++;
+    }
+
+    synchronized void recordFinished(boolean success) {
+        if (success) {
+            successes++;
+        }
+        if (disconnectedTime > 0) {
+            lastDowntime = System.currentTimeMillis() - disconnectedTime;
+            disconnectedTime = 0;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized int getSuccesses() {
+        return successes;
+    }
+
+    public synchronized int getThrottled() {
+        return throttled;
+    }
+
+    public synchronized long getLastAttemptTime() {
+        return lastAttemptTime;
+    }
+
+    /**
+     * Return the delay(milliseconds) before last attempt.
+     */
+    public synchronized long getLastDelay() {
+        return lastDelay;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Return the time(milliseconds) from disconnection to reconnection of last round.
+     */
+    public synchronized long getLastDowntime() {
+        return lastDowntime;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return disconnectedTime > 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryStatistics{" +
+                "id='" + id + '\'' +
+                ", attempts=" + attempts +
+                ", failures=" + failures +
+                ", successes=" + successes +
+                ", throttled=" + throttled +
+                ", lastDelay=" + lastDelay +
+                ", lastDowntime=" + lastDowntime +
+                ", lastError='" + lastError + '\'' +
+                '}';
+    }
+}
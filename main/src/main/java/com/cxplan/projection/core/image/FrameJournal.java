@@ -0,0 +1,291 @@
+package com.cxplan.projection.core.image;
+
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.util.SystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keep the latest frames of device in a ring buffer for replay.
+ *
+ * <p>The jpeg data of frames is copied into a memory-mapped file one after another, the oldest frames
+ * are overwritten when the end is reached. The offset, length and timestamp of frames are kept in
+ * memory. Only the frames in the retention time(see {@link SettingConstant#KEY_FRAME_JOURNAL_SECONDS})
+ * are returned by {@link #snapshot()}.
+ *
+ * <p>The file is mapped lazily: it starts small and grows only if the frames in retention time don't fit in it,
+ * up to the capacity(see {@link SettingConstant#KEY_FRAME_JOURNAL_SIZE}). The writing wraps to the beginning
+ * as soon as the frames there are out of retention.
+ *
+ * <p>The journal is a {@link FrameListener} of {@link ImageSessionManager} in the image dispatch path,
+ * the cost of a frame is one copy of its data. It doesn't keep the image stream alive.
+ *
+ * @author Kenny
+ * created on 2019/5/24
+ */
+public class FrameJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameJournal.class);
+
+    public static final int DEFAULT_RETENTION_SECONDS = 30;
+    public static final int DEFAULT_CAPACITY = 64;//MB
+    private static final int MAX_ENTRY_COUNT = 16 * 1024;
+    private static final int INITIAL_SIZE = 4 * 1024 * 1024;
+
+    //device id -> journal
+    private static final Map<String, FrameJournal> journalMap = new ConcurrentHashMap<>();
+
+    static {
+        ImageSessionManager.getInstance().addFrameListener(new FrameListener() {
+            @Override
+            public void onFrame(String deviceId, byte[] data, int length, long timestamp) {
+                FrameJournal journal = journalMap.get(deviceId);
+                if (journal != null) {
+                    journal.append(data, length, timestamp);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the journal of device, the journal is created if it doesn't exist.
+     * Null is returned if the journal is disabled.
+     */
+    public static FrameJournal open(String deviceId) {
+        FrameJournal journal = journalMap.get(deviceId);
+        if (journal != null) {
+            return journal;
+        }
+        int seconds = Setting.getInstance().getIntProperty(SettingConstant.KEY_FRAME_JOURNAL_SECONDS,
+                DEFAULT_RETENTION_SECONDS);
+        if (seconds <= 0) {
+            return null;
+        }
+        int capacity = Setting.getInstance().getIntProperty(SettingConstant.KEY_FRAME_JOURNAL_SIZE, DEFAULT_CAPACITY);
+        synchronized (journalMap) {
+            journal = journalMap.get(deviceId);
+            if (journal == null) {
+                try {
+                    journal = new FrameJournal(deviceId, capacity * 1024 * 1024, seconds * 1000L);
+                } catch (IOException e) {
+                    logger.error("Creating frame journal failed(" + deviceId + "): " + e.getMessage(), e);
+                    return null;
+                }
+                journalMap.put(deviceId, journal);
+            }
+            return journal;
+        }
+    }
+
+    public static FrameJournal get(String deviceId) {
+        return journalMap.get(deviceId);
+    }
+
+    /**
+     * Release the journal of device, it is invoked when the device is offline.
+     */
+    public static void close(String deviceId) {
+        FrameJournal journal = journalMap.remove(deviceId);
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * The position of a frame in journal.
+     */
+    public static class FrameEntry {
+        private final long sequence;
+        private final long timestamp;
+        private final int offset;
+        private final int length;
+
+        FrameEntry(long sequence, long timestamp, int offset, int length) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final String deviceId;
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final int capacity;
+    private final long retention;
+
+    //the ring of entries, the oldest one is at 'head'.
+    private final long[] timestamps = new long[MAX_ENTRY_COUNT];
+    private final int[] offsets = new int[MAX_ENTRY_COUNT];
+    private final int[] lengths = new int[MAX_ENTRY_COUNT];
+    private int head;
+    private int count;
+    //the sequence of oldest entry.
+    private long headSequence;
+    private int writePosition;
+    private boolean paused;
+    private boolean closed;
+
+    private FrameJournal(String deviceId, int capacity, long retention) throws IOException {
+        this.deviceId = deviceId;
+        this.capacity = capacity;
+        this.retention = retention;
+        this.file = SystemUtil.createConfigFile("journal" + SystemUtil.separator
+                + deviceId.replaceAll("[^\\w.-]", "_") + ".journal");
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(INITIAL_SIZE, capacity));
+        file.deleteOnExit();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Pause or resume the journal, the frames received in pause are not kept.
+     * It is paused while the frames are replayed, so they are not overwritten.
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    synchronized void append(byte[] data, int length, long timestamp) {
+        if (paused || closed || length > capacity) {
+            return;
+        }
+        if (writePosition + length > buffer.capacity() && !prepareWrite(length)) {
+            return;
+        }
+        //evict the frames overwritten by this one.
+        while (count > 0 && (count == MAX_ENTRY_COUNT || overlaps(head, writePosition, length))) {
+            evictHead();
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(writePosition);
+        target.put(data, 0, length);
+
+        int index = (head + count) % MAX_ENTRY_COUNT;
+        timestamps[index] = timestamp;
+        offsets[index] = writePosition;
+        lengths[index] = length;
+        count++;
+        writePosition += length;
+
+        //evict the frames out of retention.
+        while (count > 1 && timestamp - timestamps[head] > retention) {
+            evictHead();
+        }
+    }
+
+    /**
+     * Return the entries of frames kept in journal, from the oldest to the newest.
+     */
+    public synchronized List<FrameEntry> snapshot() {
+        List<FrameEntry> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % MAX_ENTRY_COUNT;
+            list.add(new FrameEntry(headSequence + i, timestamps[index], offsets[index], lengths[index]));
+        }
+        return list;
+    }
+
+    /**
+     * Read the jpeg data of frame.
+     *
+     * @return the jpeg data, null is returned if the frame has been overwritten.
+     */
+    public synchronized byte[] readFrame(FrameEntry entry) {
+        if (closed || entry.sequence < headSequence || entry.sequence >= headSequence + count) {
+            return null;
+        }
+        byte[] data = new byte[entry.length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(entry.offset);
+        source.get(data);
+        return data;
+    }
+
+    /**
+     * The frame doesn't fit in the rest of mapped file, wrap to the beginning or grow the file.
+     *
+     * @return false if there is no space for the frame.
+     */
+    private boolean prepareWrite(int length) {
+        //the oldest frames are at the end of file if the writing has wrapped.
+        boolean wrapped = count > 0 && offsets[head] > offsets[(head + count - 1) % MAX_ENTRY_COUNT];
+        if (!wrapped && (count == 0 || offsets[head] >= length)) {
+            //the frames at the beginning are out of retention.
+            writePosition = 0;
+            return true;
+        }
+        if (writePosition + length <= capacity && grow(writePosition + length)) {
+            return true;
+        }
+        //the frames after write position are the oldest ones, they are dropped.
+        while (count > 0 && offsets[head] >= writePosition) {
+            evictHead();
+        }
+        writePosition = 0;
+        return length <= buffer.capacity() || grow(length);
+    }
+
+    private boolean grow(int minSize) {
+        int size = Math.min(capacity, Math.max(buffer.capacity() * 2, minSize));
+        try {
+            //the file is extended by mapping, the old mapping is released by GC.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return true;
+        } catch (IOException e) {
+            logger.error("Growing frame journal failed(" + deviceId + "): " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean overlaps(int index, int position, int length) {
+        return offsets[index] < position + length && offsets[index] + lengths[index] > position;
+    }
+
+    private void evictHead() {
+        head = (head + 1) % MAX_ENTRY_COUNT;
+        count--;
+        headSequence++;
+    }
+
+    private synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        count = 0;
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        file.delete();
+    }
+}
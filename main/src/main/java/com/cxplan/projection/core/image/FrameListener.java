@@ -0,0 +1,21 @@
+package com.cxplan.projection.core.image;
+
+/**
+ * The listener of complete frames in the image stream of devices.
+ * It is notified by the image dispatch thread, so it should return quickly.
+ *
+ * @author Kenny
+ * created on 2019/5/26
+ */
+public interface FrameListener {
+
+    /**
+     * A frame of device is received.
+     *
+     * @param deviceId the device ID.
+     * @param data the jpeg data, the array is reused after this method returns.
+     * @param length the length of jpeg data.
+     * @param timestamp the time when the frame is received(milliseconds).
+     */
+    void onFrame(String deviceId, byte[] data, int length, long timestamp);
+}
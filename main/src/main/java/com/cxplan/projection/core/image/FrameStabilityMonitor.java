@@ -0,0 +1,260 @@
+package com.cxplan.projection.core.image;
+
+import com.cxplan.projection.util.ImageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Watch the image stream of devices and tell when the screen becomes stable,
+ * that is, no pixel is changed for a period of time.
+ *
+ * <p>The device sends a frame only when its screen is changed, so a frame with different data is a change.
+ * Comparing the data of frames is cheap. When a region of screen is watched, the changed frames are decoded
+ * and the sampled pixels of region are compared, the decoding is done only while someone is waiting on a region.
+ * The time of the last changed frame is kept, so a wait on a screen which is already stable ends at once.
+ *
+ * @author Kenny
+ * created on 2019/5/26
+ */
+public class FrameStabilityMonitor implements FrameListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameStabilityMonitor.class);
+
+    //the max count of sampled pixels along one side of region.
+    private static final int SAMPLE_COUNT = 64;
+
+    private static class Holder {
+        private static final FrameStabilityMonitor INSTANCE = new FrameStabilityMonitor();
+    }
+
+    public static FrameStabilityMonitor getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static class DeviceState {
+        long frameCrc;
+        //the time of the last changed frame, 0 means no frame is received.
+        long lastChangeTime;
+        //the copy of the last changed frame, it is decoded when a region is watched.
+        byte[] frameData = new byte[0];
+        int frameLength;
+        BufferedImage frameImage;
+        final List<Waiter> waiterList = new CopyOnWriteArrayList<>();
+
+        /**
+         * Return the decoded image of the last changed frame, null if there is no frame or decoding fails.
+         */
+        BufferedImage getFrameImage() {
+            if (frameImage == null && frameLength > 0) {
+                frameImage = ImageUtil.readImage(frameData, 0, frameLength);
+            }
+            return frameImage;
+        }
+    }
+
+    /**
+     * A caller waiting for the screen(region) of device to be stable.
+     */
+    private class Waiter implements Runnable {
+        final DeviceState state;
+        final Rectangle2D region;
+        final long stableTime;
+        final long deadline;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        volatile long lastChangeTime;
+        //the hash of sampled pixels in region, null means no frame is decoded yet.
+        Long regionHash;
+
+        /**
+         * It is invoked with the lock of state, the stable period is counted from the last changed frame.
+         */
+        Waiter(DeviceState state, Rectangle2D region, long stableTime, long deadline) {
+            this.state = state;
+            this.region = region;
+            this.stableTime = stableTime;
+            this.deadline = deadline;
+            this.lastChangeTime = state.lastChangeTime > 0 ? state.lastChangeTime : System.currentTimeMillis();
+            if (region != null) {
+                BufferedImage image = state.getFrameImage();
+                if (image != null) {
+                    regionHash = hashRegion(image, region);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long stableAt = lastChangeTime + stableTime;
+            if (now >= stableAt) {
+                finish(true);
+            } else if (now >= deadline) {
+                finish(false);
+            } else {
+                scheduler.schedule(this, Math.min(stableAt, deadline) - now, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void finish(boolean stable) {
+            future.complete(stable);
+        }
+    }
+
+    //device id -> state
+    private final Map<String, DeviceState> stateMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private FrameStabilityMonitor() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Frame Stability");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        ImageSessionManager.getInstance().addFrameListener(this);
+    }
+
+    /**
+     * Wait until the screen of device is not changed for a period of time.
+     * The period is counted from the last changed frame, so the future is completed at once
+     * if the screen has been stable for the period.
+     *
+     * @param deviceId the device ID.
+     * @param region the watched region of screen, the bounds are relative to the size of frame(0~1).
+     *               Null means the whole screen.
+     * @param stableTime the time(milliseconds) without change.
+     * @param timeout the max time(milliseconds) of waiting.
+     * @return the future which is completed with true if the screen is stable, false if timeout.
+     */
+    public CompletableFuture<Boolean> awaitStable(String deviceId, Rectangle2D region, long stableTime, long timeout) {
+        final DeviceState state = getState(deviceId);
+        final Waiter waiter;
+        synchronized (state) {
+            waiter = new Waiter(state, region, stableTime, System.currentTimeMillis() + timeout);
+            state.waiterList.add(waiter);
+        }
+        //the waiter is removed however the future is completed(stable, timeout or cancelled by caller).
+        waiter.future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean stable, Throwable throwable) {
+                state.waiterList.remove(waiter);
+            }
+        });
+        //it is completed at once if the screen is stable already, otherwise it is scheduled.
+        waiter.run();
+        return waiter.future;
+    }
+
+    /**
+     * Release the state of device, it is invoked when the device is offline.
+     */
+    public void remove(String deviceId) {
+        DeviceState state = stateMap.remove(deviceId);
+        if (state != null) {
+            for (Waiter waiter : state.waiterList) {
+                waiter.finish(false);
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(String deviceId, byte[] data, int length, long timestamp) {
+        DeviceState state = stateMap.get(deviceId);
+        if (state == null) {
+            state = getState(deviceId);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        long value = crc.getValue();
+        synchronized (state) {
+            if (value == state.frameCrc) {
+                return;
+            }
+            state.frameCrc = value;
+            state.lastChangeTime = timestamp;
+            if (state.frameData.length < length) {
+                state.frameData = new byte[length];
+            }
+            System.arraycopy(data, 0, state.frameData, 0, length);
+            state.frameLength = length;
+            state.frameImage = null;
+            if (state.waiterList.isEmpty()) {
+                return;
+            }
+
+            for (Waiter waiter : state.waiterList) {
+                if (waiter.region == null) {
+                    waiter.lastChangeTime = timestamp;
+                    continue;
+                }
+                BufferedImage image = state.getFrameImage();
+                if (image == null) {
+                    logger.warn("Decoding frame of device({}) failed", deviceId);
+                    waiter.lastChangeTime = timestamp;
+                    continue;
+                }
+                long hash = hashRegion(image, waiter.region);
+                //The first decoded frame can't be compared, it is regarded as a change.
+                if (waiter.regionHash == null || waiter.regionHash != hash) {
+                    waiter.lastChangeTime = timestamp;
+                }
+                waiter.regionHash = hash;
+            }
+        }
+    }
+
+    private DeviceState getState(String deviceId) {
+        DeviceState state = stateMap.get(deviceId);
+        if (state == null) {
+            synchronized (stateMap) {
+                state = stateMap.get(deviceId);
+                if (state == null) {
+                    state = new DeviceState();
+                    stateMap.put(deviceId, state);
+                }
+            }
+        }
+        return state;
+    }
+
+    private static long hashRegion(BufferedImage image, Rectangle2D region) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int x0 = clamp((int) (region.getMinX() * width), width);
+        int y0 = clamp((int) (region.getMinY() * height), height);
+        int x1 = clamp((int) Math.ceil(region.getMaxX() * width), width);
+        int y1 = clamp((int) Math.ceil(region.getMaxY() * height), height);
+        int stepX = Math.max(1, (x1 - x0) / SAMPLE_COUNT);
+        int stepY = Math.max(1, (y1 - y0) / SAMPLE_COUNT);
+        long hash = 1;
+        for (int y = y0; y < y1; y += stepY) {
+            for (int x = x0; x < x1; x += stepX) {
+                hash = 31 * hash + image.getRGB(x, y);
+            }
+        }
+        return hash;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
@@ -0,0 +1,75 @@
+package com.cxplan.projection.core.image;
+
+/**
+ * Split the image stream of device into frames.
+ * The stream consists of frames, every frame is a 4-byte length(little endian) followed by jpeg data.
+ * The data can be written in pieces of any size, a frame is reported once it is complete.
+ *
+ * @author Kenny
+ * created on 2019/5/24
+ */
+public abstract class FrameStreamParser {
+
+    private final byte[] sizeBytes = new byte[4];
+    private int sizeRead;
+    private byte[] frameData = new byte[64 * 1024];
+    private int frameSize = -1;
+    private int frameRead;
+
+    /**
+     * Feed the data of stream.
+     */
+    public void write(byte[] data, int offset, int size) {
+        int end = offset + size;
+        while (offset < end) {
+            if (frameSize < 0) {
+                int count = Math.min(4 - sizeRead, end - offset);
+                System.arraycopy(data, offset, sizeBytes, sizeRead, count);
+                sizeRead += count;
+                offset += count;
+                if (sizeRead < 4) {
+                    return;
+                }
+                frameSize = (sizeBytes[0] & 0xFF) | (sizeBytes[1] & 0xFF) << 8
+                        | (sizeBytes[2] & 0xFF) << 16 | (sizeBytes[3] & 0xFF) << 24;
+                sizeRead = 0;
+                if (frameSize <= 0) {
+                    int invalidSize = frameSize;
+                    frameSize = -1;
+                    throw new IllegalStateException("Invalid frame size: " + invalidSize);
+                }
+                if (frameSize > frameData.length) {
+                    frameData = new byte[frameSize];
+                }
+                frameRead = 0;
+            }
+
+            int count = Math.min(frameSize - frameRead, end - offset);
+            System.arraycopy(data, offset, frameData, frameRead, count);
+            frameRead += count;
+            offset += count;
+            if (frameRead == frameSize) {
+                int length = frameSize;
+                frameSize = -1;
+                onFrame(frameData, length);
+            }
+        }
+    }
+
+    /**
+     * Discard the incomplete frame, it is invoked when a new stream is started.
+     */
+    public void reset() {
+        sizeRead = 0;
+        frameSize = -1;
+        frameRead = 0;
+    }
+
+    /**
+     * A complete frame is received.
+     *
+     * @param data the jpeg data, the array is reused for next frame.
+     * @param length the length of jpeg data.
+     */
+    protected abstract void onFrame(byte[] data, int length);
+}
@@ -67,6 +67,7 @@ public class ImageProcessThread extends Thread {
             } else {
                 logger.info("Wait frame data...");
             }
+            ImageSessionManager.getInstance().resetFrameStream(connection.getId());
             byte[] buffer = new byte[2048];
             //get fire first frame
             //byte[] firstFrameData = extraFirstFrame(realWidth, realHeight);
@@ -10,6 +10,7 @@ public class ImageSessionID {
 
     public static final int TYPE_NODE = 1;
     public static final int TYPE_CONTROLLER = 2;
+    public static final int TYPE_RECORDER = 3;
 
     private int type;//The node type
     private String id;
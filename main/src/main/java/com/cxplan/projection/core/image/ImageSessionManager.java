@@ -6,8 +6,10 @@ import org.slf4j.LoggerFactory;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author KennyLiu
@@ -28,8 +30,50 @@ public class ImageSessionManager {
     }
 
     private Map<String, Map<ImageSessionID, IImageSession>> nodeSetMap;
+    //device id -> the parser which splits image stream into frames for frame listeners.
+    private Map<String, FrameStreamParser> frameParserMap;
+    private List<FrameListener> frameListenerList;
     private ImageSessionManager() {
         nodeSetMap = new ConcurrentHashMap<>();
+        frameParserMap = new ConcurrentHashMap<>();
+        frameListenerList = new CopyOnWriteArrayList<>();
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        frameListenerList.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListenerList.remove(listener);
+    }
+
+    /**
+     * Start splitting a new image stream of device into frames, it is invoked when the image stream
+     * is opened, the incomplete frame of previous stream is discarded.
+     */
+    public void resetFrameStream(final String deviceId) {
+        FrameStreamParser parser = frameParserMap.get(deviceId);
+        if (parser != null) {
+            parser.reset();
+            return;
+        }
+        frameParserMap.put(deviceId, new FrameStreamParser() {
+            @Override
+            protected void onFrame(byte[] data, int length) {
+                fireFrame(deviceId, data, length);
+            }
+        });
+    }
+
+    private void fireFrame(String deviceId, byte[] data, int length) {
+        long timestamp = System.currentTimeMillis();
+        for (FrameListener listener : frameListenerList) {
+            try {
+                listener.onFrame(deviceId, data, length, timestamp);
+            } catch (Exception e) {
+                logger.error("Notifying frame listener failed: " + e.getMessage(), e);
+            }
+        }
     }
 
     public void addImageSession(String deviceId, IImageSession session) {
@@ -49,6 +93,14 @@ public class ImageSessionManager {
         }
     }
 
+    public IImageSession getImageSession(String deviceId, ImageSessionID sessionID) {
+        Map<ImageSessionID, IImageSession> account2SessionMap = nodeSetMap.get(deviceId);
+        if (account2SessionMap == null) {
+            return null;
+        }
+        return account2SessionMap.get(sessionID);
+    }
+
     public void removeImageSession(String deviceId, ImageSessionID sessionID) {
         Map<ImageSessionID, IImageSession> account2SessionMap = nodeSetMap.get(deviceId);
         if (account2SessionMap == null) {
@@ -70,6 +122,16 @@ public class ImageSessionManager {
      *         false: there is no node found.
      */
     public boolean fireImage(String deviceId, byte[] bytes, int length) {
+        FrameStreamParser parser = frameParserMap.get(deviceId);
+        //the parser is fed even if there is no listener, so it is aligned with frames when a listener is added.
+        if (parser != null) {
+            try {
+                parser.write(bytes, 0, length);
+            } catch (IllegalStateException e) {
+                logger.warn("The image stream of device({}) is broken: {}", deviceId, e.getMessage());
+                parser.reset();
+            }
+        }
         Map<ImageSessionID, IImageSession> account2SessionMap = nodeSetMap.get(deviceId);
         if (account2SessionMap == null) {
             return false;
@@ -0,0 +1,317 @@
+package com.cxplan.projection.core.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Write JPEG frames into an AVI(MJPEG) file.
+ *
+ * <p>The video has a fixed time base, every frame is placed on the tick of its timestamp.
+ * If no frame arrives in a tick, the previous frame is repeated by an index entry which refers
+ * to the same data, so the timing of frames is kept without writing the data again.
+ * The headers are written when the writer is closed, because the size of video is known from
+ * the first frame and the count of frames is known at last.
+ *
+ * <p>The file is limited to 4GB by the 32-bit sizes of AVI 1.0, the frames beyond it are dropped.
+ *
+ * @author Kenny
+ * created on 2019/5/23
+ */
+public class MjpegAviWriter {
+
+    public static final int DEFAULT_FRAME_RATE = 60;
+
+    private static final int HEADER_SIZE = 212;//RIFF, hdrl list(avih, strl(strh, strf))
+    private static final int MOVI_HEADER_SIZE = 12;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL - 1024 * 1024;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final int AVIF_HASINDEX = 0x10;
+
+    private final File file;
+    private final int frameRate;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    //the position of next chunk in file, the buffered data is included.
+    private long position;
+    //the position where the buffered data will be written to.
+    private long flushedPosition;
+
+    private int width;
+    private int height;
+    private int maxFrameSize;
+    private long firstTimestamp = -1;
+    //the index entries, every entry is [offset relative to 'movi', size] of frame.
+    private int[] index = new int[1024];
+    private int indexCount;
+    private int frameCount;
+    private boolean closed;
+
+    /**
+     * @param file the target file, it is overwritten.
+     * @param frameRate the count of ticks per second.
+     */
+    public MjpegAviWriter(File file, int frameRate) throws IOException {
+        this.file = file;
+        this.frameRate = frameRate;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.position = HEADER_SIZE + MOVI_HEADER_SIZE;
+        this.flushedPosition = position;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Return the count of distinct frames written.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Return the duration of video(milliseconds).
+     */
+    public long getDuration() {
+        return indexCount / 2 * 1000L / frameRate;
+    }
+
+    /**
+     * Write a JPEG frame.
+     *
+     * @param data the jpeg data.
+     * @param offset the offset of data.
+     * @param length the length of jpeg data.
+     * @param timestamp the time when the frame was received(milliseconds).
+     * @return false if the frame is dropped.
+     */
+    public synchronized boolean writeFrame(byte[] data, int offset, int length, long timestamp) throws IOException {
+        if (closed) {
+            throw new IOException("The writer is closed: " + file);
+        }
+        int padding = length & 1;
+        if (position + 8 + length + padding + (long) (indexCount / 2 + 1) * INDEX_ENTRY_SIZE > MAX_FILE_SIZE) {
+            return false;
+        }
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+            int[] size = parseJpegSize(data, offset, length);
+            if (size != null) {
+                width = size[0];
+                height = size[1];
+            }
+        }
+
+        long tick = (timestamp - firstTimestamp) * frameRate / 1000;
+        int entryCount = indexCount / 2;
+        if (entryCount > 0 && tick < entryCount) {
+            //More than one frame arrive in a tick, the later ones are dropped.
+            return false;
+        }
+        //repeat the previous frame until the tick of this frame.
+        if (entryCount > 0) {
+            int lastOffset = index[indexCount - 2];
+            int lastSize = index[indexCount - 1];
+            while (indexCount / 2 < tick) {
+                addIndex(lastOffset, lastSize);
+            }
+        }
+
+        int moviOffset = (int) (position - HEADER_SIZE - 8);
+        write(ByteBuffer.wrap(new byte[]{'0', '0', 'd', 'c'}));
+        writeInt(length);
+        write(ByteBuffer.wrap(data, offset, length));
+        if (padding > 0) {
+            write(ByteBuffer.wrap(new byte[1]));
+        }
+        addIndex(moviOffset, length);
+        maxFrameSize = Math.max(maxFrameSize, length);
+        frameCount++;
+        return true;
+    }
+
+    /**
+     * Write the index and headers, then close the file.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long moviEnd = position;
+            //idx1
+            int entryCount = indexCount / 2;
+            write(ByteBuffer.wrap(new byte[]{'i', 'd', 'x', '1'}));
+            writeInt(entryCount * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < entryCount; i++) {
+                write(ByteBuffer.wrap(new byte[]{'0', '0', 'd', 'c'}));
+                writeInt(AVIIF_KEYFRAME);
+                writeInt(index[i * 2]);
+                writeInt(index[i * 2 + 1]);
+            }
+            flush();
+
+            channel.write(buildHeader(moviEnd, entryCount), 0);
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer buildHeader(long moviEnd, int entryCount) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + MOVI_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int microSecPerFrame = 1000000 / frameRate;
+        //RIFF
+        putFourCC(header, "RIFF");
+        header.putInt((int) (position - 8));
+        putFourCC(header, "AVI ");
+        //hdrl
+        putFourCC(header, "LIST");
+        header.putInt(HEADER_SIZE - 20);
+        putFourCC(header, "hdrl");
+        putFourCC(header, "avih");
+        header.putInt(56);
+        header.putInt(microSecPerFrame);
+        header.putInt(maxFrameSize * frameRate);//max bytes per second
+        header.putInt(0);//padding granularity
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(entryCount);
+        header.putInt(0);//initial frames
+        header.putInt(1);//streams
+        header.putInt(maxFrameSize);
+        header.putInt(width);
+        header.putInt(height);
+        header.put(new byte[16]);//reserved
+        //strl
+        putFourCC(header, "LIST");
+        header.putInt(4 + 64 + 48);
+        putFourCC(header, "strl");
+        putFourCC(header, "strh");
+        header.putInt(56);
+        putFourCC(header, "vids");
+        putFourCC(header, "MJPG");
+        header.putInt(0);//flags
+        header.putShort((short) 0);//priority
+        header.putShort((short) 0);//language
+        header.putInt(0);//initial frames
+        header.putInt(1);//scale
+        header.putInt(frameRate);//rate
+        header.putInt(0);//start
+        header.putInt(entryCount);//length
+        header.putInt(maxFrameSize);
+        header.putInt(-1);//quality
+        header.putInt(0);//sample size
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) width);
+        header.putShort((short) height);
+        putFourCC(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);//planes
+        header.putShort((short) 24);//bit count
+        putFourCC(header, "MJPG");
+        header.putInt(width * height * 3);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        //movi
+        putFourCC(header, "LIST");
+        header.putInt((int) (moviEnd - HEADER_SIZE - 8));
+        putFourCC(header, "movi");
+        header.flip();
+        return header;
+    }
+
+    private void addIndex(int offset, int size) {
+        if (indexCount + 2 > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[indexCount++] = offset;
+        index[indexCount++] = size;
+    }
+
+    private void writeInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putInt(value);
+        position += 4;
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        position += src.remaining();
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(src.remaining(), buffer.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            buffer.put(slice);
+            src.position(src.position() + count);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushedPosition += channel.write(buffer, flushedPosition);
+        }
+        buffer.clear();
+    }
+
+    private static void putFourCC(ByteBuffer buffer, String fourCC) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCC.charAt(i));
+        }
+    }
+
+    /**
+     * Resolve the size of image from the SOF segment of jpeg.
+     *
+     * @return [width, height], or null if the data is not a valid jpeg.
+     */
+    static int[] parseJpegSize(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (length < 4 || (data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int i = offset + 2;
+        while (i + 9 < end) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {//fill byte
+                i++;
+                continue;
+            }
+            int segmentLength = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = ((data[i + 5] & 0xFF) << 8) | (data[i + 6] & 0xFF);
+                int width = ((data[i + 7] & 0xFF) << 8) | (data[i + 8] & 0xFF);
+                return new int[]{width, height};
+            }
+            i += 2 + segmentLength;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package com.cxplan.projection.core.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Record the image stream of device into a local video file.
+ *
+ * <p>The session may be started in the middle of image stream, so the raw stream is ignored, the complete
+ * frames split by {@link ImageSessionManager} are received as a {@link FrameListener} instead. The frames
+ * are written into an MJPEG/AVI file as they arrive, so the video is ready when the session is closed,
+ * nothing is recorded on device.
+ *
+ * @author Kenny
+ * created on 2019/5/23
+ */
+public class RecorderImageSession extends AbstractImageSession implements FrameListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecorderImageSession.class);
+
+    private final MjpegAviWriter writer;
+    private int droppedCount;
+
+    public RecorderImageSession(String deviceId, File file) {
+        super(new ImageSessionID(ImageSessionID.TYPE_RECORDER, deviceId));
+        try {
+            writer = new MjpegAviWriter(file, MjpegAviWriter.DEFAULT_FRAME_RATE);
+        } catch (IOException e) {
+            throw new RuntimeException("Creating video file failed(" + file + "): " + e.getMessage(), e);
+        }
+        ImageSessionManager.getInstance().addFrameListener(this);
+    }
+
+    public File getFile() {
+        return writer.getFile();
+    }
+
+    public int getFrameCount() {
+        return writer.getFrameCount();
+    }
+
+    public long getDuration() {
+        return writer.getDuration();
+    }
+
+    @Override
+    public void writeImageData(byte[] data, int offset, int size) {
+        //the frames are received by onFrame.
+    }
+
+    @Override
+    public synchronized void onFrame(String deviceId, byte[] data, int length, long timestamp) {
+        if (!deviceId.equals(getSessionID().getId()) || writer.isClosed()) {
+            return;
+        }
+        try {
+            if (!writer.writeFrame(data, 0, length, timestamp)) {
+                droppedCount++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Writing video frame failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        ImageSessionManager.getInstance().removeFrameListener(this);
+        if (writer.isClosed()) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Closing video file failed: " + e.getMessage(), e);
+        }
+        logger.info("The recording of device({}) is finished: file={}, frames={}, dropped={}, duration={}ms",
+                getSessionID().getId(), writer.getFile(), writer.getFrameCount(), droppedCount, writer.getDuration());
+    }
+}
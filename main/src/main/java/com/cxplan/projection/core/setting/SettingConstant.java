@@ -10,6 +10,30 @@ public class SettingConstant {
      * The key of Setting item for system.
      */
     public static final String KEY_LAST_SELECTED_DIR = "lastSelectedDir";
+    //Whether the message is compressed over wireless channel.
+    public static final String KEY_WIRELESS_COMPRESSION = "wireless_compression";
+    //The min size(bytes) of message which will be compressed.
+    public static final String KEY_COMPRESSION_THRESHOLD = "compression_threshold";
+    //Whether the image stream is read over adb connection directly in usb mode, the port forward is not needed.
+    public static final String KEY_IMAGE_DIRECT_TRANSPORT = "image_direct_transport";
+    //The ports of extra adb servers which share the load of network devices, separated by comma. e.g. 5038,5039
+    public static final String KEY_ADB_SHARD_PORTS = "adb_shard_ports";
+    //The max bandwidth(KB/s) shared by all file pulls, 0 means unlimited.
+    public static final String KEY_PULL_BANDWIDTH_LIMIT = "pull_bandwidth_limit";
+    //Whether the screen is recorded from the image stream on controller, rather than by device.
+    public static final String KEY_LOCAL_RECORD = "local_record";
+    //The seconds of latest frames kept for replay, 0 means the frame journal is disabled.
+    public static final String KEY_FRAME_JOURNAL_SECONDS = "frame_journal_seconds";
+    //The size(MB) of frame journal file of every device.
+    public static final String KEY_FRAME_JOURNAL_SIZE = "frame_journal_size";
+    //The time(ms) without screen change before a script command is executed, 0 means the screen is not watched.
+    public static final String KEY_SCRIPT_STABLE_TIME = "script_stable_time";
+    //Whether the view hierarchy of device is cached on controller, the views are searched locally.
+    public static final String KEY_VIEW_HIERARCHY_CACHE = "view_hierarchy_cache";
+    //The tolerance(device pixels) of simplifying the track of recorded gesture, 0 means disabled.
+    public static final String KEY_RECORD_MOVE_TOLERANCE = "record_move_tolerance";
+    //The rate(Hz) of touch-move events of gesture on playback, it should be the frame rate of device.
+    public static final String KEY_SCRIPT_GESTURE_RATE = "script_gesture_rate";
     /**
      * The key of Setting item for device.
      */
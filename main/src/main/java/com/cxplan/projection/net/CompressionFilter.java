@@ -0,0 +1,108 @@
+package com.cxplan.projection.net;
+
+import com.cxplan.projection.net.protocol.FrameCompressor;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteRequestWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compress the outgoing message whose size is larger than threshold.
+ * The filter should be placed before codec filter, the incoming compressed frame
+ * is recognized and decompressed by message parser.
+ *
+ * The compression is disabled by default, it is enabled only when the device
+ * accepts compression in creating session, see {@link #enableCompression(IoSession, byte)}.
+ *
+ * @author Kenny
+ * created on 2019/5/8
+ */
+public class CompressionFilter extends IoFilterAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressionFilter.class);
+
+    /**
+     * The session attribute which holds the dictionary negotiated with device.
+     */
+    public static final String SESSION_DICTIONARY = "compression_dictionary";
+
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    private volatile int threshold;
+
+    public CompressionFilter() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public CompressionFilter(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Enable the compression of outgoing message for specified session.
+     */
+    public static void enableCompression(IoSession session, byte dictionary) {
+        FrameCompressor.getDictionary(dictionary);//check dictionary
+        session.setAttribute(SESSION_DICTIONARY, dictionary);
+        logger.info("The compression is enabled for session({}), dictionary={}", session.getId(), dictionary);
+    }
+
+    public static void disableCompression(IoSession session) {
+        session.removeAttribute(SESSION_DICTIONARY);
+    }
+
+    public static boolean isCompressionEnabled(IoSession session) {
+        return session.getAttribute(SESSION_DICTIONARY) != null;
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        Object message = writeRequest.getMessage();
+        Byte dictionary = (Byte) session.getAttribute(SESSION_DICTIONARY);
+        if (dictionary != null && message instanceof IoBuffer && ((IoBuffer) message).remaining() >= threshold) {
+            IoBuffer frame = FrameCompressor.compress((IoBuffer) message, dictionary);
+            if (frame != null) {
+                nextFilter.filterWrite(session, new CompressedWriteRequest(writeRequest, frame));
+                return;
+            }
+        }
+
+        nextFilter.filterWrite(session, writeRequest);
+    }
+
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        //restore the original request for upper filters.
+        if (writeRequest instanceof CompressedWriteRequest) {
+            nextFilter.messageSent(session, ((CompressedWriteRequest) writeRequest).getParentRequest());
+        } else {
+            nextFilter.messageSent(session, writeRequest);
+        }
+    }
+
+    private static class CompressedWriteRequest extends WriteRequestWrapper {
+
+        private final IoBuffer frame;
+
+        CompressedWriteRequest(WriteRequest parentRequest, IoBuffer frame) {
+            super(parentRequest);
+            this.frame = frame;
+        }
+
+        @Override
+        public Object getMessage() {
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.cxplan.projection.net;
+
+import com.cxplan.projection.net.message.Message;
+import com.cxplan.projection.net.message.MessageUtil;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread model of message channel, it replaces the executor filter over a cached thread pool.
+ *
+ * The events of a session are queued and handled one by one in a fixed worker pool,
+ * so the events of a device keep the order, and the count of threads is bounded.
+ *
+ * Overload policy:
+ * 1. When the queue of session is full, the heart messages are dropped first(incoming and queued ones).
+ * 2. Other messages(including responses and pings) are never dropped, the reading of session is suspended
+ *    until the queue is drained to the half of capacity.
+ *
+ * The worker pool is owned by the filter, so a filter instance should be added to one filter chain only.
+ *
+ * @author Kenny
+ * created on 2019/5/10
+ */
+public class DispatchFilter extends IoFilterAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DispatchFilter.class);
+
+    private static final String SESSION_QUEUE = DispatchFilter.class.getName() + ".queue";
+    //The max count of events handled in one turn, then the worker is yielded to other sessions.
+    private static final int MAX_EVENTS_PER_TURN = 32;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final ExecutorService workers;
+    private final int queueCapacity;
+    private final int resumeThreshold;
+
+    public DispatchFilter(int workerCount) {
+        this(workerCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public DispatchFilter(int workerCount, int queueCapacity) {
+        if (workerCount < 1 || queueCapacity < 2) {
+            throw new IllegalArgumentException("Illegal argument: workerCount=" + workerCount
+                    + ", queueCapacity=" + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+        this.resumeThreshold = queueCapacity / 2;
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Message Dispatcher-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+    }
+
+    /**
+     * Return the dispatching statistics of specified session.
+     *
+     * @return the statistics object, a null value will be returned if the session is not dispatched by this filter.
+     */
+    public static DispatchStatistics getStatistics(IoSession session) {
+        if (session == null) {
+            return null;
+        }
+        SessionQueue queue = (SessionQueue) session.getAttribute(SESSION_QUEUE);
+        return queue == null ? null : queue.statistics;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        workers.shutdown();
+    }
+
+    @Override
+    public void sessionOpened(NextFilter nextFilter, IoSession session) throws Exception {
+        dispatch(new Event(EventType.OPENED, nextFilter, session, null));
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        dispatch(new Event(EventType.CLOSED, nextFilter, session, null));
+    }
+
+    @Override
+    public void sessionIdle(NextFilter nextFilter, IoSession session, IdleStatus status) throws Exception {
+        dispatch(new Event(EventType.IDLE, nextFilter, session, status));
+    }
+
+    @Override
+    public void exceptionCaught(NextFilter nextFilter, IoSession session, Throwable cause) throws Exception {
+        dispatch(new Event(EventType.EXCEPTION, nextFilter, session, cause));
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        dispatch(new Event(EventType.RECEIVED, nextFilter, session, message));
+    }
+
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        dispatch(new Event(EventType.SENT, nextFilter, session, writeRequest));
+    }
+
+    @Override
+    public void inputClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        dispatch(new Event(EventType.INPUT_CLOSED, nextFilter, session, null));
+    }
+
+    private SessionQueue getSessionQueue(IoSession session) {
+        SessionQueue queue = (SessionQueue) session.getAttribute(SESSION_QUEUE);
+        if (queue == null) {
+            queue = new SessionQueue(session);
+            SessionQueue old = (SessionQueue) session.setAttributeIfAbsent(SESSION_QUEUE, queue);
+            if (old != null) {
+                queue = old;
+            }
+        }
+        return queue;
+    }
+
+    private void dispatch(Event event) {
+        SessionQueue queue = getSessionQueue(event.session);
+        DispatchStatistics statistics = queue.statistics;
+        int depth = statistics.queueDepth.get();
+        if (depth >= queueCapacity) {
+            if (event.isHeart()) {
+                statistics.recordDroppedHeart();
+                logger.debug("The queue of session({}) is full, drop heart message", event.session.getId());
+                return;
+            }
+            if (queue.removeHeart()) {
+                statistics.recordDroppedHeart();
+            } else if (!queue.suspended.get() && queue.suspended.compareAndSet(false, true)) {
+                event.session.suspendRead();
+                statistics.recordSuspend();
+                logger.warn("The queue of session({}) is full, suspend reading: {}", event.session.getId(), statistics);
+            }
+        }
+
+        queue.events.offer(event);
+        statistics.updateMaxDepth(statistics.queueDepth.incrementAndGet());
+        schedule(queue);
+    }
+
+    private void schedule(SessionQueue queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(queue);
+            } catch (Exception e) {
+                queue.scheduled.set(false);
+                logger.error("Dispatching event failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private class SessionQueue implements Runnable {
+        final IoSession session;
+        final Queue<Event> events = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicBoolean suspended = new AtomicBoolean(false);
+        final DispatchStatistics statistics = new DispatchStatistics();
+
+        SessionQueue(IoSession session) {
+            this.session = session;
+        }
+
+        boolean removeHeart() {
+            Iterator<Event> it = events.iterator();
+            while (it.hasNext()) {
+                Event event = it.next();
+                if (event.isHeart() && events.remove(event)) {
+                    statistics.queueDepth.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < MAX_EVENTS_PER_TURN; i++) {
+                    Event event = events.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    int depth = statistics.queueDepth.decrementAndGet();
+                    if (depth <= resumeThreshold && suspended.get() && suspended.compareAndSet(true, false)) {
+                        session.resumeRead();
+                        logger.info("Resume reading of session({})", session.getId());
+                    }
+                    statistics.recordDispatched(System.nanoTime() - event.createTime);
+                    try {
+                        event.fire();
+                    } catch (Throwable e) {
+                        logger.error("Handling event failed: " + e.getMessage(), e);
+                    }
+                    if (event.type == EventType.CLOSED) {
+                        logger.info("The dispatching statistics of session({}): {}", session.getId(), statistics);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!events.isEmpty()) {
+                    schedule(this);
+                }
+            }
+        }
+    }
+
+    private enum EventType {
+        OPENED,
+        CLOSED,
+        IDLE,
+        EXCEPTION,
+        RECEIVED,
+        SENT,
+        INPUT_CLOSED
+    }
+
+    private static class Event {
+        final EventType type;
+        final NextFilter nextFilter;
+        final IoSession session;
+        final Object parameter;
+        final long createTime;
+
+        Event(EventType type, NextFilter nextFilter, IoSession session, Object parameter) {
+            this.type = type;
+            this.nextFilter = nextFilter;
+            this.session = session;
+            this.parameter = parameter;
+            this.createTime = System.nanoTime();
+        }
+
+        boolean isHeart() {
+            if (type != EventType.RECEIVED || !(parameter instanceof Message)) {
+                return false;
+            }
+            //The ping keeps the session from being closed as idle, only the heart can be dropped.
+            return MessageUtil.CMD_PING_HEART.equals(((Message) parameter).getCommand());
+        }
+
+        void fire() {
+            switch (type) {
+                case OPENED:
+                    nextFilter.sessionOpened(session);
+                    break;
+                case CLOSED:
+                    nextFilter.sessionClosed(session);
+                    break;
+                case IDLE:
+                    nextFilter.sessionIdle(session, (IdleStatus) parameter);
+                    break;
+                case EXCEPTION:
+                    nextFilter.exceptionCaught(session, (Throwable) parameter);
+                    break;
+                case RECEIVED:
+                    nextFilter.messageReceived(session, parameter);
+                    break;
+                case SENT:
+                    nextFilter.messageSent(session, (WriteRequest) parameter);
+                    break;
+                case INPUT_CLOSED:
+                    nextFilter.inputClosed(session);
+                    break;
+                default:
+            }
+        }
+    }
+}
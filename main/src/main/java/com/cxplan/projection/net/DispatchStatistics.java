@@ -0,0 +1,94 @@
+package com.cxplan.projection.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The statistics of event dispatching for one session.
+ *
+ * @author Kenny
+ * created on 2019/5/10
+ */
+public class DispatchStatistics {
+
+    final AtomicInteger queueDepth = new AtomicInteger(0);
+    private volatile int maxQueueDepth = 0;
+    private final AtomicLong dispatchedCount = new AtomicLong(0);
+    private final AtomicLong droppedHeartCount = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);//nanoseconds
+    private volatile long maxLatency = 0;//nanoseconds
+    private final AtomicInteger suspendCount = new AtomicInteger(0);
+
+    void updateMaxDepth(int depth) {
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    void recordDispatched(long latency) {
+        dispatchedCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+    }
+
+    void recordDroppedHeart() {
+        droppedHeartCount.incrementAndGet();
+    }
+
+    void recordSuspend() {
+        suspendCount.incrementAndGet();
+    }
+
+    /**
+     * Return the count of events waiting in queue.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    public long getDroppedHeartCount() {
+        return droppedHeartCount.get();
+    }
+
+    /**
+     * Return the count of reading suspension caused by full queue.
+     */
+    public int getSuspendCount() {
+        return suspendCount.get();
+    }
+
+    /**
+     * Return the average time(milliseconds) between receiving and handling of an event.
+     */
+    public double getAverageLatency() {
+        long count = dispatchedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalLatency.get() / 1000000.0 / count;
+    }
+
+    /**
+     * Return the max time(milliseconds) between receiving and handling of an event.
+     */
+    public double getMaxLatency() {
+        return maxLatency / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d, maxDepth=%d, dispatched=%d, droppedHeart=%d, suspend=%d, " +
+                        "avgLatency=%.2fms, maxLatency=%.2fms", getQueueDepth(), maxQueueDepth, getDispatchedCount(),
+                getDroppedHeartCount(), getSuspendCount(), getAverageLatency(), getMaxLatency());
+    }
+}
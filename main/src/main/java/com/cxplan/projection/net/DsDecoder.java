@@ -4,6 +4,7 @@ import com.cxplan.projection.IApplication;
 import com.cxplan.projection.core.connection.ClientConnection;
 import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.protocol.MessageParser;
+import com.cxplan.projection.net.protocol.StreamSinkResolver;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
@@ -11,6 +12,8 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+
 /**
  *
  * @author kenny
@@ -35,6 +38,8 @@ public class DsDecoder extends CumulativeProtocolDecoder {
 	    	session.setAttribute(MESSAGE_PARSER, parser);
 	    	System.out.println("--------------Protocol Parser Created------------------");
 		}
+		Object resolver = session.getAttribute(IApplication.CLIENT_SESSION);
+		parser.setStreamSinkResolver(resolver instanceof StreamSinkResolver ? (StreamSinkResolver) resolver : null);
 		try {
 			parser.readMessage(in);
 		} catch (Exception e) {
@@ -55,6 +60,15 @@ public class DsDecoder extends CumulativeProtocolDecoder {
 		return false;
 		
 	}
+
+	@Override
+	public void dispose(IoSession session) throws Exception {
+		MessageParser parser = (MessageParser)session.getAttribute(MESSAGE_PARSER);
+		if (parser != null) {
+			parser.abortStream(new EOFException("The session is closed: " + session.getId()));
+		}
+		super.dispose(session);
+	}
 	
 }
 
@@ -59,6 +59,7 @@ public class MessageUtil {
     public static final String CMD_DEVICE_SCRIPT_DUMP = "d_dump";//dump the hierarchy views
     public static final String CMD_DEVICE_SCRIPT_WAIT_IDLE = "d_wait_idle";//wait device idle event.
     public static final String CMD_DEVICE_SCRIPT_WAIT_VIEW = "d_wait_view";//wait view presented on screen.
+    public static final String CMD_DEVICE_SCRIPT_WATCH_HIERARCHY = "d_watch_hierarchy";//push the diffs of view hierarchy.
 
     /**
      * The command received by controller server
@@ -66,6 +67,7 @@ public class MessageUtil {
     public static final String CMD_CONTROLLER_IMAGE = "c_image";//The actions related with image channel
     public static final String CMD_CONTROLLER_CLIPBOARD = "c_clipboard";//The clipboard operation.
     public static final String CMD_CONTROLLER_SCRIPT_VIEW_NODE = "c_view_node";//The view node for script command.
+    public static final String CMD_CONTROLLER_SCRIPT_HIERARCHY_DIFF = "c_hierarchy_diff";//The diff of view hierarchy.
 
     public static final int ERROR_TYPE_CODE_NO_PERMISSION = 1;//no permission
     public static final int ERROR_TYPE_CODE_TARGET_MISSED = 2;//target missed.
@@ -413,6 +415,34 @@ public class MessageUtil {
             collector.cancel();
         }
     }
+    /**
+     * Send a request, the byte array field in response is written to specified sink
+     * instead of being buffered in memory. The content of field can be retrieved by sink,
+     * and the value of field in response message is the sink object.
+     *
+     * @param session session object which sent message.
+     * @param message message object.
+     * @param sink the receiver of byte array field in response.
+     * @param timeout the max time in milliseconds that operation is allowed.
+     * @return response message
+     * @throws MessageException, MessageTimeoutException
+     */
+    public static Message requestWithSink(ClientConnection session, Message message,
+                                          IStreamSink sink, long timeout) throws MessageException {
+        session.registerStreamSink(message.getId(), sink);
+        boolean success = false;
+        try {
+            Message response = request(session, message, timeout);
+            success = true;
+            return response;
+        } finally {
+            session.removeStreamSink(message.getId());
+            if (!success) {
+                //release the sink, the transfer may be in progress.
+                sink.abort(null);
+            }
+        }
+    }
     public static void requestWithCallback(ClientConnection session, Message message, MessageListener listener) throws MessageException {
         MessageCollector collector =
                 session.createPacketCollector(new MessageIDFilter(message.getId(), message.getCommand()), listener);
@@ -0,0 +1,50 @@
+package com.cxplan.projection.net.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write the content of field to a local file.
+ * The file is deleted if the transfer is aborted.
+ *
+ * @author Kenny
+ * created on 2019/5/6
+ */
+public class FileStreamSink extends OutputStreamSink {
+
+    private File file;
+
+    public FileStreamSink(File file) {
+        this(file, null);
+    }
+
+    public FileStreamSink(File file, StreamProgressListener progressListener) {
+        super();
+        this.file = file;
+        setProgressListener(progressListener);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    protected OutputStream openStream() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        return new BufferedOutputStream(new FileOutputStream(file), 32 * 1024);
+    }
+
+    @Override
+    public void abort(Throwable cause) {
+        super.abort(cause);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.cxplan.projection.net.protocol;
+
+import com.cxplan.projection.net.message.MessageUtil;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of message frame.
+ *
+ * A compressed frame replaces a whole message on the wire:
+ * frameCode(1byte, 0x7F) | dictionary(1byte) | raw length(int) | compressed length(int) | deflate data
+ *
+ * The frame code can't be confused with the start code of normal message, so the compressed
+ * frame and normal message can be mixed in one connection.
+ * A preset dictionary is shared by both sides, it contains the frequent words of view hierarchy
+ * and command, so the short messages can be compressed well too.
+ *
+ * @author Kenny
+ * created on 2019/5/8
+ */
+public class FrameCompressor {
+
+    public static final byte FRAME_CODE = (byte) 0x7F;
+    public static final int FRAME_HEADER_LENGTH = 10;
+
+    /**
+     * No dictionary.
+     */
+    public static final byte DICTIONARY_NONE = (byte) 0;
+    /**
+     * The dictionary for view hierarchy and script command.
+     */
+    public static final byte DICTIONARY_VIEW_V1 = (byte) 1;
+
+    /**
+     * The max length of raw message which is allowed in a compressed frame.
+     */
+    public static final int MAX_RAW_LENGTH = 32 * 1024 * 1024;
+
+    //The dictionary should be same with the one in device.
+    //The frequent words are placed at the end of dictionary.
+    private static final byte[] VIEW_DICTIONARY_V1 = (
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?><hierarchy rotation=\"0\">" +
+            "<node index=\"0\" text=\"\" resource-id=\"\" class=\"\" package=\"\" content-desc=\"\" " +
+            "checkable=\"false\" checked=\"false\" clickable=\"false\" enabled=\"true\" focusable=\"false\" " +
+            "focused=\"false\" scrollable=\"false\" long-clickable=\"false\" password=\"false\" " +
+            "selected=\"false\" bounds=\"[0,0][1080,1920]\"></node></hierarchy>" +
+            MessageUtil.CMD_DEVICE_SCRIPT_DUMP + MessageUtil.CMD_DEVICE_SCRIPT_SPAN +
+            MessageUtil.CMD_DEVICE_SCRIPT_WAIT_VIEW + MessageUtil.CMD_CONTROLLER_CLIPBOARD +
+            MessageUtil.CMD_CONTROLLER_SCRIPT_VIEW_NODE +
+            "com.android.systemui:id/com.tencent.mm:id/" +
+            "android.widget.ScrollView android.widget.ListView androidx.recyclerview.widget.RecyclerView " +
+            "android.widget.EditText android.widget.CheckBox android.widget.Button android.widget.ImageButton " +
+            "android.widget.ImageView android.view.ViewGroup android.view.View android.widget.RelativeLayout " +
+            "android.widget.LinearLayout android.widget.FrameLayout android.widget.TextView " +
+            "{\"t\":\"\",\"ri\":\"\",\"cn\":\"android.widget.\",\"pn\":\"\",\"cd\":\"\",\"ic\":false,\"icd\":false," +
+            "\"ica\":false,\"ie\":true,\"if\":false,\"ifd\":false,\"is\":false,\"ilc\":false,\"ip\":false," +
+            "\"isd\":false,\"iv\":true,\"iea\":false,\"b\":{\"l\":0,\"t\":0,\"r\":1080,\"b\":1920}}"
+            ).getBytes(MessageUtil.CHARSET_UTF8);
+
+    private static final ThreadLocal<Deflater> deflaterLocal = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    public static byte[] getDictionary(byte dictionary) {
+        switch (dictionary) {
+            case DICTIONARY_NONE:
+                return null;
+            case DICTIONARY_VIEW_V1:
+                return VIEW_DICTIONARY_V1;
+            default:
+                throw new IllegalArgumentException("The dictionary is not supported: " + dictionary);
+        }
+    }
+
+    /**
+     * Compress the remaining bytes of message buffer into a compressed frame.
+     * The position of source buffer is not changed.
+     *
+     * @param message the buffer of a whole message.
+     * @param dictionary the ID of preset dictionary.
+     * @return the compressed frame(flipped), a null value will be returned if the frame is not smaller than message.
+     */
+    public static IoBuffer compress(IoBuffer message, byte dictionary) {
+        int rawLength = message.remaining();
+
+        Deflater deflater = deflaterLocal.get();
+        //No benefit if the compressed data is larger than raw data.
+        int limit = rawLength - FRAME_HEADER_LENGTH;
+        if (limit <= 0) {
+            return null;
+        }
+
+        deflater.reset();
+        byte[] dict = getDictionary(dictionary);
+        if (dict != null) {
+            deflater.setDictionary(dict);
+        }
+        //the message is deflated from its own array, and into the frame directly.
+        if (message.hasArray()) {
+            deflater.setInput(message.array(), message.arrayOffset() + message.position(), rawLength);
+        } else {
+            byte[] raw = new byte[rawLength];
+            message.duplicate().get(raw);
+            deflater.setInput(raw);
+        }
+        deflater.finish();
+
+        IoBuffer frame = IoBuffer.allocate(FRAME_HEADER_LENGTH + limit, false);
+        byte[] out = frame.array();
+        int outOffset = frame.arrayOffset() + FRAME_HEADER_LENGTH;
+        int count = 0;
+        while (!deflater.finished()) {
+            if (count == limit) {
+                //release the reference of message.
+                deflater.reset();
+                return null;
+            }
+            count += deflater.deflate(out, outOffset + count, limit - count);
+        }
+        deflater.reset();
+
+        frame.put(FRAME_CODE);
+        frame.put(dictionary);
+        frame.putInt(rawLength);
+        frame.putInt(count);
+        frame.position(FRAME_HEADER_LENGTH + count);
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Inflate the compressed data of frame which has been set into inflater, the preset dictionary
+     * is set when the inflater asks for it. The frame can be inflated chunk by chunk while it is received.
+     *
+     * @param inflater the inflater of frame, the input should be set already.
+     * @param dictionary the ID of preset dictionary.
+     * @return the count of inflated bytes, 0 will be returned if more input is needed or the frame is finished.
+     */
+    public static int inflate(Inflater inflater, byte dictionary, byte[] out, int offset, int length)
+            throws IOException {
+        try {
+            while (true) {
+                int n = inflater.inflate(out, offset, length);
+                if (n > 0 || !inflater.needsDictionary()) {
+                    return n;
+                }
+                byte[] dict = getDictionary(dictionary);
+                if (dict == null) {
+                    throw new IOException("The dictionary is missed for compressed frame");
+                }
+                inflater.setDictionary(dict);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The compressed frame is broken: " + e.getMessage(), e);
+        }
+    }
+}
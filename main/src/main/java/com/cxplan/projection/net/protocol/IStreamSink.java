@@ -0,0 +1,58 @@
+package com.cxplan.projection.net.protocol;
+
+import java.io.IOException;
+
+/**
+ * The receiver of a large byte array field.
+ *
+ * A byte array field is normally decoded only after the whole array is present in the
+ * cumulative buffer of decoder, it is a heavy cost for screenshot and hierarchy dump.
+ * If a sink is registered for the message, the content of field will be delivered to sink
+ * chunk by chunk when the bytes are coming, so the memory is bounded by the size of chunk.
+ *
+ * The methods are invoked by the io thread of connection in order:
+ * begin -> write* -> finish, or abort when any error occurs.
+ *
+ * @author Kenny
+ * created on 2019/5/6
+ */
+public interface IStreamSink {
+
+    /**
+     * Invoked when the length of field is read.
+     *
+     * @param messageId the ID of message which contains the field.
+     * @param key the key of field.
+     * @param totalLength the total bytes of field.
+     */
+    void begin(String messageId, String key, int totalLength) throws IOException;
+
+    /**
+     * Deliver a chunk of field content.
+     * The array is reused by caller, the implementation should not hold the reference.
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * All bytes of field have been delivered.
+     */
+    void finish() throws IOException;
+
+    /**
+     * The transfer is interrupted, all resources should be released.
+     *
+     * @param cause the reason of interruption, can be null.
+     */
+    void abort(Throwable cause);
+
+    /**
+     * Return the count of bytes received.
+     */
+    long getReceivedBytes();
+
+    /**
+     * Return the total length of field, -1 will be returned if the transfer is not begun.
+     */
+    long getTotalBytes();
+
+}
@@ -8,12 +8,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Inflater;
 
 /**
  * Created on 2017/4/19.
@@ -25,6 +27,8 @@ public class MessageParser {
     private static final Logger logger = LoggerFactory.getLogger(MessageParser.class);
 
     private static final byte STARTCODE = (byte) 0;
+    //The max count of bytes delivered to stream sink in one time.
+    private static final int STREAM_CHUNK_SIZE = 16 * 1024;
 
     private Charset charset;
     private CharsetDecoder charsetDecoder;
@@ -42,9 +46,35 @@ public class MessageParser {
     String dataKey;
     IFieldTypeHandler fieldHandler;
 
+    //streaming byte array field.
+    private StreamSinkResolver streamSinkResolver;
+    private IStreamSink streamSink;
+    private int streamRemaining;
+    private byte[] streamChunk;
+
+    //compressed frame, the content is inflated while it is received, and parsed by frame parser.
+    private byte frameDictionary;
+    private int frameRawLength;
+    private int frameInflated;
+    private Inflater frameInflater;
+    private MessageParser frameParser;
+    private IoBuffer frameBuffer;
+    private byte[] frameChunk;
+
+    private final boolean fastPathEnabled;
+
     List<Message> messageList;
 
     public MessageParser() {
+        this(true);
+    }
+
+    /**
+     * @param fastPathEnabled whether the complete messages are parsed by fast path,
+     *                        it can be disabled to compare with the resumable state machine.
+     */
+    public MessageParser(boolean fastPathEnabled) {
+        this.fastPathEnabled = fastPathEnabled;
         dataMap = new HashMap<String, Object>();
         messageList = new ArrayList<Message>(10);
 
@@ -69,6 +99,24 @@ public class MessageParser {
         messageList.clear();
     }
 
+    public void setStreamSinkResolver(StreamSinkResolver streamSinkResolver) {
+        this.streamSinkResolver = streamSinkResolver;
+    }
+
+    /**
+     * Abort the byte array field in streaming, this method should be invoked
+     * when the connection is closed.
+     */
+    public void abortStream(Throwable cause) {
+        if (streamSink != null) {
+            streamSink.abort(cause);
+            streamSink = null;
+        }
+        if (frameParser != null) {
+            frameParser.abortStream(cause);
+        }
+    }
+
     /**
      * Protocol: startCode |id | command| error
      *
@@ -76,22 +124,52 @@ public class MessageParser {
      * id: length(byte) | content
      * command: length(1byte) | content
      * data: count(1byte) | {key: length(1byte) | content, value: type(1byte)|content}
+     *       The content of byte array is streamed to sink if a sink is registered for it.
      * error: length(short) | content
      *
+     * A whole message may be wrapped in a compressed frame, see {@link FrameCompressor}.
+     *
      * @throws IOException
      */
     private void readCommand(IoBuffer buffer) throws IOException {
 
         byte startCode;
         while (buffer.hasRemaining()) {
+            //Most messages are received completely, parse them straight through.
+            if (status == Status.NONE && fastPathEnabled && readCompleteMessage(buffer)) {
+                continue;
+            }
             switch (status) {
                 case NONE:
                     startCode = buffer.get();
+                    if (startCode == FrameCompressor.FRAME_CODE) {
+                        status = Status.FRAME_HEADER;
+                        break;
+                    }
                     if (startCode != STARTCODE) {
                         throw new IOException("The data serial is error: Expect start code");
                     }
                     status = Status.START;
                     break;
+                case FRAME_HEADER:
+                    if (buffer.remaining() < FrameCompressor.FRAME_HEADER_LENGTH - 1) {
+                        return;
+                    }
+                    frameDictionary = buffer.get();
+                    frameRawLength = buffer.getInt();
+                    length = buffer.getInt();
+                    if (frameRawLength < 0 || frameRawLength > FrameCompressor.MAX_RAW_LENGTH || length < 1) {
+                        throw new IOException("The data serial is error: The length of compressed frame is illegal!");
+                    }
+                    beginFrame();
+                    status = Status.FRAME_CONTENT;
+                    break;
+                case FRAME_CONTENT:
+                    readFrameContent(buffer);
+                    if (length == 0) {
+                        finishFrame();
+                    }
+                    break;
                 case START:
                     length = buffer.get();//id length
                     if (length < 1) {
@@ -199,6 +277,36 @@ public class MessageParser {
                         throw e;
                     }
                     status = Status.DATA_VALUE_CONTENT;
+                    if (fieldType == MessageUtil.FIELD_TYPE_ARRAY_BYTE && streamSinkResolver != null) {
+                        streamSink = streamSinkResolver.resolveStreamSink(id, command, dataKey);
+                        if (streamSink != null) {
+                            status = Status.DATA_VALUE_STREAM_LENGTH;
+                        }
+                    }
+                    break;
+                case DATA_VALUE_STREAM_LENGTH:
+                    if (buffer.remaining() < 4) {
+                        return;
+                    }
+                    streamRemaining = buffer.getInt();
+                    if (streamRemaining < 0) {
+                        throw new IOException("The data serial is error: The length of byte array is illegal!");
+                    }
+                    try {
+                        streamSink.begin(id, dataKey, streamRemaining);
+                    } catch (Exception e) {
+                        abortStream(e);
+                    }
+                    status = Status.DATA_VALUE_STREAM_CONTENT;
+                    if (streamRemaining == 0) {
+                        finishStream();
+                    }
+                    break;
+                case DATA_VALUE_STREAM_CONTENT:
+                    readStreamContent(buffer);
+                    if (streamRemaining == 0) {
+                        finishStream();
+                    }
                     break;
 
                 case DATA_VALUE_CONTENT:
@@ -242,6 +350,413 @@ public class MessageParser {
 
     }
 
+    /**
+     * The fast path of parsing: if a whole message is in buffer, it is parsed with
+     * absolute-index reads, without the status switching and remaining checks for every field.
+     * If the message is incomplete or anything unexpected is found, nothing is consumed and
+     * the resumable state machine will take over.
+     *
+     * @return true: a message is parsed and the buffer position is moved to the end of message.
+     */
+    private boolean readCompleteMessage(IoBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int end = scanMessage(buffer, start, buffer.limit());
+        if (end < 0) {
+            return false;
+        }
+
+        int index = start + 1;
+        //id
+        int len = buffer.get(index++);
+        id = getTerminatedString(buffer, index, len);
+        index += len;
+        //command
+        len = buffer.get(index++);
+        command = getTerminatedString(buffer, index, len);
+        index += len;
+        //from
+        byte jidType = buffer.get(index++);
+        if (jidType == JID.Type.NONE.getValue()) {
+            from = null;
+        } else {
+            len = buffer.get(index++);
+            from = new JID(getTerminatedString(buffer, index, len), JID.Type.getType(jidType));
+            index += len;
+        }
+        //to
+        jidType = buffer.get(index++);
+        if (jidType == JID.Type.NONE.getValue()) {
+            to = null;
+        } else {
+            len = buffer.get(index++);
+            to = new JID(getTerminatedString(buffer, index, len), JID.Type.getType(jidType));
+            index += len;
+        }
+        //data
+        int count = buffer.get(index++);
+        dataMap = new HashMap<>(count < 3 ? 4 : count * 2);
+        for (int i = 0; i < count; i++) {
+            len = buffer.get(index++);
+            String key = getTerminatedString(buffer, index, len);
+            index += len;
+            byte fieldType = buffer.get(index++);
+            Object value;
+            switch (fieldType) {
+                case MessageUtil.FIELD_TYPE_STRING:
+                    len = buffer.getInt(index);
+                    index += 4;
+                    value = getString(buffer, index, len);
+                    index += len;
+                    break;
+                case MessageUtil.FIELD_TYPE_INT:
+                    value = buffer.getInt(index);
+                    index += 4;
+                    break;
+                case MessageUtil.FIELD_TYPE_BYTE:
+                    value = buffer.get(index);
+                    index += 1;
+                    break;
+                case MessageUtil.FIELD_TYPE_SHORT:
+                    value = buffer.getShort(index);
+                    index += 2;
+                    break;
+                case MessageUtil.FIELD_TYPE_DOUBLE:
+                    value = buffer.getDouble(index);
+                    index += 8;
+                    break;
+                case MessageUtil.FIELD_TYPE_FLOAT:
+                    value = buffer.getFloat(index);
+                    index += 4;
+                    break;
+                case MessageUtil.FIELD_TYPE_LONG:
+                    value = buffer.getLong(index);
+                    index += 8;
+                    break;
+                case MessageUtil.FIELD_TYPE_BOOLEAN:
+                    value = buffer.get(index) == 1;
+                    index += 1;
+                    break;
+                case MessageUtil.FIELD_TYPE_ARRAY_BYTE:
+                    len = buffer.getInt(index);
+                    index += 4;
+                    value = readByteArray(buffer, index, len, key);
+                    index += len;
+                    break;
+                default:
+                    //never happen, the type is checked in scanning.
+                    throw new IOException("data value type error: cmd=" + command + ",key=" + key);
+            }
+            if (value != null) {
+                dataMap.put(key, value);
+            }
+        }
+        //error
+        len = buffer.getShort(index);
+        index += 2;
+        if (len == -1 || len == 0) {
+            error = null;
+        } else {
+            error = getTerminatedString(buffer, index, len);
+            index += len;
+        }
+
+        buffer.position(end);
+        buildMessage();
+        return true;
+    }
+
+    /**
+     * Check whether the whole message starting at specified index is in buffer.
+     *
+     * @return the end index(exclusive) of message, -1 will be returned if the message
+     *         is incomplete or malformed.
+     */
+    static int scanMessage(IoBuffer buffer, int index, int limit) {
+        if (index >= limit || buffer.get(index) != STARTCODE) {
+            return -1;
+        }
+        index++;
+        //id, command
+        for (int i = 0; i < 2; i++) {
+            if (index >= limit) {
+                return -1;
+            }
+            int len = buffer.get(index);
+            if (len < 1) {
+                return -1;
+            }
+            index += 1 + len;
+        }
+        //from, to
+        for (int i = 0; i < 2; i++) {
+            if (index >= limit) {
+                return -1;
+            }
+            byte jidType = buffer.get(index++);
+            if (jidType == JID.Type.NONE.getValue()) {
+                continue;
+            }
+            if (jidType < 0 || jidType > 2 || index >= limit) {
+                return -1;
+            }
+            int len = buffer.get(index);
+            if (len < 0) {
+                return -1;
+            }
+            index += 1 + len;
+        }
+        //data
+        if (index >= limit) {
+            return -1;
+        }
+        int count = buffer.get(index++);
+        if (count < 0) {
+            return -1;
+        }
+        for (int i = 0; i < count; i++) {
+            if (index >= limit) {
+                return -1;
+            }
+            int len = buffer.get(index);
+            if (len < 0) {
+                return -1;
+            }
+            index += 1 + len;
+            if (index >= limit) {
+                return -1;
+            }
+            byte fieldType = buffer.get(index++);
+            int size;
+            switch (fieldType) {
+                case MessageUtil.FIELD_TYPE_STRING:
+                case MessageUtil.FIELD_TYPE_ARRAY_BYTE:
+                    if (index + 4 > limit) {
+                        return -1;
+                    }
+                    size = buffer.getInt(index);
+                    if (size < 0) {
+                        return -1;
+                    }
+                    size += 4;
+                    break;
+                case MessageUtil.FIELD_TYPE_INT:
+                case MessageUtil.FIELD_TYPE_FLOAT:
+                    size = 4;
+                    break;
+                case MessageUtil.FIELD_TYPE_BYTE:
+                case MessageUtil.FIELD_TYPE_BOOLEAN:
+                    size = 1;
+                    break;
+                case MessageUtil.FIELD_TYPE_SHORT:
+                    size = 2;
+                    break;
+                case MessageUtil.FIELD_TYPE_DOUBLE:
+                case MessageUtil.FIELD_TYPE_LONG:
+                    size = 8;
+                    break;
+                default:
+                    return -1;
+            }
+            if ((long) index + size > limit) {
+                return -1;
+            }
+            index += size;
+        }
+        //error
+        if (index + 2 > limit) {
+            return -1;
+        }
+        int len = buffer.getShort(index);
+        index += 2;
+        if (len > 0) {
+            index += len;
+        } else if (len < -1) {
+            return -1;
+        }
+
+        return index <= limit ? index : -1;
+    }
+
+    /**
+     * Read a string as {@link IoBuffer#getString(int, java.nio.charset.CharsetDecoder)} does in state machine:
+     * the string is terminated by the first NUL, and the malformed content is reported.
+     * The pure ASCII string is created directly, others are decoded by the charset decoder.
+     */
+    private String getTerminatedString(IoBuffer buffer, int index, int length) throws CharacterCodingException {
+        if (length == 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + index;
+            int i = 0;
+            while (i < length && array[offset + i] > 0) {
+                i++;
+            }
+            if (i == length) {
+                return new String(array, offset, length, MessageUtil.CHARSET_UTF8);
+            }
+        }
+        IoBuffer field = buffer.duplicate();
+        field.position(index);
+        return field.getString(length, charsetDecoder);
+    }
+
+    /**
+     * Read a string value as {@link StringFieldTypeHandler} does.
+     */
+    private static String getString(IoBuffer buffer, int index, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + index, length, MessageUtil.CHARSET_UTF8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+        return new String(bytes, 0, length, MessageUtil.CHARSET_UTF8);
+    }
+
+    private Object readByteArray(IoBuffer buffer, int index, int length, String key) {
+        IStreamSink sink = streamSinkResolver == null ? null : streamSinkResolver.resolveStreamSink(id, command, key);
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + index;
+        } else {
+            bytes = new byte[length];
+            offset = 0;
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(index + i);
+            }
+            if (sink == null) {
+                return bytes;
+            }
+        }
+        if (sink == null) {
+            byte[] value = new byte[length];
+            System.arraycopy(bytes, offset, value, 0, length);
+            return value;
+        }
+
+        try {
+            sink.begin(id, key, length);
+            sink.write(bytes, offset, length);
+            sink.finish();
+            return sink;
+        } catch (Exception e) {
+            sink.abort(e);
+            return null;
+        }
+    }
+
+    /**
+     * Deliver all available bytes of field to sink, the consumed bytes will be released
+     * by cumulative decoder, so the large field never stays in memory.
+     * If the sink fails, the rest of field is skipped to keep the protocol synchronized.
+     */
+    private void readStreamContent(IoBuffer buffer) {
+        if (streamChunk == null) {
+            streamChunk = new byte[STREAM_CHUNK_SIZE];
+        }
+        while (streamRemaining > 0 && buffer.hasRemaining()) {
+            int count = Math.min(Math.min(streamRemaining, buffer.remaining()), streamChunk.length);
+            if (streamSink == null) {
+                buffer.skip(count);
+            } else {
+                buffer.get(streamChunk, 0, count);
+                try {
+                    streamSink.write(streamChunk, 0, count);
+                } catch (Exception e) {
+                    abortStream(e);
+                }
+            }
+            streamRemaining -= count;
+        }
+    }
+
+    private void finishStream() {
+        if (streamSink != null) {
+            try {
+                streamSink.finish();
+                //The sink is put into message instead of byte array.
+                dataMap.put(dataKey, streamSink);
+            } catch (Exception e) {
+                streamSink.abort(e);
+            }
+            streamSink = null;
+        }
+        dataCount --;
+        if (dataCount == 0) {
+            status = Status.ERROR_LENGTH;
+        } else {
+            status = Status.DATA_KEY_LENGTH;
+        }
+    }
+
+    private void beginFrame() {
+        if (frameInflater == null) {
+            frameInflater = new Inflater();
+            frameChunk = new byte[STREAM_CHUNK_SIZE];
+            frameBuffer = IoBuffer.allocate(STREAM_CHUNK_SIZE);
+            frameBuffer.setAutoExpand(true);
+            frameBuffer.setAutoShrink(true);
+            //The messages in frame are put into the result of this parser.
+            frameParser = new MessageParser(fastPathEnabled);
+            frameParser.messageList = messageList;
+        } else {
+            frameInflater.reset();
+            frameBuffer.clear();
+        }
+        frameParser.streamSinkResolver = streamSinkResolver;
+        frameInflated = 0;
+    }
+
+    /**
+     * Inflate all available bytes of compressed frame, and parse the inflated bytes at once.
+     * The frame is never buffered whole, so a large byte array field in frame is still streamed to sink.
+     */
+    private void readFrameContent(IoBuffer buffer) throws IOException {
+        int count = Math.min(length, buffer.remaining());
+        if (buffer.hasArray()) {
+            frameInflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+        } else {
+            byte[] input = new byte[count];
+            buffer.duplicate().get(input);
+            frameInflater.setInput(input);
+        }
+
+        int n;
+        while ((n = FrameCompressor.inflate(frameInflater, frameDictionary, frameChunk, 0, frameChunk.length)) > 0) {
+            frameInflated += n;
+            if (frameInflated > frameRawLength) {
+                throw new IOException("The data serial is error: The compressed frame is longer than expected!");
+            }
+            frameBuffer.put(frameChunk, 0, n);
+            frameBuffer.flip();
+            frameParser.readCommand(frameBuffer);
+            frameBuffer.compact();
+        }
+        if (frameInflater.finished() && frameInflater.getRemaining() > 0) {
+            throw new IOException("The data serial is error: The compressed frame is longer than expected!");
+        }
+
+        buffer.skip(count);
+        length -= count;
+    }
+
+    private void finishFrame() throws IOException {
+        //A compressed frame contains whole messages.
+        if (!frameInflater.finished() || frameInflated != frameRawLength
+                || frameParser.status != Status.NONE || frameBuffer.position() > 0) {
+            throw new IOException("The data serial is error: The compressed frame is incomplete!");
+        }
+        status = Status.NONE;
+    }
+
     private void buildMessage() {
         Message message = new Message(command);
         message.setFrom(from);
@@ -255,6 +770,8 @@ public class MessageParser {
 
     enum Status {
         NONE,
+        FRAME_HEADER,
+        FRAME_CONTENT,
         START,
         ID_CONTENT,
         COMMAND_LENGTH,
@@ -270,6 +787,8 @@ public class MessageParser {
         DATA_KEY_CONTENT,
         DATA_VALUE_TYPE,
         DATA_VALUE_CONTENT,
+        DATA_VALUE_STREAM_LENGTH,
+        DATA_VALUE_STREAM_CONTENT,
         ERROR_LENGTH,
         ERROR_CONTENT
     }
@@ -0,0 +1,138 @@
+package com.cxplan.projection.net.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write the content of field to an output stream.
+ * The stream is closed when transfer is finished or aborted.
+ *
+ * @author Kenny
+ * created on 2019/5/6
+ */
+public class OutputStreamSink implements IStreamSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutputStreamSink.class);
+
+    //the interval(bytes) of notifying progress.
+    private static final int PROGRESS_STEP = 64 * 1024;
+
+    private OutputStream outputStream;
+    private StreamProgressListener progressListener;
+
+    private volatile long received = 0;
+    private volatile long total = -1;
+    private long lastNotified = 0;
+    private boolean closed = false;
+
+    protected OutputStreamSink() {
+    }
+
+    public OutputStreamSink(OutputStream outputStream) {
+        this(outputStream, null);
+    }
+
+    public OutputStreamSink(OutputStream outputStream, StreamProgressListener progressListener) {
+        this.outputStream = outputStream;
+        this.progressListener = progressListener;
+    }
+
+    public void setProgressListener(StreamProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * The subclass can create output stream lazily.
+     */
+    protected OutputStream openStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public synchronized void begin(String messageId, String key, int totalLength) throws IOException {
+        if (closed) {
+            throw new IOException("The sink is closed already: " + key);
+        }
+        if (outputStream == null) {
+            outputStream = openStream();
+        }
+        total = totalLength;
+        received = 0;
+        lastNotified = 0;
+        notifyProgress();
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("The sink is closed already");
+        }
+        outputStream.write(data, offset, length);
+        received += length;
+        if (received - lastNotified >= PROGRESS_STEP) {
+            lastNotified = received;
+            notifyProgress();
+        }
+    }
+
+    @Override
+    public synchronized void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+        notifyProgress();
+        if (progressListener != null) {
+            progressListener.onComplete(true);
+        }
+    }
+
+    @Override
+    public synchronized void abort(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cause != null) {
+            logger.error("The transfer is aborted: " + cause.getMessage(), cause);
+        }
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        if (progressListener != null) {
+            progressListener.onComplete(false);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return received;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return total;
+    }
+
+    private void notifyProgress() {
+        if (progressListener != null) {
+            progressListener.onProgress(received, total);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.cxplan.projection.net.protocol;
+
+/**
+ * The listener for the transfer progress of stream sink.
+ * It is invoked in io thread, so the implementation should not block.
+ *
+ * @author Kenny
+ * created on 2019/5/6
+ */
+public interface StreamProgressListener {
+
+    /**
+     * @param received the count of bytes received.
+     * @param total the total count of bytes.
+     */
+    void onProgress(long received, long total);
+
+    /**
+     * @param success true: all bytes are received, false: the transfer is aborted.
+     */
+    void onComplete(boolean success);
+}
@@ -0,0 +1,20 @@
+package com.cxplan.projection.net.protocol;
+
+/**
+ * Look up the stream sink for a byte array field in incoming message.
+ *
+ * @author Kenny
+ * created on 2019/5/6
+ */
+public interface StreamSinkResolver {
+
+    /**
+     * Return the sink which will receive the content of field,
+     * a null value means the field should be decoded as a normal byte array.
+     *
+     * @param messageId the ID of incoming message.
+     * @param command the command of incoming message.
+     * @param key the key of byte array field.
+     */
+    IStreamSink resolveStreamSink(String messageId, String command, String key);
+}
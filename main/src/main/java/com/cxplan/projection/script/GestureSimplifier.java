@@ -0,0 +1,76 @@
+package com.cxplan.projection.script;
+
+/**
+ * Simplify the track of a gesture by Ramer-Douglas-Peucker.
+ *
+ * <p>The distance of a point to a segment is measured to the position on the segment at the time of point
+ * (synchronized euclidean distance), the segment is walked at constant speed. So the kept points preserve
+ * the speed of gesture as well as the shape, the track can be re-interpolated linearly in time on playback.
+ *
+ * @author Kenny
+ * created on 2019/5/30
+ */
+public class GestureSimplifier {
+
+    private GestureSimplifier() {
+    }
+
+    /**
+     * Mark the points to be kept, the first and the last point are always kept.
+     *
+     * @param xs x of points.
+     * @param ys y of points.
+     * @param times the time of points, in ascending order.
+     * @param count the count of points.
+     * @param tolerance the max distance(pixels) of a dropped point to the simplified track.
+     * @return the flags of kept points.
+     */
+    public static boolean[] simplify(int[] xs, int[] ys, int[] times, int count, float tolerance) {
+        boolean[] kept = new boolean[count];
+        if (count == 0) {
+            return kept;
+        }
+        kept[0] = true;
+        kept[count - 1] = true;
+        float toleranceSquare = tolerance * tolerance;
+
+        //the stack of segments(start, end) to be split.
+        int[] stack = new int[count * 2];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = count - 1;
+        while (sp > 0) {
+            int end = stack[--sp];
+            int start = stack[--sp];
+            if (end - start < 2) {
+                continue;
+            }
+            int farthest = -1;
+            float farthestDistance = toleranceSquare;
+            for (int i = start + 1; i < end; i++) {
+                float distance = distanceSquare(xs, ys, times, start, end, i);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            kept[farthest] = true;
+            stack[sp++] = start;
+            stack[sp++] = farthest;
+            stack[sp++] = farthest;
+            stack[sp++] = end;
+        }
+        return kept;
+    }
+
+    private static float distanceSquare(int[] xs, int[] ys, int[] times, int start, int end, int point) {
+        int duration = times[end] - times[start];
+        float ratio = duration <= 0 ? 1 : (float) (times[point] - times[start]) / duration;
+        float dx = xs[point] - (xs[start] + (xs[end] - xs[start]) * ratio);
+        float dy = ys[point] - (ys[start] + (ys[end] - ys[start]) * ratio);
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,130 @@
+package com.cxplan.projection.script;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * The change of view hierarchy pushed by the script process of device.
+ *
+ * <p>Every view has an ID which is stable while the view is on screen. A full diff carries all views of
+ * the hierarchy, it replaces the cached one; an incremental diff is applied on the version 'base',
+ * it is rejected if the cached version is different, then a full diff is requested.
+ * The parent is always sent before its children, and the children of a full diff are sent in drawing order.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class HierarchyDiff {
+
+    public static final String OP_ADD = "a";
+    public static final String OP_UPDATE = "u";
+    public static final String OP_REMOVE = "r";
+
+    /**
+     * An operation on a view.
+     */
+    public static class Operation {
+        private String type;
+        private int id;
+        private int parentId = -1;
+        private int index = -1;
+        private ViewNode node;
+
+        @JsonProperty("o")
+        public String getType() {
+            return type;
+        }
+        @JsonProperty("o")
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        @JsonProperty("id")
+        public int getId() {
+            return id;
+        }
+        @JsonProperty("id")
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Return the ID of parent view, -1 means the root.
+         */
+        @JsonProperty("p")
+        public int getParentId() {
+            return parentId;
+        }
+        @JsonProperty("p")
+        public void setParentId(int parentId) {
+            this.parentId = parentId;
+        }
+
+        /**
+         * Return the position of view among the children of its parent in drawing order,
+         * -1 means it is drawn after all of them.
+         */
+        @JsonProperty("i")
+        public int getIndex() {
+            return index;
+        }
+        @JsonProperty("i")
+        public void setIndex(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Return the properties of view, it is null for removing.
+         */
+        @JsonProperty("n")
+        public ViewNode getNode() {
+            return node;
+        }
+        @JsonProperty("n")
+        public void setNode(ViewNode node) {
+            this.node = node;
+        }
+    }
+
+    private int baseVersion;
+    private int version;
+    private boolean full;
+    private List<Operation> operations;
+
+    @JsonProperty("b")
+    public int getBaseVersion() {
+        return baseVersion;
+    }
+    @JsonProperty("b")
+    public void setBaseVersion(int baseVersion) {
+        this.baseVersion = baseVersion;
+    }
+
+    @JsonProperty("v")
+    public int getVersion() {
+        return version;
+    }
+    @JsonProperty("v")
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    @JsonProperty("f")
+    public boolean isFull() {
+        return full;
+    }
+    @JsonProperty("f")
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    @JsonProperty("ops")
+    public List<Operation> getOperations() {
+        return operations;
+    }
+    @JsonProperty("ops")
+    public void setOperations(List<Operation> operations) {
+        this.operations = operations;
+    }
+}
@@ -0,0 +1,117 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.IApplication;
+import com.cxplan.projection.core.connection.IDeviceConnection;
+import com.cxplan.projection.core.image.FrameStabilityMonitor;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.script.command.MouseCommand;
+import com.cxplan.projection.script.command.ScriptCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tell when a device is ready for the next script command.
+ *
+ * <p>The device is ready when it reports idle and its screen is stable: no pixel is changed for a
+ * period of time(see {@link SettingConstant#KEY_SCRIPT_STABLE_TIME}) in the region which the command acts on.
+ * Both are waited at the same time, the wait ends as soon as both are satisfied, so there is no fixed delay.
+ * The screen is watched only if the image channel of device is open.
+ *
+ * @author Kenny
+ * created on 2019/5/26
+ */
+public class ReadinessDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadinessDetector.class);
+
+    public static final long DEFAULT_STABLE_TIME = 300;
+    //the size of region around a touch point, relative to the width of screen.
+    private static final double TOUCH_REGION_SIZE = 0.2;
+
+    private final IApplication application;
+
+    public ReadinessDetector(IApplication application) {
+        this.application = application;
+    }
+
+    /**
+     * Wait until the device is ready for the command, the calling thread is blocked.
+     *
+     * @param deviceId the device ID.
+     * @param command the command which will be executed.
+     * @param timeout the max time(milliseconds) of waiting.
+     * @return the time(milliseconds) spent before the device is ready, -1 if the device is not idle in timeout.
+     */
+    public long awaitReady(String deviceId, ScriptCommand command, long timeout) throws MessageException {
+        long start = System.currentTimeMillis();
+        CompletableFuture<Boolean> stableFuture = watchScreen(deviceId, command, timeout);
+        try {
+            if (!application.getScriptService().waitIdle(deviceId, timeout)) {
+                return -1;
+            }
+            if (stableFuture != null) {
+                long remaining = Math.max(0, start + timeout - System.currentTimeMillis());
+                try {
+                    if (!stableFuture.get(remaining, TimeUnit.MILLISECONDS)) {
+                        //The screen keeps changing(e.g. video), the idle state of device is trusted.
+                        logger.info("The screen of device({}) is not stable in {}ms", deviceId, timeout);
+                    }
+                } catch (TimeoutException e) {
+                    //the waiting is cancelled below.
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            //the waiter of screen is released by cancelling, it is ignored if the future is completed.
+            if (stableFuture != null) {
+                stableFuture.cancel(false);
+            }
+        }
+    }
+
+    private CompletableFuture<Boolean> watchScreen(String deviceId, ScriptCommand command, long timeout) {
+        long stableTime = Setting.getInstance().getLongProperty(SettingConstant.KEY_SCRIPT_STABLE_TIME,
+                DEFAULT_STABLE_TIME);
+        if (stableTime <= 0) {
+            return null;
+        }
+        //The screen changes along with the gesture in progress.
+        if (command.getType() == CommandType.MOUSE_MOVE || command.getType() == CommandType.MOUSE_UP) {
+            return null;
+        }
+        IDeviceConnection connection = application.getDeviceConnection(deviceId);
+        if (connection == null || !connection.isImageChannelAvailable()) {
+            return null;
+        }
+        return FrameStabilityMonitor.getInstance().awaitStable(deviceId, getRegion(connection, command),
+                stableTime, timeout);
+    }
+
+    /**
+     * Return the region of screen which the command acts on, null means the whole screen.
+     */
+    private Rectangle2D getRegion(IDeviceConnection connection, ScriptCommand command) {
+        if (!(command instanceof MouseCommand) || connection.getRotation() != 0
+                || connection.getScreenWidth() <= 0 || connection.getScreenHeight() <= 0) {
+            return null;
+        }
+        MouseCommand mouseCommand = (MouseCommand) command;
+        double width = TOUCH_REGION_SIZE;
+        double height = TOUCH_REGION_SIZE * connection.getScreenWidth() / connection.getScreenHeight();
+        double x = (double) mouseCommand.getX() / connection.getScreenWidth() - width / 2;
+        double y = (double) mouseCommand.getY() / connection.getScreenHeight() - height / 2;
+        return new Rectangle2D.Double(x, y, width, height);
+    }
+}
@@ -0,0 +1,224 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.script.command.MouseCommand;
+import com.cxplan.projection.script.command.ScriptCommand;
+import com.cxplan.projection.script.command.TimeGapCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The append-only log of recorded commands.
+ *
+ * <p>The log is written by a single thread(the input thread of recorder), and read by any thread without lock.
+ * The touch commands and time gaps are kept as primitive values in chunked arrays, the command objects are
+ * created when they are read, and then shared by all readers. Other commands are kept as they are.
+ *
+ * <p>The sequence number of a command is its index in log. The key view of a command can be updated
+ * by any thread at any time after the command is appended.
+ *
+ * @author Kenny
+ * created on 2019/5/29
+ */
+public class ScriptEventLog {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    //the flags of entry.
+    private static final byte FLAG_VALIDATE_VIEW = 1;
+
+    private static class Chunk {
+        //the value of CommandType, 0 means the command object is kept.
+        final byte[] types = new byte[CHUNK_SIZE];
+        final byte[] flags = new byte[CHUNK_SIZE];
+        //x of touch, or the gap.
+        final int[] xs = new int[CHUNK_SIZE];
+        final int[] ys = new int[CHUNK_SIZE];
+        final AtomicReferenceArray<ScriptCommand> commands = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicReferenceArray<ViewNode> views = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+
+    private volatile Chunk[] chunks = new Chunk[4];
+    //the entries before it are visible to readers.
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append a touch command, it is invoked by the writer thread only.
+     *
+     * @return the sequence number of command.
+     */
+    public int appendTouch(CommandType type, int x, int y, boolean validateView) {
+        return appendEntry((byte) type.getValue(), validateView, x, y, null);
+    }
+
+    /**
+     * Append a time gap, it is invoked by the writer thread only.
+     *
+     * @return the sequence number of command.
+     */
+    public int appendGap(int gap) {
+        return appendEntry((byte) CommandType.TIME_GAP.getValue(), false, gap, 0, null);
+    }
+
+    /**
+     * Append a command object, it is invoked by the writer thread only.
+     *
+     * @return the sequence number of command.
+     */
+    public int append(ScriptCommand command) {
+        command.setSequenceId(size);
+        if (command instanceof MouseCommand) {
+            MouseCommand mouseCommand = (MouseCommand) command;
+            return appendEntry((byte) command.getType().getValue(), command.isValidateView(),
+                    mouseCommand.getX(), mouseCommand.getY(), command);
+        }
+        if (command instanceof TimeGapCommand) {
+            return appendEntry((byte) CommandType.TIME_GAP.getValue(), false,
+                    ((TimeGapCommand) command).getGap(), 0, command);
+        }
+        return appendEntry((byte) 0, command.isValidateView(), 0, 0, command);
+    }
+
+    private int appendEntry(byte type, boolean validateView, int x, int y, ScriptCommand command) {
+        int seq = size;
+        Chunk chunk = chunkForWrite(seq);
+        int offset = seq & CHUNK_MASK;
+        chunk.types[offset] = type;
+        chunk.flags[offset] = validateView ? FLAG_VALIDATE_VIEW : 0;
+        chunk.xs[offset] = x;
+        chunk.ys[offset] = y;
+        chunk.commands.set(offset, command);
+        chunk.views.set(offset, null);
+        //the entry is visible to readers from now on.
+        size = seq + 1;
+        return seq;
+    }
+
+    /**
+     * Return the command of sequence number.
+     */
+    public ScriptCommand get(int seq) {
+        if (seq < 0 || seq >= size) {
+            throw new IndexOutOfBoundsException("seq=" + seq + ", size=" + size);
+        }
+        Chunk chunk = chunks[seq >>> CHUNK_SHIFT];
+        int offset = seq & CHUNK_MASK;
+        ScriptCommand command = chunk.commands.get(offset);
+        if (command != null) {
+            return command;
+        }
+
+        CommandType type = CommandType.getType(chunk.types[offset]);
+        if (type == CommandType.TIME_GAP) {
+            command = new TimeGapCommand(chunk.xs[offset]);
+        } else {
+            command = new MouseCommand(type, chunk.xs[offset], chunk.ys[offset]);
+        }
+        command.setSequenceId(seq);
+        command.setValidateView((chunk.flags[offset] & FLAG_VALIDATE_VIEW) != 0);
+        if (!chunk.commands.compareAndSet(offset, null, command)) {
+            return chunk.commands.get(offset);
+        }
+        //the key view may be updated before the command is shared.
+        ViewNode view = chunk.views.get(offset);
+        if (view != null) {
+            command.setViewNode(view);
+        }
+        return command;
+    }
+
+    /**
+     * Return the commands from 'from' to the end of log.
+     */
+    public List<ScriptCommand> getCommands(int from) {
+        int end = size;
+        List<ScriptCommand> commandList = new ArrayList<>(Math.max(0, end - from));
+        for (int seq = from; seq < end; seq++) {
+            commandList.add(get(seq));
+        }
+        return commandList;
+    }
+
+    /**
+     * Update the key view of command, it can be invoked by any thread.
+     *
+     * @return false if the command is not found.
+     */
+    public boolean updateKeyView(int seq, ViewNode view) {
+        if (seq < 0 || seq >= size) {
+            return false;
+        }
+        Chunk chunk = chunks[seq >>> CHUNK_SHIFT];
+        int offset = seq & CHUNK_MASK;
+        chunk.views.set(offset, view);
+        ScriptCommand command = chunk.commands.get(offset);
+        if (command != null) {
+            command.setViewNode(view);
+        }
+        return true;
+    }
+
+    /**
+     * Return the sequence number of the first command whose key view is expected but missing, -1 if none.
+     */
+    public int findMissingKeyView() {
+        int end = size;
+        for (int seq = 0; seq < end; seq++) {
+            Chunk chunk = chunks[seq >>> CHUNK_SHIFT];
+            int offset = seq & CHUNK_MASK;
+            if ((chunk.flags[offset] & FLAG_VALIDATE_VIEW) == 0) {
+                continue;
+            }
+            ScriptCommand command = chunk.commands.get(offset);
+            if (chunk.views.get(offset) == null && (command == null || command.getViewNode() == null)) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the type of command without creating it.
+     */
+    public CommandType getType(int seq) {
+        Chunk chunk = chunks[seq >>> CHUNK_SHIFT];
+        int offset = seq & CHUNK_MASK;
+        byte type = chunk.types[offset];
+        return type == 0 ? chunk.commands.get(offset).getType() : CommandType.getType(type);
+    }
+
+    /**
+     * Return x of touch command, or the gap of time gap command.
+     */
+    public int getX(int seq) {
+        return chunks[seq >>> CHUNK_SHIFT].xs[seq & CHUNK_MASK];
+    }
+
+    public int getY(int seq) {
+        return chunks[seq >>> CHUNK_SHIFT].ys[seq & CHUNK_MASK];
+    }
+
+    private Chunk chunkForWrite(int seq) {
+        int index = seq >>> CHUNK_SHIFT;
+        Chunk[] current = chunks;
+        if (index >= current.length) {
+            Chunk[] grown = new Chunk[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+            chunks = current;
+        }
+        if (current[index] == null) {
+            current[index] = new Chunk();
+            //publish the new chunk.
+            chunks = current;
+        }
+        return current[index];
+    }
+}
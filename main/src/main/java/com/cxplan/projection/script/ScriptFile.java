@@ -0,0 +1,277 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.script.command.ScriptCommand;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The indexed script file.
+ *
+ * <pre>
+ * header:  magic("CXSCRIPT", 8 bytes) | version(int)
+ * records: [type(int) | encoded command] * count
+ * index:   the offset(long) of every record
+ * trailer: count(int) | index offset(long) | CRC32 of records and index(long)
+ * </pre>
+ * The records are the same as the legacy script file, which has no header.
+ * The file is memory-mapped and the commands are decoded when they are read, so a script is ready as soon as
+ * it is opened, and a command can be located by index directly. The checksum is verified by the iteration
+ * from the first command as it reaches the end, so the file is read once only.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class ScriptFile implements Iterable<ScriptCommand> {
+
+    public static final int VERSION = 2;
+    private static final byte[] MAGIC = "CXSCRIPT".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int TRAILER_SIZE = 4 + 8 + 8;
+
+    /**
+     * Check whether the file is an indexed script file, the legacy script file has no header.
+     */
+    public static boolean isIndexed(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[MAGIC.length];
+            return in.read(head) == head.length && Arrays.equals(head, MAGIC);
+        }
+    }
+
+    static boolean isIndexed(byte[] data) {
+        return data.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * Write the commands into an indexed script file, the stream is not closed.
+     */
+    public static void write(Iterable<ScriptCommand> commands, OutputStream outputStream) throws IOException {
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(outputStream, 64 * 1024);
+        DataOutputStream headerOutput = new DataOutputStream(bufferedOutput);
+        headerOutput.write(MAGIC);
+        headerOutput.writeInt(VERSION);
+
+        CRC32 crc = new CRC32();
+        DataOutputStream dataOutput = new DataOutputStream(new CheckedOutputStream(bufferedOutput, crc));
+        long[] offsets = new long[1024];
+        int count = 0;
+        for (ScriptCommand command : commands) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = HEADER_SIZE + dataOutput.size();
+            dataOutput.writeInt(command.getType().getValue());
+            command.encode(dataOutput);
+        }
+        long indexOffset = HEADER_SIZE + dataOutput.size();
+        for (int i = 0; i < count; i++) {
+            dataOutput.writeLong(offsets[i]);
+        }
+        dataOutput.flush();
+
+        headerOutput.writeInt(count);
+        headerOutput.writeLong(indexOffset);
+        headerOutput.writeLong(crc.getValue());
+        headerOutput.flush();
+    }
+
+    /**
+     * Open an indexed script file, the file is memory-mapped.
+     */
+    public static ScriptFile open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The script file is too large: " + file);
+            }
+            //the mapping is valid after the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ScriptFile(buffer);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int commandCount;
+    private final int indexOffset;
+    private final long checksum;
+
+    ScriptFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate();
+        int size = buffer.limit();
+        if (size < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("The script file is truncated: " + size + " bytes");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        this.buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("The script file is not indexed");
+        }
+        int version = this.buffer.getInt(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("The version of script file is not supported: " + version);
+        }
+        int trailer = size - TRAILER_SIZE;
+        commandCount = this.buffer.getInt(trailer);
+        long offset = this.buffer.getLong(trailer + 4);
+        checksum = this.buffer.getLong(trailer + 12);
+        if (commandCount < 0 || offset < HEADER_SIZE || offset + commandCount * 8L != trailer) {
+            throw new IOException("The index of script file is broken: count=" + commandCount + ", offset=" + offset);
+        }
+        indexOffset = (int) offset;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Check the data of file against the checksum in trailer, the file is read in one pass.
+     * It is not necessary if the commands are iterated from the first one, see {@link #iterator()}.
+     */
+    public void verify() throws IOException {
+        CRC32 crc = new CRC32();
+        updateChecksum(crc, HEADER_SIZE);
+        if (crc.getValue() != checksum) {
+            throw new IOException("The checksum of script file is mismatched, the file is broken.");
+        }
+    }
+
+    /**
+     * Update the checksum with the data from position to the end of index.
+     */
+    private void updateChecksum(CRC32 crc, int position) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(position);
+        data.limit(buffer.limit() - TRAILER_SIZE);
+        byte[] block = new byte[8192];
+        while (data.hasRemaining()) {
+            int length = Math.min(block.length, data.remaining());
+            data.get(block, 0, length);
+            crc.update(block, 0, length);
+        }
+    }
+
+    /**
+     * Read the command at index, the command is located by index directly.
+     */
+    public ScriptCommand getCommand(int index) throws IOException {
+        if (index < 0 || index >= commandCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", count: " + commandCount);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position((int) buffer.getLong(indexOffset + index * 8));
+        data.limit(indexOffset);
+        return readCommand(new DataInputStream(new ByteBufferInputStream(data)), index);
+    }
+
+    /**
+     * Iterate all commands, the checksum is verified when the last command is read.
+     * A {@link RuntimeException} is thrown if the file is broken.
+     */
+    @Override
+    public Iterator<ScriptCommand> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Return the iterator of commands from index, the commands are decoded one by one.
+     */
+    public Iterator<ScriptCommand> iterator(final int from) {
+        if (from < 0 || from > commandCount) {
+            throw new IndexOutOfBoundsException("Index: " + from + ", count: " + commandCount);
+        }
+        final ByteBuffer data = buffer.duplicate();
+        data.position(from == commandCount ? indexOffset : (int) buffer.getLong(indexOffset + from * 8));
+        data.limit(indexOffset);
+        //the records are checked while they are decoded if all of them are read.
+        final CRC32 crc = from == 0 ? new CRC32() : null;
+        InputStream in = new ByteBufferInputStream(data);
+        final DataInputStream input = new DataInputStream(crc == null ? in : new CheckedInputStream(in, crc));
+        return new Iterator<ScriptCommand>() {
+            private int index = from;
+
+            @Override
+            public boolean hasNext() {
+                return index < commandCount;
+            }
+
+            @Override
+            public ScriptCommand next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ScriptCommand command;
+                try {
+                    command = readCommand(input, index++);
+                } catch (IOException e) {
+                    throw new RuntimeException("The format of script file is illegal: " + e.getMessage(), e);
+                }
+                if (crc != null && index == commandCount) {
+                    updateChecksum(crc, data.position());
+                    if (data.position() != indexOffset || crc.getValue() != checksum) {
+                        throw new RuntimeException("The checksum of script file is mismatched, the file is broken.");
+                    }
+                }
+                return command;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static ScriptCommand readCommand(DataInputStream input, int index) throws IOException {
+        int commandType = input.readInt();
+        ScriptCommand sc = ScriptUtil.createCommand(CommandType.getType(commandType));
+        sc.decode(input);
+        sc.setSequenceId(index);
+        return sc;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
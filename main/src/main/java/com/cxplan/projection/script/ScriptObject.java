@@ -3,15 +3,25 @@ package com.cxplan.projection.script;
 import com.cxplan.projection.script.command.ScriptCommand;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
+ * The script made of commands.
+ *
+ * <p>A script loaded from an indexed script file(see {@link ScriptFile}) is backed by the file,
+ * the commands are decoded when they are iterated, they are not kept in memory until
+ * {@link #getCommandList()} is invoked. The file is not read on loading, its checksum is verified by the first
+ * complete iteration(e.g. compiling the script). The legacy script file is loaded into memory at once.
+ *
  * @author Kenny
  * created on 2019/3/29
  */
-public class ScriptObject {
+public class ScriptObject implements Iterable<ScriptCommand> {
 
     /**
      * Load script object from local file.
@@ -26,17 +36,35 @@ public class ScriptObject {
             throw new IOException("The script file is not found: " + scriptFile);
         }
 
-        return load(new FileInputStream(file));
+        if (ScriptFile.isIndexed(file)) {
+            return new ScriptObject(ScriptFile.open(file));
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return load(inputStream);
+        }
     }
 
     /**
-     * Load script object from input stream.
+     * Load script object from input stream, both the indexed and legacy format are supported.
      *
      * @return script object.
      * @throws IOException
      */
     public static ScriptObject load(InputStream inputStream) throws IOException {
-        LinkedList<ScriptCommand> commandList = loadCommandList(inputStream);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        byte[] data = output.toByteArray();
+        if (ScriptFile.isIndexed(data)) {
+            ScriptFile indexedFile = new ScriptFile(ByteBuffer.wrap(data));
+            indexedFile.verify();
+            return new ScriptObject(indexedFile);
+        }
+
+        LinkedList<ScriptCommand> commandList = loadCommandList(new ByteArrayInputStream(data));
         ScriptObject script = new ScriptObject(commandList);
         return script;
     }
@@ -59,10 +87,16 @@ public class ScriptObject {
     }
 
 
-    private LinkedList<ScriptCommand> eventList;
+    private List<ScriptCommand> eventList;
+    //the backing file, null if the commands are in memory.
+    private ScriptFile scriptFile;
 
     public ScriptObject(List<ScriptCommand> eventList) {
-        this.eventList = new LinkedList<>(eventList);
+        this.eventList = new ArrayList<>(eventList);
+    }
+
+    public ScriptObject(ScriptFile scriptFile) {
+        this.scriptFile = scriptFile;
     }
 
     public ScriptObject(String scriptFile) {
@@ -72,29 +106,57 @@ public class ScriptObject {
         }
 
         try {
-            eventList = loadCommandList(new FileInputStream(file));
+            ScriptObject script = load(scriptFile);
+            this.eventList = script.eventList;
+            this.scriptFile = script.scriptFile;
         } catch (IOException e) {
             throw new RuntimeException("The format of script file is illegal: " + e.getMessage(), e);
         }
     }
 
-    public LinkedList<ScriptCommand> getCommandList() {
+    /**
+     * Return a copy of commands, the commands of backing file are loaded into memory.
+     */
+    public synchronized LinkedList<ScriptCommand> getCommandList() {
+        if (eventList == null) {
+            eventList = new ArrayList<>(scriptFile.getCommandCount());
+            for (ScriptCommand command : scriptFile) {
+                eventList.add(command);
+            }
+        }
         return new LinkedList<>(eventList);
     }
 
-    public void export(OutputStream outputStream) throws IOException {
-        if (eventList == null) {
-            return;
-        }
-        DataOutputStream dataOutput = new DataOutputStream(outputStream);
+    public synchronized int getCommandCount() {
+        return eventList != null ? eventList.size() : scriptFile.getCommandCount();
+    }
 
-        Iterator<ScriptCommand> it = eventList.iterator();
-        while (it.hasNext()) {
-            ScriptCommand sc = it.next();
-            dataOutput.writeInt(sc.getType().getValue());
+    /**
+     * Return the command at index, it is read from backing file directly if the commands are not in memory.
+     */
+    public synchronized ScriptCommand getCommand(int index) throws IOException {
+        if (eventList != null) {
+            return eventList.get(index);
+        }
+        return scriptFile.getCommand(index);
+    }
 
-            sc.encode(dataOutput);
+    /**
+     * Iterate the commands without copying them, the commands of backing file are decoded one by one.
+     */
+    @Override
+    public synchronized Iterator<ScriptCommand> iterator() {
+        if (eventList != null) {
+            return Collections.unmodifiableList(eventList).iterator();
         }
+        return scriptFile.iterator();
+    }
+
+    /**
+     * Export the commands in indexed format.
+     */
+    public void export(OutputStream outputStream) throws IOException {
+        ScriptFile.write(this, outputStream);
     }
 
 }
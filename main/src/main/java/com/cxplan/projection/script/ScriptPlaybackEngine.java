@@ -0,0 +1,571 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.IApplication;
+import com.cxplan.projection.core.Application;
+import com.cxplan.projection.core.DefaultDeviceConnection;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.script.command.ScriptCommand;
+import com.cxplan.projection.script.command.ScriptException;
+import com.cxplan.projection.script.io.ScriptDeviceConnection;
+import com.cxplan.projection.script.plan.ExecutionPlan;
+import com.cxplan.projection.script.plan.PlanStep;
+import com.cxplan.projection.script.plan.ScriptCompiler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Play scripts on many devices concurrently.
+ *
+ * <p>The script is compiled into an execution plan once(see {@link ScriptCompiler}), the plan and its encoded
+ * messages are shared by all devices. The playback of every device is a chain of tasks, no thread is held by a device while it waits.
+ * The time gaps are timed tasks of a shared scheduler, the requests to device(waiting for readiness or
+ * view, executing command) are run by a bounded worker pool. A command is executed as soon as the device
+ * is ready(see {@link ReadinessDetector}), there is no fixed delay before commands.
+ *
+ * <p>Barrier steps can be set on commands: a device arriving at a barrier waits until all running
+ * devices arrive, then they execute the command at the same time, so the devices are kept in step.
+ *
+ * @author Kenny
+ * created on 2019/5/25
+ */
+public class ScriptPlaybackEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScriptPlaybackEngine.class);
+
+    private static final long WAIT_VIEW_TIMEOUT = 10000;
+    private static final long WAIT_IDLE_TIMEOUT = 4000;
+    private static final int WORKER_COUNT = 32;
+
+    private static class Holder {
+        private static final ScriptPlaybackEngine INSTANCE = new ScriptPlaybackEngine();
+    }
+
+    public static ScriptPlaybackEngine getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public enum PlayState {
+        WAITING, RUNNING, AT_BARRIER, FINISHED, FAILED, STOPPED
+    }
+
+    /**
+     * The listener of playback, it is notified from the threads of engine.
+     */
+    public interface PlaybackListener {
+        /**
+         * A command is executed on device, or the state of device is changed.
+         */
+        void onProgress(DeviceProgress progress);
+
+        /**
+         * All devices are finished, failed or stopped.
+         */
+        void onFinished(Playback playback);
+    }
+
+    /**
+     * The snapshot of playback on one device.
+     */
+    public static class DeviceProgress {
+        private final String deviceId;
+        private final PlayState state;
+        private final int executedCount;
+        private final int totalCount;
+        private final long waitTime;
+        private final long executeTime;
+        private final long elapsedTime;
+        private final String error;
+        private final List<Long> commandTimes;
+        private final List<Long> readinessTimes;
+
+        DeviceProgress(DeviceRun run) {
+            this.deviceId = run.deviceId;
+            this.state = run.state;
+            this.executedCount = run.playback.plan.getCommandIndex(run.index);
+            this.totalCount = run.playback.plan.getCommandCount();
+            this.waitTime = run.waitTime;
+            this.executeTime = run.executeTime;
+            this.elapsedTime = (run.endTime > 0 ? run.endTime : System.currentTimeMillis()) - run.startTime;
+            this.error = run.error;
+            this.commandTimes = new ArrayList<>(run.commandTimes);
+            this.readinessTimes = new ArrayList<>(run.readinessTimes);
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public PlayState getState() {
+            return state;
+        }
+
+        public int getExecutedCount() {
+            return executedCount;
+        }
+
+        public int getTotalCount() {
+            return totalCount;
+        }
+
+        /**
+         * Return the total time of waiting for device idle or key view(milliseconds).
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Return the total time of executing commands(milliseconds).
+         */
+        public long getExecuteTime() {
+            return executeTime;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Return the time cost(milliseconds) of every executed step of plan, including waiting.
+         */
+        public List<Long> getCommandTimes() {
+            return commandTimes;
+        }
+
+        /**
+         * Return the time(milliseconds) spent before device is ready, for every executed step which has no key view.
+         */
+        public List<Long> getReadinessTimes() {
+            return readinessTimes;
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceProgress{" +
+                    "deviceId='" + deviceId + '\'' +
+                    ", state=" + state +
+                    ", executed=" + executedCount + "/" + totalCount +
+                    ", wait=" + waitTime + "ms" +
+                    ", execute=" + executeTime + "ms" +
+                    ", elapsed=" + elapsedTime + "ms" +
+                    (error == null ? "" : ", error='" + error + '\'') +
+                    '}';
+        }
+    }
+
+    /**
+     * The playback of a script on a group of devices.
+     */
+    public class Playback {
+        private final ScriptObject script;
+        private final ExecutionPlan plan;
+        private final Set<Integer> barrierSet;
+        private final PlaybackListener listener;
+        private final Map<String, DeviceRun> runMap = new LinkedHashMap<>();
+        //the barrier which the devices are waiting at, -1 means none.
+        private int barrierIndex = -1;
+        private final List<DeviceRun> arrivedList = new ArrayList<>();
+        private volatile boolean stopped;
+        private boolean finished;
+
+        Playback(ScriptObject script, ExecutionPlan plan, List<String> deviceIds, Set<Integer> barrierSet,
+                 PlaybackListener listener) {
+            this.script = script;
+            this.plan = plan;
+            this.barrierSet = barrierSet;
+            this.listener = listener;
+            for (String deviceId : deviceIds) {
+                runMap.put(deviceId, new DeviceRun(this, deviceId));
+            }
+        }
+
+        public ScriptObject getScript() {
+            return script;
+        }
+
+        public ExecutionPlan getPlan() {
+            return plan;
+        }
+
+        public boolean isRunning() {
+            synchronized (this) {
+                return !finished;
+            }
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * Stop the playback on all devices, the requests in progress are finished.
+         */
+        public void stop() {
+            stopped = true;
+            synchronized (this) {
+                for (DeviceRun run : arrivedList) {
+                    scheduleNext(run, 0);
+                }
+                arrivedList.clear();
+                barrierIndex = -1;
+            }
+        }
+
+        public List<DeviceProgress> getProgress() {
+            List<DeviceProgress> list = new ArrayList<>(runMap.size());
+            for (DeviceRun run : runMap.values()) {
+                list.add(new DeviceProgress(run));
+            }
+            return list;
+        }
+
+        /**
+         * The device arrives at a barrier, return true if the device should wait.
+         */
+        synchronized boolean arrive(DeviceRun run) {
+            if (stopped) {
+                return false;
+            }
+            if (barrierIndex != -1 && barrierIndex != run.index) {
+                //The devices are at different barriers, it happens only if the barriers are skipped by failure.
+                logger.warn("The device({}) arrives at barrier({}), but others are waiting at barrier({})",
+                        run.deviceId, run.index, barrierIndex);
+            }
+            barrierIndex = run.index;
+            arrivedList.add(run);
+            run.state = PlayState.AT_BARRIER;
+            notifyProgress(run);
+            releaseBarrier();
+            return true;
+        }
+
+        /**
+         * Release the waiting devices if all running devices have arrived.
+         */
+        private void releaseBarrier() {
+            if (barrierIndex == -1) {
+                return;
+            }
+            for (DeviceRun run : runMap.values()) {
+                if (!run.isDone() && !arrivedList.contains(run)) {
+                    return;
+                }
+            }
+            logger.info("{} devices pass the barrier at command({})", arrivedList.size(),
+                    plan.getCommandIndex(barrierIndex));
+            for (DeviceRun run : arrivedList) {
+                run.passedBarrier = run.index;
+                run.state = PlayState.RUNNING;
+                scheduleNext(run, 0);
+            }
+            arrivedList.clear();
+            barrierIndex = -1;
+        }
+
+        synchronized void onDone(DeviceRun run) {
+            notifyProgress(run);
+            releaseBarrier();
+            for (DeviceRun r : runMap.values()) {
+                if (!r.isDone()) {
+                    return;
+                }
+            }
+            finished = true;
+            logger.info("The playback of script is finished: {}", getProgress());
+            if (listener != null) {
+                try {
+                    listener.onFinished(this);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        void notifyProgress(DeviceRun run) {
+            if (listener != null) {
+                try {
+                    listener.onProgress(new DeviceProgress(run));
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of playback on one device.
+     */
+    private static class DeviceRun {
+        final Playback playback;
+        final String deviceId;
+        DefaultDeviceConnection connection;
+        volatile PlayState state = PlayState.WAITING;
+        //the index of next step.
+        volatile int index;
+        int passedBarrier = -1;
+        long startTime;
+        long endTime;
+        long waitTime;
+        long executeTime;
+        String error;
+        final List<Long> commandTimes = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> readinessTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+        DeviceRun(Playback playback, String deviceId) {
+            this.playback = playback;
+            this.deviceId = deviceId;
+        }
+
+        boolean isDone() {
+            return state == PlayState.FINISHED || state == PlayState.FAILED || state == PlayState.STOPPED;
+        }
+    }
+
+    private final IApplication application;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workerPool;
+    private final ReadinessDetector readinessDetector;
+
+    private ScriptPlaybackEngine() {
+        this.application = Application.getInstance();
+        this.readinessDetector = new ReadinessDetector(application);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Script Scheduler");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        workerPool = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+            private AtomicInteger index = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "Script Worker-" + index.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+    }
+
+    /**
+     * Play the script on devices.
+     *
+     * @param script the script object.
+     * @param deviceIds the devices which the script is played on.
+     * @param barriers the indexes of commands which are executed by all devices at the same time, nullable.
+     * @param listener the listener of progress, nullable.
+     * @return the handle of playback.
+     * @throws ScriptException if the script can't be compiled.
+     */
+    public Playback play(ScriptObject script, List<String> deviceIds, Set<Integer> barriers,
+                         PlaybackListener listener) throws ScriptException {
+        Set<Integer> barrierSet = barriers == null ? new HashSet<Integer>() : new HashSet<>(barriers);
+        int gestureRate = Setting.getInstance().getIntProperty(SettingConstant.KEY_SCRIPT_GESTURE_RATE,
+                ScriptCompiler.DEFAULT_GESTURE_RATE);
+        ExecutionPlan plan = ScriptCompiler.compile(script, barrierSet, gestureRate);
+        Playback playback = new Playback(script, plan, deviceIds, barrierSet, listener);
+        for (final DeviceRun run : playback.runMap.values()) {
+            workerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    start(run);
+                }
+            });
+        }
+        return playback;
+    }
+
+    private void start(DeviceRun run) {
+        run.startTime = System.currentTimeMillis();
+        ScriptDeviceConnection connection = application.getScriptConnection(run.deviceId);
+        if (connection == null) {
+            fail(run, "The Script connection is missing: " + run.deviceId, null);
+            return;
+        }
+        run.connection = (DefaultDeviceConnection) application.getDeviceConnection(run.deviceId);
+        if (run.connection == null) {
+            fail(run, "The device is offline: " + run.deviceId, null);
+            return;
+        }
+        try {
+            connection.openChannel();
+        } catch (Exception e) {
+            fail(run, e.getMessage(), e);
+            return;
+        }
+        run.state = PlayState.RUNNING;
+        run.playback.notifyProgress(run);
+        next(run);
+    }
+
+    /**
+     * Step to the next step of device, it never blocks.
+     */
+    private void next(final DeviceRun run) {
+        Playback playback = run.playback;
+        if (playback.stopped) {
+            done(run, PlayState.STOPPED);
+            return;
+        }
+        if (run.index >= playback.plan.size()) {
+            done(run, PlayState.FINISHED);
+            return;
+        }
+        final PlanStep step = playback.plan.getStep(run.index);
+        if (playback.barrierSet.contains(step.getCommandIndex()) && run.passedBarrier != run.index
+                && playback.arrive(run)) {
+            return;
+        }
+
+        final long stepStart = System.currentTimeMillis();
+        if (step.getKind() == PlanStep.Kind.GAP) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finishCommand(run, stepStart);
+                }
+            }, step.getGap(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        workerPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                executeStep(run, step, stepStart);
+            }
+        });
+    }
+
+    private void executeStep(DeviceRun run, PlanStep step, long stepStart) {
+        if (run.playback.stopped) {
+            done(run, PlayState.STOPPED);
+            return;
+        }
+        logger.info("Step({}): {}", run.deviceId, step);
+        ScriptCommand command = step.getCommand();
+        long waitStart = System.currentTimeMillis();
+        try {
+            if (command.getViewNode() != null) {
+                int ret = application.getScriptService().waitForView(run.deviceId, command.getViewNode(), WAIT_VIEW_TIMEOUT);
+                if (ret == 2) {
+                    fail(run, "The key view is not found, the script will be broken!", null);
+                    return;
+                } else if (ret == 3) {
+                    fail(run, "Waiting key view presented is timeout[" + WAIT_VIEW_TIMEOUT + "], the script will be broken!", null);
+                    return;
+                }
+            } else if (step.getKind() != PlanStep.Kind.GESTURE) {//the gesture continues a touch in progress.
+                long readinessTime = readinessDetector.awaitReady(run.deviceId, command, WAIT_IDLE_TIMEOUT);
+                if (readinessTime < 0) {
+                    fail(run, "Waiting device idle is timeout[" + WAIT_IDLE_TIMEOUT + "].", null);
+                    return;
+                }
+                run.readinessTimes.add(readinessTime);
+            }
+            long executeStart = System.currentTimeMillis();
+            run.waitTime += executeStart - waitStart;
+
+            if (step.getKind() == PlanStep.Kind.GESTURE) {
+                sendGesture(run, step, 0, executeStart, stepStart);
+                return;
+            } else if (step.getKind() == PlanStep.Kind.SEND) {
+                run.connection.sendEncodedMessage(step.getMessage(0));
+            } else {
+                command.execute(application, run.deviceId);
+            }
+            run.executeTime += System.currentTimeMillis() - executeStart;
+        } catch (MessageException e) {
+            fail(run, e.getMessage(), e);
+            return;
+        } catch (Exception e) {
+            fail(run, e.getMessage(), e);
+            return;
+        }
+        finishCommand(run, stepStart);
+    }
+
+    /**
+     * Send the touch-move messages of gesture at their offsets, the next message is a timed task of scheduler.
+     */
+    private void sendGesture(final DeviceRun run, final PlanStep step, final int index, final long gestureStart,
+                             final long stepStart) {
+        if (run.playback.stopped) {
+            done(run, PlayState.STOPPED);
+            return;
+        }
+        try {
+            run.connection.sendEncodedMessage(step.getMessage(index));
+        } catch (MessageException e) {
+            fail(run, e.getMessage(), e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (index + 1 >= step.getMessageCount()) {
+            run.executeTime += now - gestureStart;
+            finishCommand(run, stepStart);
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendGesture(run, step, index + 1, gestureStart, stepStart);
+            }
+        }, Math.max(0, gestureStart + step.getOffset(index + 1) - now), TimeUnit.MILLISECONDS);
+    }
+
+    private void finishCommand(DeviceRun run, long commandStart) {
+        run.commandTimes.add(System.currentTimeMillis() - commandStart);
+        run.index++;
+        run.playback.notifyProgress(run);
+        next(run);
+    }
+
+    private void scheduleNext(final DeviceRun run, long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                next(run);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fail(DeviceRun run, String error, Exception e) {
+        logger.error("Playing script on device(" + run.deviceId + ") failed: " + error, e);
+        run.error = error;
+        done(run, PlayState.FAILED);
+    }
+
+    private void done(DeviceRun run, PlayState state) {
+        synchronized (run) {
+            if (run.isDone()) {
+                return;
+            }
+            run.state = state;
+            run.endTime = System.currentTimeMillis();
+        }
+        logger.info("The script on device({}) is {}, executed commands: {}, time: {}ms", run.deviceId,
+                state, run.index, run.endTime - run.startTime);
+        run.playback.onDone(run);
+    }
+}
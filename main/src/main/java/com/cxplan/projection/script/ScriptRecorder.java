@@ -1,13 +1,14 @@
 package com.cxplan.projection.script;
 
 import com.cxplan.projection.IApplication;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.script.command.MouseCommand;
 import com.cxplan.projection.script.command.ScriptCommand;
 import com.cxplan.projection.script.command.TimeGapCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -19,19 +20,19 @@ public class ScriptRecorder {
 
     private static final Logger logger = LoggerFactory.getLogger(ScriptRecorder.class);
 
+    //the default tolerance(pixels) of move simplification.
+    public static final int DEFAULT_MOVE_TOLERANCE = 2;
+    //the max number of moves buffered before they are simplified.
+    private static final int MAX_GESTURE_MOVES = 256;
+
     /**
-     * key: The sequence number of command
-     * value: The script command.
+     * The recorded commands, the sequence number of command is its index in log.
+     * It is written by the input thread only.
      */
-    private LinkedHashMap<Integer, ScriptCommand> seq2CommandMap;
+    private volatile ScriptEventLog eventLog;
     private long startTime;
     private long endTime;
     private boolean running;
-    /**
-     * current sequence number of command event.
-     * The start value is 0.
-     */
-    private volatile int num;
 
     private IApplication application;
     private String deviceId;
@@ -40,8 +41,27 @@ public class ScriptRecorder {
     private CopyOnWriteArrayList<RecorderListener> listenerList;
 
     //the status fields for recording.
-    private long lastEventTime = 0L;
-    private CommandType lastCommandType;
+    private volatile long lastEventTime = 0L;
+    private volatile CommandType lastCommandType;
+
+    /**
+     * The status of move simplification, they are accessed by the input thread only.
+     * The moves of a gesture are buffered until another event, then the track from the last recorded point
+     * is simplified(see {@link GestureSimplifier}), only the kept moves are recorded.
+     */
+    private int moveTolerance;
+    private boolean hasAnchor;
+    private int anchorX, anchorY;
+    //the buffered points, the first one is the anchor if 'bufferStart' is 1.
+    private final int[] moveX = new int[MAX_GESTURE_MOVES + 1];
+    private final int[] moveY = new int[MAX_GESTURE_MOVES + 1];
+    //the time from the last recorded command.
+    private final int[] moveTime = new int[MAX_GESTURE_MOVES + 1];
+    private int bufferStart;
+    private int bufferSize;
+    //the gap after the last buffered move.
+    private int pendingGap;
+    private boolean hasPendingGap;
 
     public ScriptRecorder(String deviceId, IApplication application) {
         this.deviceId = deviceId;
@@ -49,19 +69,58 @@ public class ScriptRecorder {
         startTime = 0;
         endTime = 0;
         running = false;
-        seq2CommandMap = new LinkedHashMap<>();
+        eventLog = new ScriptEventLog();
         listenerList = new CopyOnWriteArrayList<>();
     }
 
+    /**
+     * Record a command, it should be invoked by the input thread.
+     *
+     * @return the sequence number of command, -1 if the command is a move which is buffered for simplification.
+     */
     public int addEvent(ScriptCommand command) {
-        command.setSequenceId(num);
-        seq2CommandMap.put(num, command);
+        if (command instanceof TimeGapCommand) {
+            addTimeGap(((TimeGapCommand) command).getGap());
+            return -1;
+        }
+        if (command instanceof MouseCommand && command.getType() == CommandType.MOUSE_MOVE
+                && !command.isValidateView() && command.getViewNode() == null) {
+            return addTouch(CommandType.MOUSE_MOVE, ((MouseCommand) command).getX(),
+                    ((MouseCommand) command).getY(), false);
+        }
+
+        flushMoves();
         lastEventTime = System.currentTimeMillis();
         lastCommandType = command.getType();
-        //fire event
-        fireCommandCreatedEvent(command);
+        int seq = append(command);
+        hasAnchor = command instanceof MouseCommand && command.getType() != CommandType.MOUSE_UP;
+        if (hasAnchor) {
+            anchorX = ((MouseCommand) command).getX();
+            anchorY = ((MouseCommand) command).getY();
+        }
+        return seq;
+    }
 
-        return num++;
+    /**
+     * Record a touch event without creating command object, it should be invoked by the input thread.
+     *
+     * @return the sequence number of command, -1 if the command is a move which is buffered for simplification.
+     */
+    public int addTouch(CommandType type, int x, int y, boolean validateView) {
+        lastEventTime = System.currentTimeMillis();
+        lastCommandType = type;
+        if (type == CommandType.MOUSE_MOVE && !validateView && moveTolerance > 0) {
+            bufferMove(x, y);
+            return -1;
+        }
+
+        flushMoves();
+        int seq = eventLog.appendTouch(type, x, y, validateView);
+        fireCommandCreatedEvent(seq);
+        hasAnchor = type == CommandType.MOUSE_DOWN || type == CommandType.MOUSE_MOVE;
+        anchorX = x;
+        anchorY = y;
+        return seq;
     }
 
     public long getLastEventTime() {
@@ -80,17 +139,16 @@ public class ScriptRecorder {
         listenerList.remove(listener);
     }
 
+    /**
+     * Update the key view of command, it can be invoked by any thread.
+     */
     public void updateKeyView(int seqNum, ViewNode view) {
         if ( view == null) {
             throw new IllegalArgumentException("The view node is missing");
         }
-        ScriptCommand command = seq2CommandMap.get(seqNum);
-        if (command == null) {
+        if (!eventLog.updateKeyView(seqNum, view)) {
             logger.error("The command is not found: " + seqNum);
-            return;
         }
-
-        command.setViewNode(view);
     }
 
     public void removeCommand(int seqNum) {
@@ -98,17 +156,37 @@ public class ScriptRecorder {
     }
 
     public void addTimeGap(int gap) {
-        addEvent(new TimeGapCommand(gap));
+        lastEventTime = System.currentTimeMillis();
+        lastCommandType = CommandType.TIME_GAP;
+        if (moveTolerance > 0) {
+            //the gap may be merged with the moves around it.
+            pendingGap += gap;
+            hasPendingGap = true;
+            return;
+        }
+        fireCommandCreatedEvent(eventLog.appendGap(gap));
     }
 
     public void clearCommands() {
-        seq2CommandMap.clear();
+        eventLog = new ScriptEventLog();
+        resetMoves();
         startTime = 0;
         endTime = 0;
     }
 
+    /**
+     * Return the recorded commands, the moves of the gesture in progress are not included
+     * until the gesture is finished.
+     */
     public List<ScriptCommand> getCommandList() {
-        return new ArrayList<>(seq2CommandMap.values());
+        return eventLog.getCommands(0);
+    }
+
+    /**
+     * Return the log of recorded commands, it can be read incrementally by any thread.
+     */
+    public ScriptEventLog getEventLog() {
+        return eventLog;
     }
 
     public void start() {
@@ -119,11 +197,14 @@ public class ScriptRecorder {
 
         running = true;
         startTime = System.currentTimeMillis();
-        num = 0;
-        seq2CommandMap.clear();
+        eventLog = new ScriptEventLog();
+        resetMoves();
+        moveTolerance = Setting.getInstance().getIntProperty(SettingConstant.KEY_RECORD_MOVE_TOLERANCE,
+                DEFAULT_MOVE_TOLERANCE);
     }
 
     public void stop() {
+        flushMoves();
         if (!validateCommands()) {
             throw new RuntimeException("Some commands may not be completed!");
         }
@@ -132,14 +213,18 @@ public class ScriptRecorder {
     }
 
     public int getCurrentSequence() {
-        return num - 1;
+        return eventLog.size() - 1;
     }
 
     public boolean isRecording() {
         return running;
     }
 
-    void fireCommandCreatedEvent(ScriptCommand command) {
+    void fireCommandCreatedEvent(int seq) {
+        if (listenerList.isEmpty()) {
+            return;
+        }
+        ScriptCommand command = eventLog.get(seq);
         for (RecorderListener listener : listenerList) {
             listener.onCommandCreated(command);
         }
@@ -149,13 +234,83 @@ public class ScriptRecorder {
      * Return true if all commands is legal, otherwise a false value will be returned.
      */
     boolean validateCommands() {
-        for (ScriptCommand command : seq2CommandMap.values()) {
-            if (command.isValidateView() && command.getViewNode() == null) {
-                return false;
+        return eventLog.findMissingKeyView() < 0;
+    }
+
+    private int append(ScriptCommand command) {
+        int seq = eventLog.append(command);
+        fireCommandCreatedEvent(seq);
+        return seq;
+    }
+
+    private void bufferMove(int x, int y) {
+        if (bufferSize == 0) {
+            bufferStart = 0;
+            if (hasAnchor) {
+                moveX[0] = anchorX;
+                moveY[0] = anchorY;
+                moveTime[0] = 0;
+                bufferStart = 1;
             }
+            bufferSize = bufferStart;
+        }
+        int lastTime = bufferSize > 0 ? moveTime[bufferSize - 1] : 0;
+        moveX[bufferSize] = x;
+        moveY[bufferSize] = y;
+        moveTime[bufferSize] = lastTime + pendingGap;
+        bufferSize++;
+        clearPendingGap();
+
+        if (bufferSize - bufferStart >= MAX_GESTURE_MOVES) {
+            recordMoves();
         }
+    }
+
+    /**
+     * Simplify the buffered moves and record the kept ones, the last move is the anchor of next moves.
+     */
+    private void recordMoves() {
+        boolean[] kept = GestureSimplifier.simplify(moveX, moveY, moveTime, bufferSize, moveTolerance);
+        int lastTime = 0;
+        for (int i = bufferStart; i < bufferSize; i++) {
+            if (!kept[i]) {
+                continue;
+            }
+            if (moveTime[i] > lastTime) {
+                fireCommandCreatedEvent(eventLog.appendGap(moveTime[i] - lastTime));
+            }
+            fireCommandCreatedEvent(eventLog.appendTouch(CommandType.MOUSE_MOVE, moveX[i], moveY[i], false));
+            lastTime = moveTime[i];
+        }
+        hasAnchor = true;
+        anchorX = moveX[bufferSize - 1];
+        anchorY = moveY[bufferSize - 1];
+        bufferSize = 0;
+    }
+
+    /**
+     * Record the buffered moves and the pending gap.
+     */
+    private void flushMoves() {
+        if (bufferSize > bufferStart) {
+            recordMoves();
+        }
+        bufferSize = 0;
+        if (hasPendingGap) {
+            fireCommandCreatedEvent(eventLog.appendGap(pendingGap));
+            clearPendingGap();
+        }
+    }
+
+    private void clearPendingGap() {
+        pendingGap = 0;
+        hasPendingGap = false;
+    }
 
-        return true;
+    private void resetMoves() {
+        hasAnchor = false;
+        bufferSize = 0;
+        clearPendingGap();
     }
 
     public interface RecorderListener {
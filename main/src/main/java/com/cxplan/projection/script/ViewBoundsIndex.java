@@ -0,0 +1,173 @@
+package com.cxplan.projection.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An R-tree of the bounds of views, it is built from a snapshot of view hierarchy and never changed.
+ *
+ * <p>The tree is packed by Sort-Tile-Recursive: the views are sorted by x into vertical slices, then by y in every
+ * slice, every {@link #NODE_CAPACITY} adjacent entries make a node, and so on up to the root.
+ * The entries of a node are always adjacent in the level below, so the tree is kept in flat arrays.
+ *
+ * @author Kenny
+ * created on 2019/5/28
+ */
+public class ViewBoundsIndex {
+
+    private static final int NODE_CAPACITY = 16;
+
+    private static class Entry {
+        final ViewNode node;
+        //the position in hierarchy, a view is above the views before it.
+        final int order;
+
+        Entry(ViewNode node, int order) {
+            this.node = node;
+            this.order = order;
+        }
+    }
+
+    private final int version;
+    private final Entry[] entries;
+    //the bounds of level 0(views) to the root level.
+    private final List<int[]> levelBounds = new ArrayList<>();
+
+    /**
+     * @param version the version of hierarchy.
+     * @param viewList the views in pre-order of hierarchy, the invisible or empty ones are ignored.
+     */
+    public ViewBoundsIndex(int version, List<ViewNode> viewList) {
+        this.version = version;
+        List<Entry> entryList = new ArrayList<>(viewList.size());
+        for (int i = 0; i < viewList.size(); i++) {
+            ViewNode node = viewList.get(i);
+            if (node.isVisible() && node.getBound() != null && !node.getBound().isEmpty()) {
+                entryList.add(new Entry(node, i));
+            }
+        }
+        entries = entryList.toArray(new Entry[0]);
+        sortTiles();
+
+        int[] bounds = new int[entries.length * 4];
+        for (int i = 0; i < entries.length; i++) {
+            ScriptRect rect = entries[i].node.getBound();
+            bounds[i * 4] = rect.getLeft();
+            bounds[i * 4 + 1] = rect.getTop();
+            bounds[i * 4 + 2] = rect.getRight();
+            bounds[i * 4 + 3] = rect.getBottom();
+        }
+        levelBounds.add(bounds);
+        while (bounds.length > 4) {
+            int count = bounds.length / 4;
+            int parentCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            int[] parentBounds = new int[parentCount * 4];
+            for (int parent = 0; parent < parentCount; parent++) {
+                int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+                int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+                int end = Math.min(count, (parent + 1) * NODE_CAPACITY);
+                for (int child = parent * NODE_CAPACITY; child < end; child++) {
+                    left = Math.min(left, bounds[child * 4]);
+                    top = Math.min(top, bounds[child * 4 + 1]);
+                    right = Math.max(right, bounds[child * 4 + 2]);
+                    bottom = Math.max(bottom, bounds[child * 4 + 3]);
+                }
+                parentBounds[parent * 4] = left;
+                parentBounds[parent * 4 + 1] = top;
+                parentBounds[parent * 4 + 2] = right;
+                parentBounds[parent * 4 + 3] = bottom;
+            }
+            levelBounds.add(parentBounds);
+            bounds = parentBounds;
+        }
+    }
+
+    /**
+     * Return the version of hierarchy which the index is built from.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Return the smallest view which contains the point, null if none.
+     */
+    public ViewNode hit(int x, int y) {
+        if (entries.length == 0) {
+            return null;
+        }
+        Entry found = null;
+        long foundArea = Long.MAX_VALUE;
+        int top = levelBounds.size() - 1;
+        //the stack of (level, index)
+        int[] stack = new int[(top + 1) * NODE_CAPACITY * 2 + 2];
+        int sp = 0;
+        int rootCount = levelBounds.get(top).length / 4;
+        for (int i = 0; i < rootCount; i++) {
+            stack[sp++] = top;
+            stack[sp++] = i;
+        }
+        while (sp > 0) {
+            int index = stack[--sp];
+            int level = stack[--sp];
+            int[] bounds = levelBounds.get(level);
+            if (x < bounds[index * 4] || y < bounds[index * 4 + 1]
+                    || x >= bounds[index * 4 + 2] || y >= bounds[index * 4 + 3]) {
+                continue;
+            }
+            if (level == 0) {
+                long area = (long) (bounds[index * 4 + 2] - bounds[index * 4])
+                        * (bounds[index * 4 + 3] - bounds[index * 4 + 1]);
+                //the later view is above the earlier one with the same bounds.
+                if (area < foundArea || (area == foundArea && entries[index].order > found.order)) {
+                    found = entries[index];
+                    foundArea = area;
+                }
+                continue;
+            }
+            int childCount = levelBounds.get(level - 1).length / 4;
+            int end = Math.min(childCount, (index + 1) * NODE_CAPACITY);
+            for (int child = index * NODE_CAPACITY; child < end; child++) {
+                stack[sp++] = level - 1;
+                stack[sp++] = child;
+            }
+        }
+        return found == null ? null : found.node;
+    }
+
+    private void sortTiles() {
+        int leafCount = (entries.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        if (sliceCount <= 1) {
+            Arrays.sort(entries, CENTER_Y);
+            return;
+        }
+        Arrays.sort(entries, CENTER_X);
+        int sliceSize = sliceCount * NODE_CAPACITY;
+        for (int start = 0; start < entries.length; start += sliceSize) {
+            Arrays.sort(entries, start, Math.min(entries.length, start + sliceSize), CENTER_Y);
+        }
+    }
+
+    private static final Comparator<Entry> CENTER_X = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return Integer.compare(o1.node.getBound().getLeft() + o1.node.getBound().getRight(),
+                    o2.node.getBound().getLeft() + o2.node.getBound().getRight());
+        }
+    };
+
+    private static final Comparator<Entry> CENTER_Y = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return Integer.compare(o1.node.getBound().getTop() + o1.node.getBound().getBottom(),
+                    o2.node.getBound().getTop() + o2.node.getBound().getBottom());
+        }
+    };
+}
@@ -0,0 +1,378 @@
+package com.cxplan.projection.script;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The copy of view hierarchy of device, it is kept up to date by the diffs pushed by the script process
+ * (see {@link HierarchyDiff}), so the views can be searched without a request to device.
+ *
+ * <p>The views are indexed by resource id, text and class name. The bounds are indexed by an R-tree
+ * (see {@link ViewBoundsIndex}) which is built from a snapshot of hierarchy when it is needed, it is rebuilt
+ * only after the hierarchy is changed, so the hit tests of hover are answered without locking.
+ * The children of a view are kept in drawing order, and the roots in the order they are added,
+ * so the views are collected in the order they are drawn, the later one is on top.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class ViewHierarchyCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ViewHierarchyCache.class);
+
+    public static final int FOUND = 1;
+    public static final int TIMEOUT = 3;
+    //the cache is not synchronized with device, the device should be asked.
+    public static final int UNSYNCED = 0;
+
+    private static class CachedView {
+        final int id;
+        final int parentId;
+        ViewNode node;
+        //in drawing order.
+        final List<Integer> childIds = new ArrayList<>();
+
+        CachedView(int id, int parentId, ViewNode node) {
+            this.id = id;
+            this.parentId = parentId;
+            this.node = node;
+        }
+    }
+
+    private final String deviceId;
+    //in the order of adding, so the roots are ordered.
+    private final Map<Integer, CachedView> viewMap = new LinkedHashMap<>();
+    private final Map<String, Set<Integer>> resourceIdIndex = new HashMap<>();
+    private final Map<String, Set<Integer>> textIndex = new HashMap<>();
+    private final Map<String, Set<Integer>> classNameIndex = new HashMap<>();
+    //-1 means the cache is not synchronized.
+    private int version = -1;
+    //the bounds index of current version, null if it is not built yet.
+    private ViewBoundsIndex boundsIndex;
+    private final List<Runnable> changeListenerList = new CopyOnWriteArrayList<>();
+
+    public ViewHierarchyCache(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public synchronized boolean isSynced() {
+        return version >= 0;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return viewMap.size();
+    }
+
+    /**
+     * Add a listener which is notified after the hierarchy is changed, it is invoked on the network thread.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListenerList.add(listener);
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListenerList.remove(listener);
+    }
+
+    /**
+     * Drop the cached views, it is invoked when the connection to script process is broken.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            clear();
+            version = -1;
+            notifyAll();
+        }
+        fireChanged();
+    }
+
+    /**
+     * Apply the diff pushed by device.
+     *
+     * @return false if the diff is not based on the cached version, a full diff should be requested.
+     */
+    public boolean applyDiff(HierarchyDiff diff) {
+        synchronized (this) {
+            if (!doApplyDiff(diff)) {
+                return false;
+            }
+        }
+        fireChanged();
+        return true;
+    }
+
+    private boolean doApplyDiff(HierarchyDiff diff) {
+        if (diff.isFull()) {
+            clear();
+        } else if (version < 0 || diff.getBaseVersion() != version) {
+            logger.warn("The hierarchy diff of device({}) is out of order: cached={}, base={}", deviceId,
+                    version, diff.getBaseVersion());
+            clear();
+            version = -1;
+            notifyAll();
+            return false;
+        }
+
+        if (diff.getOperations() != null) {
+            for (HierarchyDiff.Operation operation : diff.getOperations()) {
+                if (HierarchyDiff.OP_ADD.equals(operation.getType())) {
+                    removeView(operation.getId());
+                    addView(operation.getId(), operation.getParentId(), operation.getIndex(), operation.getNode());
+                } else if (HierarchyDiff.OP_UPDATE.equals(operation.getType())) {
+                    CachedView view = viewMap.get(operation.getId());
+                    if (view == null) {
+                        addView(operation.getId(), operation.getParentId(), operation.getIndex(),
+                                operation.getNode());
+                    } else {
+                        unindex(view);
+                        view.node = operation.getNode();
+                        index(view);
+                    }
+                } else if (HierarchyDiff.OP_REMOVE.equals(operation.getType())) {
+                    removeView(operation.getId());
+                } else {
+                    logger.warn("Unknown operation of hierarchy diff: {}", operation.getType());
+                }
+            }
+        }
+        version = diff.getVersion();
+        boundsIndex = null;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Find the view which matches the target, the visible view whose bounds are the nearest to the target
+     * is returned if there are many.
+     *
+     * @return the cached view, null if not found.
+     */
+    public synchronized ViewNode findView(ViewNode target) {
+        Collection<Integer> candidates = null;
+        if (!isEmpty(target.getResourceId())) {
+            candidates = lookup(resourceIdIndex, target.getResourceId());
+        }
+        if (!isEmpty(target.getText())) {
+            candidates = smaller(candidates, lookup(textIndex, target.getText()));
+        }
+        if (!isEmpty(target.getClassName())) {
+            candidates = smaller(candidates, lookup(classNameIndex, target.getClassName()));
+        }
+        if (candidates == null) {
+            candidates = viewMap.keySet();
+        }
+
+        ViewNode found = null;
+        long foundDistance = Long.MAX_VALUE;
+        for (Integer id : candidates) {
+            ViewNode node = viewMap.get(id).node;
+            if (!matches(node, target)) {
+                continue;
+            }
+            long distance = distance(node.getBound(), target.getBound());
+            if (found == null || distance < foundDistance) {
+                found = node;
+                foundDistance = distance;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return the smallest visible view which contains the point.
+     */
+    public ViewNode span(int x, int y) {
+        ViewBoundsIndex index = getBoundsIndex();
+        return index == null ? null : index.hit(x, y);
+    }
+
+    /**
+     * Return the bounds index of current hierarchy, it is immutable and can be used without lock.
+     * Null is returned if the cache is not synchronized.
+     */
+    public synchronized ViewBoundsIndex getBoundsIndex() {
+        if (version < 0) {
+            return null;
+        }
+        if (boundsIndex == null) {
+            List<ViewNode> viewList = new ArrayList<>(viewMap.size());
+            for (CachedView view : viewMap.values()) {
+                if (!viewMap.containsKey(view.parentId)) {
+                    collect(view, viewList);
+                }
+            }
+            boundsIndex = new ViewBoundsIndex(version, viewList);
+        }
+        return boundsIndex;
+    }
+
+    private void collect(CachedView view, List<ViewNode> viewList) {
+        viewList.add(view.node);
+        for (Integer childId : view.childIds) {
+            collect(viewMap.get(childId), viewList);
+        }
+    }
+
+    /**
+     * Wait until the view is presented in the hierarchy.
+     *
+     * @return {@link #FOUND}, {@link #TIMEOUT}, or {@link #UNSYNCED} if the cache can't answer.
+     */
+    public synchronized int waitForView(ViewNode target, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            if (!isSynced()) {
+                return UNSYNCED;
+            }
+            if (findView(target) != null) {
+                return FOUND;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return TIMEOUT;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return TIMEOUT;
+            }
+        }
+    }
+
+    private void clear() {
+        viewMap.clear();
+        resourceIdIndex.clear();
+        textIndex.clear();
+        classNameIndex.clear();
+        boundsIndex = null;
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : changeListenerList) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void addView(int id, int parentId, int index, ViewNode node) {
+        if (node == null) {
+            return;
+        }
+        CachedView view = new CachedView(id, parentId, node);
+        viewMap.put(id, view);
+        CachedView parent = viewMap.get(parentId);
+        if (parent != null) {
+            if (index >= 0 && index < parent.childIds.size()) {
+                parent.childIds.add(index, id);
+            } else {
+                parent.childIds.add(id);
+            }
+        }
+        index(view);
+    }
+
+    /**
+     * Remove the view and its descendants.
+     */
+    private void removeView(int id) {
+        CachedView view = viewMap.remove(id);
+        if (view == null) {
+            return;
+        }
+        unindex(view);
+        CachedView parent = viewMap.get(view.parentId);
+        if (parent != null) {
+            parent.childIds.remove(Integer.valueOf(id));
+        }
+        for (Integer childId : new ArrayList<>(view.childIds)) {
+            removeView(childId);
+        }
+    }
+
+    private void index(CachedView view) {
+        ViewNode node = view.node;
+        put(resourceIdIndex, node.getResourceId(), view.id);
+        put(textIndex, node.getText(), view.id);
+        put(classNameIndex, node.getClassName(), view.id);
+    }
+
+    private void unindex(CachedView view) {
+        ViewNode node = view.node;
+        remove(resourceIdIndex, node.getResourceId(), view.id);
+        remove(textIndex, node.getText(), view.id);
+        remove(classNameIndex, node.getClassName(), view.id);
+    }
+
+    private static <K> void put(Map<K, Set<Integer>> index, K key, int id) {
+        if (key == null || (key instanceof String && ((String) key).isEmpty())) {
+            return;
+        }
+        Set<Integer> ids = index.get(key);
+        if (ids == null) {
+            ids = new HashSet<>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static <K> void remove(Map<K, Set<Integer>> index, K key, int id) {
+        if (key == null) {
+            return;
+        }
+        Set<Integer> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static Collection<Integer> lookup(Map<String, Set<Integer>> index, String key) {
+        Set<Integer> ids = index.get(key);
+        return ids == null ? new HashSet<Integer>(0) : ids;
+    }
+
+    private static Collection<Integer> smaller(Collection<Integer> a, Collection<Integer> b) {
+        return a == null || b.size() < a.size() ? b : a;
+    }
+
+    private static boolean matches(ViewNode node, ViewNode target) {
+        return node.isVisible()
+                && (isEmpty(target.getResourceId()) || target.getResourceId().equals(node.getResourceId()))
+                && (isEmpty(target.getText()) || target.getText().equals(node.getText()))
+                && (isEmpty(target.getClassName()) || target.getClassName().equals(node.getClassName()))
+                && (isEmpty(target.getPackageName()) || target.getPackageName().equals(node.getPackageName()))
+                && (isEmpty(target.getContentDesc()) || target.getContentDesc().equals(node.getContentDesc()));
+    }
+
+    private static long distance(ScriptRect a, ScriptRect b) {
+        if (a == null || b == null) {
+            return Long.MAX_VALUE - 1;
+        }
+        return (long) Math.abs(a.getLeft() - b.getLeft()) + Math.abs(a.getTop() - b.getTop())
+                + Math.abs(a.getRight() - b.getRight()) + Math.abs(a.getBottom() - b.getBottom());
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
@@ -0,0 +1,301 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.util.StringUtil;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JSON codec of {@link ViewNode}, {@link ScriptRect} and {@link HierarchyDiff} on the streaming API of Jackson.
+ *
+ * <p>The format is the same as the one of {@link StringUtil#toJSONString(Object)}(the short names of
+ * {@link com.fasterxml.jackson.annotation.JsonProperty}, null values are omitted), but the fields are read and
+ * written directly without reflection. A hierarchy diff is read token by token into the views, no intermediate
+ * tree is built. The unknown fields are skipped.
+ *
+ * @author Kenny
+ * created on 2019/5/29
+ */
+public class ViewNodeCodec {
+
+    private static final JsonFactory factory = StringUtil.JSON_MAPPER_NOTNULL.getFactory();
+
+    private ViewNodeCodec() {
+    }
+
+    /**
+     * Parse a view node from string in json format.
+     *
+     * @throws IllegalArgumentException This type exception will be thrown if the format is illegal.
+     */
+    public static ViewNode readViewNode(String content) {
+        if (content == null) {
+            return null;
+        }
+        try (JsonParser parser = factory.createParser(content)) {
+            parser.nextToken();
+            return readViewNode(parser);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Parsing view node failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parse a hierarchy diff from string in json format.
+     *
+     * @throws IllegalArgumentException This type exception will be thrown if the format is illegal.
+     */
+    public static HierarchyDiff readHierarchyDiff(String content) {
+        if (content == null) {
+            return null;
+        }
+        try (JsonParser parser = factory.createParser(content)) {
+            parser.nextToken();
+            return readHierarchyDiff(parser);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Parsing hierarchy diff failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Convert a view node to a string value in json format.
+     */
+    public static String toJSONString(ViewNode node) {
+        StringWriter writer = new StringWriter(256);
+        try (JsonGenerator generator = factory.createGenerator(writer)) {
+            writeViewNode(generator, node);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Writing view node failed: " + e.getMessage(), e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Read a view node, the current token of parser should be the start of object(or null).
+     */
+    public static ViewNode readViewNode(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, JsonToken.START_OBJECT);
+        ViewNode node = new ViewNode();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            switch (name) {
+                case "t":
+                    node.setText(parser.getValueAsString());
+                    break;
+                case "ri":
+                    node.setResourceId(parser.getValueAsString());
+                    break;
+                case "cn":
+                    node.setClassName(parser.getValueAsString());
+                    break;
+                case "pn":
+                    node.setPackageName(parser.getValueAsString());
+                    break;
+                case "cd":
+                    node.setContentDesc(parser.getValueAsString());
+                    break;
+                case "ic":
+                    node.setCheckable(parser.getValueAsBoolean());
+                    break;
+                case "icd":
+                    node.setChecked(parser.getValueAsBoolean());
+                    break;
+                case "ica":
+                    node.setClickable(parser.getValueAsBoolean());
+                    break;
+                case "ie":
+                    node.setEnabled(parser.getValueAsBoolean());
+                    break;
+                case "if":
+                    node.setFocusable(parser.getValueAsBoolean());
+                    break;
+                case "ifd":
+                    node.setFocused(parser.getValueAsBoolean());
+                    break;
+                case "is":
+                    node.setScrollable(parser.getValueAsBoolean());
+                    break;
+                case "ilc":
+                    node.setLongClickable(parser.getValueAsBoolean());
+                    break;
+                case "ip":
+                    node.setPassword(parser.getValueAsBoolean());
+                    break;
+                case "isd":
+                    node.setSelected(parser.getValueAsBoolean());
+                    break;
+                case "iea":
+                    node.setEditable(parser.getValueAsBoolean());
+                    break;
+                case "iv":
+                    node.setVisible(parser.getValueAsBoolean());
+                    break;
+                case "b":
+                    node.setBound(readRect(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Read a rectangle, the current token of parser should be the start of object(or null).
+     */
+    public static ScriptRect readRect(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, JsonToken.START_OBJECT);
+        ScriptRect rect = new ScriptRect();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            switch (name) {
+                case "l":
+                    rect.setLeft(parser.getValueAsInt());
+                    break;
+                case "t":
+                    rect.setTop(parser.getValueAsInt());
+                    break;
+                case "r":
+                    rect.setRight(parser.getValueAsInt());
+                    break;
+                case "b":
+                    rect.setBottom(parser.getValueAsInt());
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return rect;
+    }
+
+    /**
+     * Read a hierarchy diff, the current token of parser should be the start of object.
+     */
+    public static HierarchyDiff readHierarchyDiff(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        HierarchyDiff diff = new HierarchyDiff();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "b":
+                    diff.setBaseVersion(parser.getValueAsInt());
+                    break;
+                case "v":
+                    diff.setVersion(parser.getValueAsInt());
+                    break;
+                case "f":
+                    diff.setFull(parser.getValueAsBoolean());
+                    break;
+                case "ops":
+                    if (token == JsonToken.VALUE_NULL) {
+                        break;
+                    }
+                    expect(parser, JsonToken.START_ARRAY);
+                    List<HierarchyDiff.Operation> operations = new ArrayList<>();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        operations.add(readOperation(parser));
+                    }
+                    diff.setOperations(operations);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return diff;
+    }
+
+    private static HierarchyDiff.Operation readOperation(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        HierarchyDiff.Operation operation = new HierarchyDiff.Operation();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            switch (name) {
+                case "o":
+                    operation.setType(parser.getValueAsString());
+                    break;
+                case "id":
+                    operation.setId(parser.getValueAsInt());
+                    break;
+                case "p":
+                    operation.setParentId(parser.getValueAsInt(-1));
+                    break;
+                case "i":
+                    operation.setIndex(parser.getValueAsInt(-1));
+                    break;
+                case "n":
+                    operation.setNode(readViewNode(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Write a view node, nothing but a null value is written if the node is null.
+     */
+    public static void writeViewNode(JsonGenerator generator, ViewNode node) throws IOException {
+        if (node == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        writeString(generator, "t", node.getText());
+        writeString(generator, "ri", node.getResourceId());
+        writeString(generator, "cn", node.getClassName());
+        writeString(generator, "pn", node.getPackageName());
+        writeString(generator, "cd", node.getContentDesc());
+        generator.writeBooleanField("ic", node.isCheckable());
+        generator.writeBooleanField("icd", node.isChecked());
+        generator.writeBooleanField("ica", node.isClickable());
+        generator.writeBooleanField("ie", node.isEnabled());
+        generator.writeBooleanField("if", node.isFocusable());
+        generator.writeBooleanField("ifd", node.isFocused());
+        generator.writeBooleanField("is", node.isScrollable());
+        generator.writeBooleanField("ilc", node.isLongClickable());
+        generator.writeBooleanField("ip", node.isPassword());
+        generator.writeBooleanField("isd", node.isSelected());
+        generator.writeBooleanField("iea", node.isEditable());
+        generator.writeBooleanField("iv", node.isVisible());
+        ScriptRect bound = node.getBound();
+        if (bound != null) {
+            generator.writeObjectFieldStart("b");
+            generator.writeNumberField("l", bound.getLeft());
+            generator.writeNumberField("t", bound.getTop());
+            generator.writeNumberField("r", bound.getRight());
+            generator.writeNumberField("b", bound.getBottom());
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException {
+        if (parser.getCurrentToken() != token) {
+            throw new IOException("Expected " + token + " but " + parser.getCurrentToken() + " at "
+                    + parser.getCurrentLocation());
+        }
+    }
+}
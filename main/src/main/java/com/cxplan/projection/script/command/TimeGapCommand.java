@@ -38,6 +38,10 @@ public class TimeGapCommand extends ScriptCommand {
         gap = dataInput.readInt();
     }
 
+    /**
+     * The gap is scheduled by the playback engine without executing this method,
+     * it blocks the caller only when the command is executed directly.
+     */
     @Override
     public void execute(IApplication application, String deviceId) throws ScriptException {
         try {
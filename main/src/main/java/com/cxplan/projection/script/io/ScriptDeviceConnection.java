@@ -4,13 +4,19 @@ import com.android.ddmlib.IDevice;
 import com.cxplan.projection.IApplication;
 import com.cxplan.projection.core.Application;
 import com.cxplan.projection.core.BaseDeviceConnection;
+import com.cxplan.projection.core.adb.AdbUtil;
 import com.cxplan.projection.core.adb.ForwardManager;
 import com.cxplan.projection.core.connection.ConnectException;
+import com.cxplan.projection.core.setting.Setting;
+import com.cxplan.projection.core.setting.SettingConstant;
+import com.cxplan.projection.net.CompressionFilter;
 import com.cxplan.projection.net.DeviceIoHandlerAdapter;
 import com.cxplan.projection.net.message.*;
+import com.cxplan.projection.net.protocol.FrameCompressor;
 import com.cxplan.projection.script.ScriptObject;
 import com.cxplan.projection.script.ScriptPlayer;
 import com.cxplan.projection.script.ScriptRecorder;
+import com.cxplan.projection.script.ViewHierarchyCache;
 import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.slf4j.Logger;
@@ -30,6 +36,7 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
     private IDevice device;
     private ScriptRecorder recorder;
     private ScriptPlayer player;
+    private final ViewHierarchyCache hierarchyCache;
 
     private volatile boolean isConnecting;
 
@@ -38,9 +45,31 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
         this.application = application;
         this.device = device;
         recorder = new ScriptRecorder(getJId().getId(), application);
+        hierarchyCache = new ViewHierarchyCache(id);
         isConnecting = false;
     }
 
+    public ViewHierarchyCache getHierarchyCache() {
+        return hierarchyCache;
+    }
+
+    /**
+     * Ask the script process to push the diffs of view hierarchy, a full diff is pushed first.
+     */
+    public void watchHierarchy() {
+        if (!Setting.getInstance().getBooleanProperty(SettingConstant.KEY_VIEW_HIERARCHY_CACHE, true)) {
+            return;
+        }
+        hierarchyCache.invalidate();
+        Message message = new Message(MessageUtil.CMD_DEVICE_SCRIPT_WATCH_HIERARCHY);
+        message.setParameter("enable", true);
+        try {
+            sendMessage(message);
+        } catch (MessageException e) {
+            logger.error("Watching view hierarchy failed: " + e.getMessage(), e);
+        }
+    }
+
     public void playRecorder() {
         if (recorder == null) {
             throw new RuntimeException("There is no recorder found");
@@ -95,6 +124,7 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
     @Override
     public void close() {
         super.close();
+        hierarchyCache.invalidate();
         Application.getInstance().fireOnScriptConnectionClosedEvent(this);
     }
 
@@ -122,7 +152,7 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
             logger.info("script port: " + port);
             //ensure the forward available.
             try {
-                device.createForward(port, ForwardManager.SCRIPT_REMOTE_PORT);
+                AdbUtil.createForward(device, port, ForwardManager.SCRIPT_REMOTE_PORT);
             } catch (Exception e) {
                 throw new ConnectException("Forwarding port for script failed: local port=" + port
                         + ", remote port=" + ForwardManager.SCRIPT_REMOTE_PORT, e);
@@ -161,8 +191,16 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
             int tryCount = 0;
             while (tryCount < 4) {
                 Message createMsg = new Message(MessageUtil.CMD_DEVICE_CREATE_SESSION);
+                if (AdbUtil.isWirelessDevice(device) && Setting.getInstance().getBooleanProperty(
+                        SettingConstant.KEY_WIRELESS_COMPRESSION, true)) {
+                    createMsg.setParameter("cz", FrameCompressor.DICTIONARY_VIEW_V1);
+                }
                 try {
                     Message retMsg = MessageUtil.request(this, createMsg, 2000);
+                    Byte compressDictionary = retMsg.getParameter("cz");
+                    if (compressDictionary != null) {
+                        CompressionFilter.enableCompression(messageSession, compressDictionary);
+                    }
                     break;
                 } catch (MessageException e) {
                     if (e instanceof MessageTimeoutException || messageSession == null) {
@@ -177,6 +215,7 @@ public class ScriptDeviceConnection extends BaseDeviceConnection {
             }
 
             logger.info("Connect to script server successfully!");
+            watchHierarchy();
             Application.getInstance().fireOnScriptConnectedEvent(this);
         } finally {
             isConnecting = false;
@@ -0,0 +1,48 @@
+package com.cxplan.projection.script.plan;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The compiled form of script, see {@link ScriptCompiler}.
+ * It is immutable, so a plan is shared by all devices which the script is played on.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class ExecutionPlan {
+
+    private final List<PlanStep> stepList;
+    private final int commandCount;
+
+    ExecutionPlan(List<PlanStep> stepList, int commandCount) {
+        this.stepList = Collections.unmodifiableList(stepList);
+        this.commandCount = commandCount;
+    }
+
+    public int size() {
+        return stepList.size();
+    }
+
+    public PlanStep getStep(int index) {
+        return stepList.get(index);
+    }
+
+    public List<PlanStep> getStepList() {
+        return stepList;
+    }
+
+    /**
+     * Return the count of commands in script.
+     */
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Return the count of commands before the step.
+     */
+    public int getCommandIndex(int stepIndex) {
+        return stepIndex < stepList.size() ? stepList.get(stepIndex).getCommandIndex() : commandCount;
+    }
+}
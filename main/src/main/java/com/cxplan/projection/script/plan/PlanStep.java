@@ -0,0 +1,106 @@
+package com.cxplan.projection.script.plan;
+
+import com.cxplan.projection.script.command.ScriptCommand;
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A step of execution plan, it is made of one or more adjacent commands of script.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class PlanStep {
+
+    public enum Kind {
+        /**
+         * Wait for a period of time, the adjacent time gaps are merged.
+         */
+        GAP,
+        /**
+         * Send an encoded message to device.
+         */
+        SEND,
+        /**
+         * Send a series of encoded touch-move messages at fixed offsets of time.
+         */
+        GESTURE,
+        /**
+         * Execute the command as it is, the message depends on the device.
+         */
+        COMMAND
+    }
+
+    private final Kind kind;
+    //the first command of step.
+    private final ScriptCommand command;
+    private final int commandIndex;
+    private final int commandCount;
+    private final long gap;
+    private final IoBuffer[] messages;
+    //the offsets(milliseconds) of messages from the start of step.
+    private final long[] offsets;
+
+    PlanStep(Kind kind, ScriptCommand command, int commandIndex, int commandCount, long gap,
+             IoBuffer[] messages, long[] offsets) {
+        this.kind = kind;
+        this.command = command;
+        this.commandIndex = commandIndex;
+        this.commandCount = commandCount;
+        this.gap = gap;
+        this.messages = messages;
+        this.offsets = offsets;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public ScriptCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * Return the index of first command of this step in script.
+     */
+    public int getCommandIndex() {
+        return commandIndex;
+    }
+
+    /**
+     * Return the count of script commands merged into this step.
+     */
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public long getGap() {
+        return gap;
+    }
+
+    public int getMessageCount() {
+        return messages == null ? 0 : messages.length;
+    }
+
+    /**
+     * Return the encoded message, it is shared by all devices and must not be modified.
+     */
+    public IoBuffer getMessage(int index) {
+        return messages[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case GAP:
+                return "GAP " + gap + "ms";
+            case GESTURE:
+                return "GESTURE " + messages.length + " moves in " + offsets[offsets.length - 1] + "ms";
+            default:
+                return String.valueOf(command);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.cxplan.projection.script.plan;
+
+import com.cxplan.projection.MonkeyConstant;
+import com.cxplan.projection.net.message.Message;
+import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.message.MessageUtil;
+import com.cxplan.projection.script.CommandType;
+import com.cxplan.projection.script.ScriptObject;
+import com.cxplan.projection.script.command.MouseCommand;
+import com.cxplan.projection.script.command.PressCommand;
+import com.cxplan.projection.script.command.ScriptCommand;
+import com.cxplan.projection.script.command.ScriptException;
+import com.cxplan.projection.script.command.TimeGapCommand;
+import org.apache.mina.core.buffer.IoBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compile a script into an execution plan.
+ *
+ * <ul>
+ *     <li>The adjacent time gaps are merged into one step.</li>
+ *     <li>A run of touch-move commands(with the time gaps between them) is collapsed into one gesture step,
+ *     the track is re-sampled at the frame rate of device by linear interpolation, so a track simplified
+ *     on recording(see {@link com.cxplan.projection.script.GestureSimplifier}) is played smoothly.</li>
+ *     <li>The messages of touch and press commands are encoded once, they are sent to all devices as they are.</li>
+ * </ul>
+ * The commands whose message depends on device(e.g. scroll) are kept as they are.
+ * A barrier command always starts a new step, so the devices can wait at it.
+ *
+ * @author Kenny
+ * created on 2019/5/27
+ */
+public class ScriptCompiler {
+
+    //the default rate(Hz) of touch-move messages in a gesture, it is the frame rate of most devices.
+    public static final int DEFAULT_GESTURE_RATE = 60;
+
+    private ScriptCompiler() {
+    }
+
+    public static ExecutionPlan compile(ScriptObject script) throws ScriptException {
+        return compile(script, null, DEFAULT_GESTURE_RATE);
+    }
+
+    /**
+     * @param script the script object.
+     * @param barriers the indexes of commands which must start a step, nullable.
+     * @param gestureRate the rate(Hz) of touch-move messages in a gesture, the track is re-sampled at it.
+     */
+    public static ExecutionPlan compile(ScriptObject script, Set<Integer> barriers, int gestureRate)
+            throws ScriptException {
+        if (gestureRate <= 0) {
+            gestureRate = DEFAULT_GESTURE_RATE;
+        }
+        int gestureInterval = Math.max(1, 1000 / gestureRate);
+        if (barriers == null) {
+            barriers = Collections.emptySet();
+        }
+        //the commands are read through the iterator, a script backed by file is not loaded into memory.
+        CommandCursor cursor = new CommandCursor(script.iterator());
+        List<PlanStep> stepList = new ArrayList<>();
+        while (cursor.hasNext(0)) {
+            int start = cursor.getIndex();
+            ScriptCommand command = cursor.next();
+            if (command instanceof TimeGapCommand) {
+                long gap = ((TimeGapCommand) command).getGap();
+                while (cursor.hasNext(0) && cursor.peek(0) instanceof TimeGapCommand
+                        && !barriers.contains(cursor.getIndex())) {
+                    gap += ((TimeGapCommand) cursor.next()).getGap();
+                }
+                stepList.add(new PlanStep(PlanStep.Kind.GAP, command, start, cursor.getIndex() - start, gap,
+                        null, null));
+            } else if (command.getType() == CommandType.MOUSE_MOVE) {
+                compileGesture((MouseCommand) command, cursor, barriers, gestureInterval, stepList);
+            } else if (command instanceof MouseCommand || command instanceof PressCommand) {
+                IoBuffer[] messages = new IoBuffer[]{encode(createMessage(command))};
+                stepList.add(new PlanStep(PlanStep.Kind.SEND, command, start, 1, 0, messages, new long[]{0}));
+            } else {
+                stepList.add(new PlanStep(PlanStep.Kind.COMMAND, command, start, 1, 0, null, null));
+            }
+        }
+
+        return new ExecutionPlan(stepList, cursor.getIndex());
+    }
+
+    /**
+     * Collapse the touch-move commands from the first one into a gesture step,
+     * the cursor is moved to the first command after the gesture.
+     */
+    private static void compileGesture(MouseCommand first, CommandCursor cursor, Set<Integer> barriers,
+                                       int gestureInterval, List<PlanStep> stepList) throws ScriptException {
+        int start = cursor.getIndex() - 1;
+        List<long[]> points = new ArrayList<>();//time, x, y
+        points.add(new long[]{0, first.getX(), first.getY()});
+        long time = 0;
+        while (cursor.hasNext(0) && !barriers.contains(cursor.getIndex())) {
+            ScriptCommand command = cursor.peek(0);
+            if (command.getType() == CommandType.MOUSE_MOVE) {
+                MouseCommand move = (MouseCommand) cursor.next();
+                points.add(new long[]{time, move.getX(), move.getY()});
+            } else if (command instanceof TimeGapCommand && cursor.hasNext(1)
+                    && cursor.peek(1).getType() == CommandType.MOUSE_MOVE
+                    && !barriers.contains(cursor.getIndex() + 1)) {
+                time += ((TimeGapCommand) cursor.next()).getGap();
+            } else {
+                break;
+            }
+        }
+        int end = cursor.getIndex();
+
+        long duration = time;
+        List<long[]> samples;
+        if (duration <= 0) {
+            samples = new ArrayList<>(points.size());
+            for (long[] point : points) {
+                samples.add(new long[]{0, point[1], point[2]});
+            }
+        } else {
+            samples = new ArrayList<>((int) (duration / gestureInterval) + 2);
+            for (long t = 0; t < duration; t += gestureInterval) {
+                samples.add(new long[]{t});
+            }
+            samples.add(new long[]{duration});
+        }
+
+        IoBuffer[] messages = new IoBuffer[samples.size()];
+        long[] offsets = new long[samples.size()];
+        int segment = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            long[] sample = samples.get(i);
+            offsets[i] = sample[0];
+            float x, y;
+            if (sample.length == 3) {
+                x = sample[1];
+                y = sample[2];
+            } else {
+                //find the segment of track which contains the time, the samples are in order.
+                while (segment < points.size() - 2 && points.get(segment + 1)[0] <= sample[0]) {
+                    segment++;
+                }
+                long[] from = points.get(segment);
+                long[] to = points.get(Math.min(segment + 1, points.size() - 1));
+                float ratio = to[0] == from[0] ? 1 : (float) (sample[0] - from[0]) / (to[0] - from[0]);
+                ratio = Math.max(0, Math.min(1, ratio));
+                x = from[1] + (to[1] - from[1]) * ratio;
+                y = from[2] + (to[2] - from[2]) * ratio;
+            }
+            messages[i] = encode(createTouchMessage(MonkeyConstant.EVENT_TOUCH_MOVE, x, y));
+        }
+        stepList.add(new PlanStep(PlanStep.Kind.GESTURE, first, start, end - start, 0, messages, offsets));
+    }
+
+    private static Message createMessage(ScriptCommand command) throws ScriptException {
+        if (command instanceof PressCommand) {
+            Message message = new Message(MessageUtil.CMD_DEVICE_MONKEY);
+            message.setParameter("kc", ((PressCommand) command).getKeyCode());
+            message.setParameter("type", MonkeyConstant.EVENT_PRESS);
+            return message;
+        }
+        MouseCommand mouseCommand = (MouseCommand) command;
+        switch (command.getType()) {
+            case MOUSE_DOWN:
+                return createTouchMessage(MonkeyConstant.EVENT_TOUCH_DOWN, mouseCommand.getX(), mouseCommand.getY());
+            case MOUSE_UP:
+                return createTouchMessage(MonkeyConstant.EVENT_TOUCH_UP, mouseCommand.getX(), mouseCommand.getY());
+            case MOUSE_MOVE:
+                return createTouchMessage(MonkeyConstant.EVENT_TOUCH_MOVE, mouseCommand.getX(), mouseCommand.getY());
+            default:
+                throw new ScriptException("The mouse command type is illegal: " + command.getType());
+        }
+    }
+
+    private static Message createTouchMessage(short type, float x, float y) {
+        Message message = new Message(MessageUtil.CMD_DEVICE_MONKEY);
+        message.setParameter("x", x);
+        message.setParameter("y", y);
+        message.setParameter("type", type);
+        return message;
+    }
+
+    private static IoBuffer encode(Message message) throws ScriptException {
+        try {
+            IoBuffer buffer = message.getBinary();
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (MessageException e) {
+            throw new ScriptException("Encoding message failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the commands one by one, with a few commands read ahead.
+     */
+    private static class CommandCursor {
+        private final Iterator<ScriptCommand> iterator;
+        //the commands read ahead, the first one is at 'index'.
+        private final List<ScriptCommand> lookahead = new ArrayList<>(2);
+        private int index;
+
+        CommandCursor(Iterator<ScriptCommand> iterator) {
+            this.iterator = iterator;
+        }
+
+        /**
+         * Return the index of next command.
+         */
+        int getIndex() {
+            return index;
+        }
+
+        boolean hasNext(int ahead) throws ScriptException {
+            while (lookahead.size() <= ahead) {
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                try {
+                    lookahead.add(iterator.next());
+                } catch (RuntimeException e) {
+                    throw new ScriptException("Reading command(" + (index + lookahead.size()) + ") failed: "
+                            + e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        ScriptCommand peek(int ahead) throws ScriptException {
+            if (!hasNext(ahead)) {
+                throw new NoSuchElementException();
+            }
+            return lookahead.get(ahead);
+        }
+
+        ScriptCommand next() throws ScriptException {
+            ScriptCommand command = peek(0);
+            lookahead.remove(0);
+            index++;
+            return command;
+        }
+    }
+}
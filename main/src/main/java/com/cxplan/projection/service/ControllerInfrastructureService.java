@@ -7,9 +7,15 @@ import com.cxplan.projection.MonkeyConstant;
 import com.cxplan.projection.core.CXService;
 import com.cxplan.projection.core.DefaultDeviceConnection;
 import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.DeploymentCache;
+import com.cxplan.projection.core.adb.DeviceProcessSupervisor;
+import com.cxplan.projection.core.adb.DeviceEnvironment;
 import com.cxplan.projection.core.adb.RecordMeta;
 import com.cxplan.projection.core.connection.ClientConnection;
 import com.cxplan.projection.core.connection.IDeviceConnection;
+import com.cxplan.projection.core.image.ImageSessionID;
+import com.cxplan.projection.core.image.ImageSessionManager;
+import com.cxplan.projection.core.image.RecorderImageSession;
 import com.cxplan.projection.core.setting.Setting;
 import com.cxplan.projection.core.setting.SettingConstant;
 import com.cxplan.projection.net.message.Message;
@@ -21,9 +27,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author KennyLiu
@@ -35,8 +41,8 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
     public static final String PROP_SDK = "ro.build.version.sdk";
 
     private static final Logger logger = LoggerFactory.getLogger(ControllerInfrastructureService.class);
-
-    private Map<String, Thread> mainThreadMap = new ConcurrentHashMap<>();
+    private static final String MAIN_APK_FILE = "res/mediate/CXTouch.apk";
+    private static final String MINICAP_LS_COMMAND = "ls /data/local/tmp/minicap /data/local/tmp/minicap.so";
 
     @Override
     public String getMainPackageInstallPath(String deviceId) {
@@ -58,10 +64,62 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
         return versionCode;
     }
 
+    @Override
+    public DeviceEnvironment checkEnvironment(String deviceId) {
+        DefaultDeviceConnection connection = (DefaultDeviceConnection)application.getDeviceConnection(deviceId);
+        if (connection == null) {
+            throw new IllegalArgumentException("The device doesn't exist: " + deviceId);
+        }
+        IDevice device = connection.getDevice();
+        String ps = AdbUtil.getPsCommand(device);
+        String[] cmds = new String[] {
+                "pm path " + CommonUtil.PACKAGE_MAIN,
+                "dumpsys package " + CommonUtil.PACKAGE_MAIN + "|grep versionCode",
+                "pm path " + CommonUtil.PACKAGE_SCRIPT,
+                "dumpsys package " + CommonUtil.PACKAGE_SCRIPT + "|grep versionCode",
+                ps + "|grep " + CommonUtil.PROCESS_NAME_MAIN,
+                ps + "|grep " + CommonUtil.PROCESS_NAME_SCRIPT,
+                ps + "|grep minicap",
+                MINICAP_LS_COMMAND
+        };
+        String[] outputs = AdbUtil.shellBatch(device, 10000, cmds);
+
+        DeviceEnvironment environment = new DeviceEnvironment();
+        environment.setMainPackagePath(AdbUtil.parsePackagePath(outputs[0]));
+        if (environment.getMainPackagePath() != null) {
+            environment.setMainPackageVersion(AdbUtil.parseVersionCode(outputs[1]));
+        }
+        environment.setScriptPackagePath(AdbUtil.parsePackagePath(outputs[2]));
+        if (environment.getScriptPackagePath() != null) {
+            environment.setScriptPackageVersion(AdbUtil.parseVersionCode(outputs[3]));
+        }
+        environment.setMainProcessId(resolveProcessID(outputs[4], CommonUtil.PROCESS_NAME_MAIN));
+        environment.setScriptProcessId(resolveProcessID(outputs[5], CommonUtil.PROCESS_NAME_SCRIPT));
+        environment.setMinicapProcessId(resolveProcessID(outputs[6], "/data/local/tmp/minicap"));
+        environment.setMinicapInstalled(resolveMinicapInstallation(outputs[7]));
+        logger.info("The environment of device({}): {}", deviceId, environment);
+
+        return environment;
+    }
+
+    private int resolveProcessID(String ret, String processName) {
+        if (StringUtil.isEmpty(ret)) {
+            return -1;
+        }
+        return CommonUtil.resolveProcessID(ret.trim(), processName);
+    }
+
     @Override
     public void installMainProcess(IDevice device) {
+        String installedPath = AdbUtil.getPackagePath(CommonUtil.PACKAGE_MAIN, device);
+        if (DeploymentCache.getInstance().isInstalledPackageCurrent(device, installedPath, new File(MAIN_APK_FILE))) {
+            logger.info("The installed main package is identical with local file, skip installing: {}", installedPath);
+            return;
+        }
+        //the path of package is changed after installing, the supervised command is out of date.
+        DeviceProcessSupervisor.getInstance().stop(device, CommonUtil.PROCESS_NAME_MAIN);
         try {
-            device.installPackage("res/mediate/CXTouch.apk", true);
+            device.installPackage(MAIN_APK_FILE, true);
         } catch (InstallException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -76,29 +134,12 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
             return;
         }
 
-        final String deviceId = AdbUtil.getDeviceId(device);
-        final String cmd = buildMainCmd(device);
-        synchronized (mainThreadMap) {
-            if (mainThreadMap.containsKey(deviceId)) {
-                return;
-            }
-            Thread th = new Thread("MainPackage Thread-" + deviceId) {
-
-                @Override
-                public void run() {
-                    try {
-                        AdbUtil.shellBlockingCommand(cmd, device, 0);
-                    } catch (Throwable e) {
-                        e.printStackTrace();
-                    }
-
-                    mainThreadMap.remove(deviceId);
-                    logger.info("The main process is finished: {}", deviceId);
-                }
-            };
-            th.start();
-            mainThreadMap.put(deviceId, th);
+        //the process is restarted by supervisor when it exits.
+        DeviceProcessSupervisor supervisor = DeviceProcessSupervisor.getInstance();
+        if (supervisor.isSupervised(device, CommonUtil.PROCESS_NAME_MAIN)) {
+            return;
         }
+        supervisor.start(device, CommonUtil.PROCESS_NAME_MAIN, buildMainCmd(device));
     }
 
     @Override
@@ -130,15 +171,11 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
         if (!shareFile.exists()) {
             throw new RuntimeException("The minicap share file doesn't exist: " + shareFile.getAbsolutePath());
         }
-        try {
-            connection.getDevice().pushFile(binFile.getAbsolutePath(), "/data/local/tmp/minicap");
-            connection.getDevice().pushFile(shareFile.getAbsolutePath(), "/data/local/tmp/minicap.so");
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
-
-        //3. assign executable permission to file.
-        AdbUtil.shell("chmod 777 /data/local/tmp/minicap", connection.getDevice());
+        //only the files whose content differs are pushed, the executable permission is assigned after pushing.
+        List<DeploymentCache.Artifact> artifacts = new ArrayList<>(2);
+        artifacts.add(new DeploymentCache.Artifact(binFile, "/data/local/tmp/minicap", true));
+        artifacts.add(new DeploymentCache.Artifact(shareFile, "/data/local/tmp/minicap.so", false));
+        DeploymentCache.getInstance().deploy(connection.getDevice(), artifacts);
     }
 
     @Override
@@ -148,8 +185,14 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
             throw new IllegalArgumentException("The device doesn't exist: " + deviceId);
         }
 
-        String cmd = "ls /data/local/tmp/minicap /data/local/tmp/minicap.so";
-        String ret = AdbUtil.shell(cmd, connection.getDevice());
+        String ret = AdbUtil.query(MINICAP_LS_COMMAND, connection.getDevice());
+        return resolveMinicapInstallation(ret);
+    }
+
+    private boolean resolveMinicapInstallation(String ret) {
+        if (ret == null) {
+            return false;
+        }
         StringTokenizer st = new StringTokenizer(ret);
 
         int index = 0;
@@ -189,7 +232,7 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
         String cmd = AdbUtil.getPsCommand(connection.getDevice()) + "|grep minicap";
         String ret;
         try {
-            ret = AdbUtil.shell(cmd, connection.getDevice());
+            ret = AdbUtil.query(cmd, connection.getDevice());
             if (StringUtil.isEmpty(ret)) {
                 return -1;
             }
@@ -311,6 +354,33 @@ public class ControllerInfrastructureService extends BaseBusinessService impleme
         return new RecordMeta(file, size);
     }
 
+    @Override
+    public void startLocalRecord(String deviceId, File file) {
+        final IDeviceConnection connection = application.getDeviceConnection(deviceId);
+        if (connection == null) {
+            throw new IllegalArgumentException("The device doesn't exist: " + deviceId);
+        }
+        if (!connection.isImageChannelAvailable()) {
+            throw new IllegalStateException("The image channel is not available: " + deviceId);
+        }
+
+        ImageSessionManager.getInstance().addImageSession(deviceId, new RecorderImageSession(deviceId, file));
+    }
+
+    @Override
+    public RecordMeta stopLocalRecord(String deviceId) {
+        ImageSessionID sessionID = new ImageSessionID(ImageSessionID.TYPE_RECORDER, deviceId);
+        RecorderImageSession session = (RecorderImageSession) ImageSessionManager.getInstance()
+                .getImageSession(deviceId, sessionID);
+        if (session == null) {
+            return null;
+        }
+        //The session is closed when it is removed, the video file is completed then.
+        ImageSessionManager.getInstance().removeImageSession(deviceId, sessionID);
+        File file = session.getFile();
+        return new RecordMeta(file.getAbsolutePath(), file.length());
+    }
+
     @Override
     public void startWirelessChannel(IDevice device) {
         String deviceId = AdbUtil.getDeviceId(device);
@@ -8,6 +8,7 @@ import com.cxplan.projection.core.adb.AdbUtil;
 import com.cxplan.projection.core.connection.IDeviceConnection;
 import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.protocol.IStreamSink;
 import com.cxplan.projection.net.message.MessageUtil;
 import com.cxplan.projection.script.CommandType;
 import com.cxplan.projection.script.ScriptRecorder;
@@ -156,6 +157,22 @@ public class DefaultDeviceService extends BaseBusinessService implements IDevice
         return bufferedImage.getScaledInstance(realWidth, realHeight, Image.SCALE_SMOOTH);
     }
 
+    @Override
+    public void takeScreenshot(String deviceId, float zoomRate, int quality, IStreamSink sink) throws MessageException {
+        DefaultDeviceConnection pm = (DefaultDeviceConnection)application.getDeviceConnection(deviceId);
+        if (pm == null) {
+            String error = "The device is offline: " + deviceId;
+            throw new RuntimeException(error);
+        }
+
+        Message message = new Message(MessageUtil.CMD_DEVICE_IMAGE);
+        message.setParameter("type", (short)4);
+        message.setParameter("zr", zoomRate);
+        message.setParameter("q", quality);
+
+        MessageUtil.requestWithSink(pm, message, sink, 30000);
+    }
+
     private BufferedImage buildEmptyImage(int width, int height) {
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
         return image;
@@ -246,14 +263,12 @@ public class DefaultDeviceService extends BaseBusinessService implements IDevice
         int seqNum = 0;
         ScriptRecorder recorder = scriptConnection.getScriptRecorder();
         if (scriptConnection.isRecording()) {
-            MouseCommand command = new MouseCommand(CommandType.MOUSE_DOWN, x, y);
-            command.setValidateView(true);
             long currentTime = System.currentTimeMillis();
             if (recorder.getLastEventTime() > 0) {
-                scriptConnection.getScriptRecorder().addTimeGap((int)(currentTime - recorder.getLastEventTime()));
+                recorder.addTimeGap((int)(currentTime - recorder.getLastEventTime()));
             }
 
-            seqNum = scriptConnection.getScriptRecorder().addEvent(command);
+            seqNum = recorder.addTouch(CommandType.MOUSE_DOWN, x, y, true);
         }
 
         if (scriptConnection.isRecording()) {//recording
@@ -283,11 +298,10 @@ public class DefaultDeviceService extends BaseBusinessService implements IDevice
         ScriptRecorder recorder = scriptConnection.getScriptRecorder();
         if (scriptConnection.isRecording()) {
             application.getScriptService().touchUp(deviceId, x, y);
-            MouseCommand command = new MouseCommand(CommandType.MOUSE_UP, x, y);
             long currentTime = System.currentTimeMillis();
-            scriptConnection.getScriptRecorder().addTimeGap((int)(currentTime - recorder.getLastEventTime()));
+            recorder.addTimeGap((int)(currentTime - recorder.getLastEventTime()));
 
-            scriptConnection.getScriptRecorder().addEvent(command);
+            recorder.addTouch(CommandType.MOUSE_UP, x, y, false);
         } else {
             Message message = new Message(MessageUtil.CMD_DEVICE_MONKEY);
             message.setParameter("x", (float) x);
@@ -312,14 +326,13 @@ public class DefaultDeviceService extends BaseBusinessService implements IDevice
         ScriptRecorder recorder = scriptConnection.getScriptRecorder();
         if (scriptConnection != null && scriptConnection.isRecording()) {
             application.getScriptService().touchMove(deviceId, x, y);
-            MouseCommand command = new MouseCommand(CommandType.MOUSE_MOVE, x, y);
             long currentTime = System.currentTimeMillis();
             long gap = currentTime - recorder.getLastEventTime();
             if (gap > 5) {
-                scriptConnection.getScriptRecorder().addTimeGap((int) gap);
+                recorder.addTimeGap((int) gap);
             }
 
-            scriptConnection.getScriptRecorder().addEvent(command);
+            recorder.addTouch(CommandType.MOUSE_MOVE, x, y, false);
         } else {
             Message message = new Message(MessageUtil.CMD_DEVICE_MONKEY);
             message.setParameter("x", (float) x);
@@ -1,6 +1,7 @@
 package com.cxplan.projection.service;
 
 import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.protocol.IStreamSink;
 
 import java.awt.*;
 import java.io.File;
@@ -167,4 +168,14 @@ public interface IDeviceService {
      * @param quality the quality of image, the range of value is 0 - 100.
      */
     Image takeScreenshot(String deviceId, float zoomRate, int quality) throws MessageException;
+
+    /**
+     * Take a screenshot image of device, the JPEG data is written to specified sink
+     * when it is coming, instead of being buffered in memory.
+     * @param deviceId the device ID.
+     * @param zoomRate the rate of zooming, the range of value is 0.0 - 1.0.
+     * @param quality the quality of image, the range of value is 0 - 100.
+     * @param sink the receiver of JPEG data.
+     */
+    void takeScreenshot(String deviceId, float zoomRate, int quality, IStreamSink sink) throws MessageException;
 }
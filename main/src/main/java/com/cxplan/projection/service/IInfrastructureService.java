@@ -1,9 +1,11 @@
 package com.cxplan.projection.service;
 
 import com.android.ddmlib.IDevice;
+import com.cxplan.projection.core.adb.DeviceEnvironment;
 import com.cxplan.projection.core.adb.RecordMeta;
 import com.cxplan.projection.net.message.MessageException;
 
+import java.io.File;
 
 /**
  * @author KennyLiu
@@ -23,6 +25,15 @@ public interface IInfrastructureService {
      * @return version code.
      */
     int getMainPackageVersion(String deviceId);
+    /**
+     * Check the infrastructure environment of specified device in one round trip:
+     * the installation of main and script package, the running processes, and the installation of minicap.
+     *
+     * @param deviceId the device ID.
+     * @return the environment of device.
+     */
+    DeviceEnvironment checkEnvironment(String deviceId);
+
     /**
      * Install main process application to specified device.
      *
@@ -35,6 +46,7 @@ public interface IInfrastructureService {
     void startMainProcess(IDevice device);
     /**
      * Install suitable version to specified device.
+     * Only the files whose content differs from local files are pushed.
      */
     void installMinicap(String deviceId);
 
@@ -84,6 +96,23 @@ public interface IInfrastructureService {
      */
     RecordMeta stopRecord(String deviceId) throws MessageException;
 
+    /**
+     * Start recording the image stream of device into local video file(MJPEG/AVI).
+     * Nothing is recorded on device, the image channel must be open.
+     *
+     * @param deviceId the device ID.
+     * @param file the local video file.
+     */
+    void startLocalRecord(String deviceId, File file);
+
+    /**
+     * Stop the local recording, the video file is ready when this method returns.
+     *
+     * @param deviceId device ID.
+     * @return the local video file, null is returned if the device is not recorded.
+     */
+    RecordMeta stopLocalRecord(String deviceId);
+
     /**
      * Start wireless channel for device.
      * The usb cable will be not needed in Wireless mode, but the communication speed may be slower
@@ -2,6 +2,7 @@ package com.cxplan.projection.service;
 
 import com.android.ddmlib.IDevice;
 import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.protocol.IStreamSink;
 import com.cxplan.projection.script.ViewNode;
 
 /**
@@ -56,6 +57,16 @@ public interface IScriptService {
      */
     byte[] dumpHierarchy(String deviceId) throws MessageException;
 
+    /**
+     * Dump the hierarchy of views on specified device.
+     * The content is written to sink when it is coming, it is suitable for the large hierarchy.
+     *
+     * @param deviceId device ID.
+     * @param sink the receiver of hierarchy content.
+     * @throws MessageException
+     */
+    void dumpHierarchy(String deviceId, IStreamSink sink) throws MessageException;
+
     //---------------------monkey operation----------------------------
     /**
      * Send a touch down event at the specified location.
@@ -6,17 +6,21 @@ import com.cxplan.projection.MonkeyConstant;
 import com.cxplan.projection.core.CXService;
 import com.cxplan.projection.core.DefaultDeviceConnection;
 import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.DeploymentCache;
+import com.cxplan.projection.core.adb.DeviceProcessSupervisor;
 import com.cxplan.projection.net.message.Message;
 import com.cxplan.projection.net.message.MessageException;
 import com.cxplan.projection.net.message.MessageUtil;
+import com.cxplan.projection.net.protocol.IStreamSink;
+import com.cxplan.projection.script.ViewHierarchyCache;
 import com.cxplan.projection.script.ViewNode;
+import com.cxplan.projection.script.ViewNodeCodec;
 import com.cxplan.projection.script.io.ScriptDeviceConnection;
 import com.cxplan.projection.util.CommonUtil;
-import com.cxplan.projection.util.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
+import java.io.File;
 
 /**
  * @author Kenny
@@ -25,8 +29,7 @@ import java.util.HashSet;
 @CXService("scriptService")
 public class ScriptService extends BaseBusinessService implements IScriptService {
     private static final Logger logger = LoggerFactory.getLogger(ScriptService.class);
-
-    private HashSet<String> startedDeviceSet = new HashSet<>();
+    private static final String SCRIPT_APK_FILE = "res/mediate/CXScript.apk";
 
     @Override
     public String getScriptPackageInstallPath(String deviceId) {
@@ -55,8 +58,16 @@ public class ScriptService extends BaseBusinessService implements IScriptService
             throw new IllegalArgumentException("The device doesn't exist: " + deviceId);
         }
 
+        String installedPath = AdbUtil.getPackagePath(CommonUtil.PACKAGE_SCRIPT, connection.getDevice());
+        if (DeploymentCache.getInstance().isInstalledPackageCurrent(connection.getDevice(), installedPath,
+                new File(SCRIPT_APK_FILE))) {
+            logger.info("The installed script package is identical with local file, skip installing: {}", installedPath);
+            return;
+        }
+        //the path of package is changed after installing, the supervised command is out of date.
+        DeviceProcessSupervisor.getInstance().stop(connection.getDevice(), CommonUtil.PROCESS_NAME_SCRIPT);
         try {
-            connection.getDevice().installPackage("res/mediate/CXScript.apk", true);
+            connection.getDevice().installPackage(SCRIPT_APK_FILE, true);
         } catch (InstallException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -70,28 +81,10 @@ public class ScriptService extends BaseBusinessService implements IScriptService
             return true;
         }
 
-        final String deviceId = AdbUtil.getDeviceId(device);
-        final String cmd = buildStartScriptCmd(device);
-        synchronized (device) {
-            if (startedDeviceSet.contains(deviceId)) {
-                return false;
-            }
-            Thread th = new Thread("ScriptService Thread-" + deviceId) {
-
-                @Override
-                public void run() {
-                    try {
-                        AdbUtil.shellBlockingCommand(cmd, device, 0);
-                    } catch (Throwable e) {
-                        e.printStackTrace();
-                    }
-
-                    startedDeviceSet.remove(deviceId);
-                    logger.info("The script process is finished: {}", deviceId);
-                }
-            };
-            th.start();
-            startedDeviceSet.add(deviceId);
+        //the process is restarted by supervisor when it exits.
+        DeviceProcessSupervisor supervisor = DeviceProcessSupervisor.getInstance();
+        if (!supervisor.isSupervised(device, CommonUtil.PROCESS_NAME_SCRIPT)) {
+            supervisor.start(device, CommonUtil.PROCESS_NAME_SCRIPT, buildStartScriptCmd(device));
         }
 
         return false;
@@ -110,6 +103,14 @@ public class ScriptService extends BaseBusinessService implements IScriptService
         if (connection == null) {
             throw new IllegalArgumentException("The script connection doesn't exist: " + deviceId);
         }
+        ViewHierarchyCache cache = connection.getHierarchyCache();
+        if (cache.isSynced()) {
+            ViewNode viewNode = cache.span(x, y);
+            if (viewNode == null) {
+                logger.error("There is no component found on ({},{})", x, y);
+            }
+            return viewNode;
+        }
 
         Message message = new Message(MessageUtil.CMD_DEVICE_SCRIPT_SPAN);
         message.setParameter("x", x);
@@ -122,7 +123,7 @@ public class ScriptService extends BaseBusinessService implements IScriptService
             return null;
         } else {
             String dataString = retMsg.getParameter("data");
-            ViewNode viewNode = StringUtil.json2Object(dataString, ViewNode.class);
+            ViewNode viewNode = ViewNodeCodec.readViewNode(dataString);
 
             return viewNode;
         }
@@ -147,6 +148,17 @@ public class ScriptService extends BaseBusinessService implements IScriptService
         return data;
     }
 
+    @Override
+    public void dumpHierarchy(String deviceId, IStreamSink sink) throws MessageException {
+        ScriptDeviceConnection connection = application.getScriptConnection(deviceId);
+        if (connection == null) {
+            throw new IllegalArgumentException("The script connection doesn't exist: " + deviceId);
+        }
+
+        Message message = new Message(MessageUtil.CMD_DEVICE_SCRIPT_DUMP);
+        MessageUtil.requestWithSink(connection, message, sink, 50000);
+    }
+
     @Override
     public void touchDown(String deviceId, int x, int y, int seqNum) throws MessageException {
         ScriptDeviceConnection sdc = application.getScriptConnection(deviceId);
@@ -222,10 +234,15 @@ public class ScriptService extends BaseBusinessService implements IScriptService
             logger.error(error);
             throw new MonkeyException(error);
         }
+        //search the cached hierarchy, the device is asked only if the cache is not synchronized.
+        int cachedRet = sdc.getHierarchyCache().waitForView(view, timeout);
+        if (cachedRet != ViewHierarchyCache.UNSYNCED) {
+            return cachedRet;
+        }
 
         Message message = new Message(MessageUtil.CMD_DEVICE_SCRIPT_WAIT_VIEW);
         message.setParameter("timeout", timeout);
-        message.setParameter("view", StringUtil.toJSONString(view));
+        message.setParameter("view", ViewNodeCodec.toJSONString(view));
         Message retMsg = request(sdc, message, timeout + 5000);
         byte ret = retMsg.getParameter("ret");
 
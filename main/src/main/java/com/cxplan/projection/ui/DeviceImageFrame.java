@@ -8,14 +8,18 @@ import com.alee.managers.language.data.TooltipWay;
 import com.alee.managers.tooltip.TooltipManager;
 import com.cxplan.projection.IApplication;
 import com.cxplan.projection.MonkeyConstant;
-import com.cxplan.projection.core.adb.AdbUtil;
+import com.cxplan.projection.core.adb.DeviceEnvironment;
+import com.cxplan.projection.core.adb.PullEngine;
 import com.cxplan.projection.core.adb.RecordMeta;
 import com.cxplan.projection.core.connection.*;
+import com.cxplan.projection.core.image.FrameJournal;
 import com.cxplan.projection.core.setting.Setting;
 import com.cxplan.projection.core.setting.SettingConstant;
 import com.cxplan.projection.i18n.StringManager;
 import com.cxplan.projection.i18n.StringManagerFactory;
 import com.cxplan.projection.net.message.MessageException;
+import com.cxplan.projection.net.protocol.FileStreamSink;
+import com.cxplan.projection.script.ViewBoundsIndex;
 import com.cxplan.projection.script.ViewNode;
 import com.cxplan.projection.script.io.ScriptDeviceConnection;
 import com.cxplan.projection.service.IDeviceService;
@@ -31,6 +35,7 @@ import com.cxplan.projection.ui.util.IconUtil;
 import com.cxplan.projection.util.CommonUtil;
 import com.cxplan.projection.util.ImageUtil;
 import com.cxplan.projection.util.StringUtil;
+import com.cxplan.projection.util.SystemUtil;
 import com.jidesoft.swing.DefaultOverlayable;
 import com.jidesoft.swing.JideBoxLayout;
 import com.jidesoft.swing.JideButton;
@@ -42,10 +47,13 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
 
 /**
  * Created on 2018/4/7.
@@ -119,6 +127,9 @@ public class DeviceImageFrame extends BaseWebFrame {
     //The flag indicates whether current image frame is in projection.
     //When the connection status of image channel is changed, controller will notify device of current status.
     private boolean isInProjection;
+    //Whether the screen is being recorded from image stream, rather than by device.
+    private boolean localRecording;
+    private File localRecordFile;
 
     private DeviceImageFrame(IDeviceConnection connection, IApplication application ) {
         super(application.getDeviceName(connection.getId()) + "(" + connection.getId() + ")");
@@ -186,6 +197,17 @@ public class DeviceImageFrame extends BaseWebFrame {
         if (scriptConnection != null) {
             scriptConnection.stopRecord();
         }
+        if (localRecording) {
+            //the video is completed, but it is not saved by user.
+            localRecording = false;
+            try {
+                application.getInfrastructureService().stopLocalRecord(connection.getId());
+            } catch (Exception ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+            localRecordFile.delete();
+            localRecordFile = null;
+        }
 
         super.dispose();
         if (imageThread != null) {
@@ -220,11 +242,11 @@ public class DeviceImageFrame extends BaseWebFrame {
             Runnable task = new Runnable() {
                 @Override
                 public void run() {
-                    String path = application.getInfrastructureService().getMainPackageInstallPath(connection.getId());
-                    if (path == null) {
+                    DeviceEnvironment environment = application.getInfrastructureService().checkEnvironment(connection.getId());
+                    if (environment.getMainPackagePath() == null) {
                         installMainPackage();
                     } else {
-                        int versionCode = application.getInfrastructureService().getMainPackageVersion(connection.getId());
+                        int versionCode = environment.getMainPackageVersion();
                         if (versionCode != CommonUtil.MAIN_SUPPORTED_VERSION) {
                             logger.info("Supported version is {}, but current is {}", CommonUtil.MAIN_SUPPORTED_VERSION, versionCode);
                             installMainPackage();
@@ -264,11 +286,11 @@ public class DeviceImageFrame extends BaseWebFrame {
                 @Override
                 public void run() {
                     //1. check installation
-                    String path = application.getScriptService().getScriptPackageInstallPath(connection.getId());
-                    if (path == null) {
+                    DeviceEnvironment environment = application.getInfrastructureService().checkEnvironment(connection.getId());
+                    if (environment.getScriptPackagePath() == null) {
                         installScriptPackage();
                     } else {
-                        int versionCode = application.getScriptService().getScriptPackageVersion(connection.getId());
+                        int versionCode = environment.getScriptPackageVersion();
                         if (versionCode != CommonUtil.SCRIPT_SUPPORTED_VERSION) {
                             logger.info("Supported version is {}, but current is {}", CommonUtil.SCRIPT_SUPPORTED_VERSION, versionCode);
                             installScriptPackage();
@@ -497,6 +519,26 @@ public class DeviceImageFrame extends BaseWebFrame {
         });
         pane.add(screenshotBtn, JideBoxLayout.FIX);
 
+        //replay
+        final IconButton replayBtn = new IconButton(IconUtil.getIcon("/image/device/replay.png"));
+        tip = stringMgr.getString("toolbar.replay.tip");
+        CXTooltipManager.setTooltip(replayBtn, tip, TooltipWay.trailing);
+        replayBtn.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                FrameJournal journal = FrameJournal.get(connection.getId());
+                if (journal == null) {
+                    GUIUtil.showErrorMessageDialog(stringMgr.getString("replay.disabled"));
+                    return;
+                }
+                FrameReplayDialog dialog = new FrameReplayDialog(DeviceImageFrame.this,
+                        connection.getDeviceModel(), journal);
+                GUIUtil.centerToOwnerWindow(dialog);
+                dialog.setVisible(true);
+            }
+        });
+        pane.add(replayBtn, JideBoxLayout.FIX);
+
         pane.add(Box.createHorizontalStrut(10), JideBoxLayout.FIX);
 
         //volume up
@@ -598,15 +640,13 @@ public class DeviceImageFrame extends BaseWebFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
 
+                File file = GUIUtil.saveFile(DeviceImageFrame.this,
+                        "hierarchy_" + connection.getId() + ".xml");
+                if (file == null) {
+                    return;
+                }
                 try {
-                    byte[] data = application.getScriptService().dumpHierarchy(connection.getId());
-                    File file = GUIUtil.saveFile(DeviceImageFrame.this,
-                            "hierarchy_" + connection.getId() + ".xml");
-                    if (file == null) {
-                        return;
-                    }
-
-                    CommonUtil.writeByteArray2File(data, file);
+                    application.getScriptService().dumpHierarchy(connection.getId(), new FileStreamSink(file));
                 } catch (Exception e1) {
                     GUIUtil.showErrorMessageDialog(e1.getMessage());
                 }
@@ -735,6 +775,21 @@ public class DeviceImageFrame extends BaseWebFrame {
     }
 
     private void startRecord() {
+        if (Setting.getInstance().getBooleanProperty(SettingConstant.KEY_LOCAL_RECORD, true)
+                && connection.isImageChannelAvailable()) {
+            File file = SystemUtil.createConfigFile("record" + SystemUtil.separator
+                    + connection.getId().replaceAll("[^\\w.-]", "_") + "_" + System.currentTimeMillis() + ".avi");
+            try {
+                application.getInfrastructureService().startLocalRecord(connection.getId(), file);
+            } catch (Exception ex) {
+                logger.error(ex.getMessage(), ex);
+                GUIUtil.showErrorMessageDialog(ex.getMessage());
+                return;
+            }
+            localRecording = true;
+            localRecordFile = file;
+            return;
+        }
         float zoomRate = Setting.getInstance().getFloatProperty(connection.getId(),
                 SettingConstant.KEY_DEVICE_IMAGE_ZOOM_RATE, SettingConstant.DEFAULT_ZOOM_RATE);
         try {
@@ -745,7 +800,51 @@ public class DeviceImageFrame extends BaseWebFrame {
         }
     }
 
+    private void stopLocalRecord() {
+        localRecording = false;
+        File recordFile = localRecordFile;
+        localRecordFile = null;
+        RecordMeta recordMeta;
+        try {
+            recordMeta = application.getInfrastructureService().stopLocalRecord(connection.getId());
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
+            recordFile.delete();
+            GUIUtil.showErrorMessageDialog(ex.getMessage());
+            return;
+        }
+        if (recordMeta == null) {//the recording was broken with image channel.
+            recordFile.delete();
+            GUIUtil.showErrorMessageDialog(stringMgr.getString("status.disconnected"));
+            return;
+        }
+
+        File videoFile = new File(recordMeta.getFile());
+        while (true) {
+            File localFile = GUIUtil.saveFile(DeviceImageFrame.this, videoFile.getName());
+            if (localFile == null) {
+                String text = stringMgr.getString("record.abort.confirm");
+                if (GUIUtil.showConfirmDialog(DeviceImageFrame.this, text)) {
+                    videoFile.delete();
+                    return;//cancel saving
+                }
+                continue;
+            }
+            try {
+                Files.move(videoFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+                GUIUtil.showErrorMessageDialog(ex.getMessage());
+            }
+            return;
+        }
+    }
+
     private void stopRecord() {
+        if (localRecording) {
+            stopLocalRecord();
+            return;
+        }
         final RecordMeta recordMeta;
         try {
             recordMeta = application.getInfrastructureService().stopRecord(connection.getId());
@@ -773,13 +872,19 @@ public class DeviceImageFrame extends BaseWebFrame {
         monitor.setTotalWork((int) recordMeta.getSize());
         GUIUtil.centerToOwnerWindow(monitor);
         monitor.setVisible(true);
-        Runnable task = new Runnable() {
-            @Override
-            public void run() {
-                AdbUtil.pullFile(connection.getDevice(), recordMeta.getFile(), localPath, monitor);
-            }
-        };
-        application.getExecutors().submit(task);
+        PullEngine.getInstance().pull(connection.getDevice(), recordMeta.getFile(), recordMeta.getSize(), localPath, monitor)
+                .whenComplete(new BiConsumer<PullEngine.PullReport, Throwable>() {
+                    @Override
+                    public void accept(PullEngine.PullReport report, Throwable throwable) {
+                        if (throwable == null) {
+                            return;
+                        }
+                        logger.error(throwable.getMessage(), throwable);
+                        monitor.dispose();
+                        Throwable cause = throwable.getCause() == null ? throwable : throwable.getCause();
+                        GUIUtil.showErrorMessageDialog(cause.getMessage());
+                    }
+                });
 
     }
 
@@ -1078,22 +1183,21 @@ public class DeviceImageFrame extends BaseWebFrame {
             }
         }
     };
+    //the view under mouse and the last device point of mouse in span mode.
+    private ViewNode hoverView;
+    private Point hoverPoint;
     private MouseAdapter spanMouseListener = new MouseAdapter() {
         @Override
         public void mousePressed(MouseEvent e) {
             if (spanComponent) {
 
-                double scale = ((MonkeyCanvas)clientScreen.getCanvas()).getScale();
                 Point realPoint = ((MonkeyCanvas)clientScreen.getCanvas()).convert2DevicePoint(e.getPoint());
                 try {
                     ViewNode viewNode = application.getScriptService().spanComponent(connection.getId(), realPoint.x, realPoint.y);
-                    currentRect = new Rectangle((int)(viewNode.getBound().getLeft() * scale),
-                            (int)(viewNode.getBound().getTop() * scale),
-                            (int)(viewNode.getBound().width() * scale),
-                            (int)(viewNode.getBound().height() * scale));
-                    clientScreen.getCanvas().repaint();
-
-                    showViewPropertyPane(viewNode);
+                    if (viewNode == null) {
+                        return;
+                    }
+                    highlightView(viewNode);
                 } catch (MessageException e1) {
                     logger.error(e1.getMessage(), e1);
                     GUIUtil.showErrorMessageDialog(e1.getMessage());
@@ -1102,8 +1206,61 @@ public class DeviceImageFrame extends BaseWebFrame {
             }
 
         }
+
+        @Override
+        public void mouseMoved(MouseEvent e) {
+            if (spanComponent) {
+                hoverPoint = ((MonkeyCanvas)clientScreen.getCanvas()).convert2DevicePoint(e.getPoint());
+                hoverSpan();
+            }
+        }
+    };
+    //the hierarchy is changed with the screen, the view under mouse is spanned again.
+    private Runnable hierarchyChangeListener = new Runnable() {
+        @Override
+        public void run() {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (spanComponent) {
+                        hoverSpan();
+                    }
+                }
+            });
+        }
     };
 
+    /**
+     * Span the view under mouse in cached hierarchy, nothing is done if the hierarchy is not cached,
+     * the view is spanned by clicking then.
+     */
+    private void hoverSpan() {
+        ScriptDeviceConnection scriptConnection = application.getScriptConnection(connection.getId());
+        if (hoverPoint == null || scriptConnection == null) {
+            return;
+        }
+        ViewBoundsIndex index = scriptConnection.getHierarchyCache().getBoundsIndex();
+        if (index == null) {
+            return;
+        }
+        ViewNode viewNode = index.hit(hoverPoint.x, hoverPoint.y);
+        if (viewNode != null && viewNode != hoverView) {
+            highlightView(viewNode);
+        }
+    }
+
+    private void highlightView(ViewNode viewNode) {
+        hoverView = viewNode;
+        double scale = ((MonkeyCanvas)clientScreen.getCanvas()).getScale();
+        currentRect = new Rectangle((int)(viewNode.getBound().getLeft() * scale),
+                (int)(viewNode.getBound().getTop() * scale),
+                (int)(viewNode.getBound().width() * scale),
+                (int)(viewNode.getBound().height() * scale));
+        clientScreen.getCanvas().repaint();
+
+        showViewPropertyPane(viewNode);
+    }
+
 
     /**
      * 控制事件监听
@@ -1226,6 +1383,12 @@ public class DeviceImageFrame extends BaseWebFrame {
         clientScreen.setExpandPainter(componentPainter);
         clientScreen.getCanvas().removeMouseListener(spanMouseListener);
         clientScreen.getCanvas().addMouseListener(spanMouseListener);
+        clientScreen.getCanvas().removeMouseMotionListener(spanMouseListener);
+        clientScreen.getCanvas().addMouseMotionListener(spanMouseListener);
+        ScriptDeviceConnection scriptConnection = application.getScriptConnection(connection.getId());
+        if (scriptConnection != null) {
+            scriptConnection.getHierarchyCache().addChangeListener(hierarchyChangeListener);
+        }
     }
 
     private void stopSpanTrace() {
@@ -1236,9 +1399,13 @@ public class DeviceImageFrame extends BaseWebFrame {
         }
 
         spanComponent = false;
+        scriptConnection.getHierarchyCache().removeChangeListener(hierarchyChangeListener);
+        hoverView = null;
+        hoverPoint = null;
 
         clientScreen.setExpandPainter(null);
         clientScreen.getCanvas().removeMouseListener(spanMouseListener);
+        clientScreen.getCanvas().removeMouseMotionListener(spanMouseListener);
         hideViewPropertyPane();
     }
 }
@@ -0,0 +1,185 @@
+package com.cxplan.projection.ui;
+
+import com.cxplan.projection.core.image.FrameJournal;
+import com.cxplan.projection.i18n.StringManager;
+import com.cxplan.projection.i18n.StringManagerFactory;
+import com.cxplan.projection.ui.component.BaseDialog;
+import com.cxplan.projection.util.ImageUtil;
+import com.jidesoft.swing.JideBoxLayout;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Replay the latest frames of device which are kept in frame journal.
+ * The journal is paused while the dialog is shown, so the frames are not overwritten.
+ *
+ * @author Kenny
+ * created on 2019/5/24
+ */
+public class FrameReplayDialog extends BaseDialog {
+    private static final StringManager stringMgr =
+            StringManagerFactory.getStringManager(FrameReplayDialog.class);
+
+    private final FrameJournal journal;
+    private final List<FrameJournal.FrameEntry> entryList;
+
+    private JSlider slider;
+    private JLabel timeLabel;
+    private JButton playBtn;
+    private ImagePanel imagePanel;
+    private Timer playTimer;
+
+    public FrameReplayDialog(Window parent, String title, FrameJournal journal) {
+        super(parent, title + stringMgr.getString("replay.dialog.title"));
+        this.journal = journal;
+        journal.setPaused(true);
+        this.entryList = journal.snapshot();
+
+        initView();
+        setSize(480, 800);
+        showFrame(entryList.size() - 1);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                dispose();
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        if (playTimer != null) {
+            playTimer.stop();
+        }
+        journal.setPaused(false);
+        super.dispose();
+    }
+
+    private void initView() {
+        JPanel contentPane = new JPanel(new BorderLayout());
+        setContentPane(contentPane);
+        contentPane.setBorder(BorderFactory.createEmptyBorder(6, 6, 6, 6));
+
+        imagePanel = new ImagePanel();
+        contentPane.add(imagePanel, BorderLayout.CENTER);
+
+        JPanel controlPane = new JPanel();
+        controlPane.setLayout(new JideBoxLayout(controlPane, JideBoxLayout.LINE_AXIS));
+        playBtn = new JButton(stringMgr.getString("replay.play"));
+        playBtn.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (playTimer != null && playTimer.isRunning()) {
+                    stopPlay();
+                } else {
+                    startPlay();
+                }
+            }
+        });
+        controlPane.add(playBtn, JideBoxLayout.FIX);
+        controlPane.add(Box.createHorizontalStrut(6), JideBoxLayout.FIX);
+
+        slider = new JSlider(0, Math.max(0, entryList.size() - 1), Math.max(0, entryList.size() - 1));
+        slider.setEnabled(entryList.size() > 1);
+        slider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                showFrame(slider.getValue());
+            }
+        });
+        controlPane.add(slider, JideBoxLayout.VARY);
+        controlPane.add(Box.createHorizontalStrut(6), JideBoxLayout.FIX);
+
+        timeLabel = new JLabel(" ");
+        controlPane.add(timeLabel, JideBoxLayout.FIX);
+        contentPane.add(controlPane, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Play the frames from current position with their original intervals.
+     */
+    private void startPlay() {
+        if (entryList.size() < 2) {
+            return;
+        }
+        if (slider.getValue() >= entryList.size() - 1) {
+            slider.setValue(0);
+        }
+        playTimer = new Timer(0, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int index = slider.getValue() + 1;
+                if (index >= entryList.size()) {
+                    stopPlay();
+                    return;
+                }
+                slider.setValue(index);
+                if (index < entryList.size() - 1) {
+                    long interval = entryList.get(index + 1).getTimestamp() - entryList.get(index).getTimestamp();
+                    playTimer.setInitialDelay((int) Math.max(1, interval));
+                    playTimer.restart();
+                } else {
+                    stopPlay();
+                }
+            }
+        });
+        playTimer.setRepeats(false);
+        playTimer.start();
+        playBtn.setText(stringMgr.getString("replay.pause"));
+    }
+
+    private void stopPlay() {
+        if (playTimer != null) {
+            playTimer.stop();
+        }
+        playBtn.setText(stringMgr.getString("replay.play"));
+    }
+
+    private void showFrame(int index) {
+        if (index < 0 || index >= entryList.size()) {
+            imagePanel.setImage(null);
+            timeLabel.setText(stringMgr.getString("replay.empty"));
+            return;
+        }
+        FrameJournal.FrameEntry entry = entryList.get(index);
+        byte[] data = journal.readFrame(entry);
+        if (data != null) {
+            imagePanel.setImage(ImageUtil.readImage(data, 0, data.length));
+        }
+        long offset = entry.getTimestamp() - entryList.get(entryList.size() - 1).getTimestamp();
+        timeLabel.setText(String.format("%.2fs", offset / 1000.0));
+    }
+
+    private static class ImagePanel extends JPanel {
+        private BufferedImage image;
+
+        void setImage(BufferedImage image) {
+            this.image = image;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (image == null) {
+                return;
+            }
+            double scale = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+            int width = (int) (image.getWidth() * scale);
+            int height = (int) (image.getHeight() * scale);
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(image, (getWidth() - width) / 2, (getHeight() - height) / 2, width, height, null);
+        }
+    }
+}
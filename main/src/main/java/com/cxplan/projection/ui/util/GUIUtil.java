@@ -160,6 +160,13 @@ public class GUIUtil {
     }
 
 
+    /**
+     * Return true if there is no display, the dialogs are logged instead then.
+     */
+    public static boolean isHeadless() {
+        return GraphicsEnvironment.isHeadless();
+    }
+
     public static void showErrorMessageDialog(String message) {
         showMessageDialog(findLikelyOwnerWindow(), message, "ERROR", JOptionPane.ERROR_MESSAGE);
     }
@@ -177,6 +184,14 @@ public class GUIUtil {
     }
 
     public static void showMessageDialog(final Component parent, final String message, final String title, final int messageType) {
+        if (isHeadless()) {
+            if (messageType == JOptionPane.ERROR_MESSAGE) {
+                logger.error("{}: {}", title, message);
+            } else {
+                logger.info("{}: {}", title, message);
+            }
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -190,6 +205,10 @@ public class GUIUtil {
     }
 
     public static boolean showConfirmDialog(Component parent, String message) {
+        if (isHeadless()) {
+            logger.warn("The confirmation is declined without display: {}", message);
+            return false;
+        }
         int ret = JOptionPane.showConfirmDialog(parent, message, "Confirm Dialog", JOptionPane.YES_NO_OPTION);
         return ret == JOptionPane.YES_OPTION;
     }
@@ -238,6 +257,10 @@ public class GUIUtil {
      * Null indicates user cancel input.
      */
     public static String showInputDialog(String message, String initValue) {
+        if (isHeadless()) {
+            logger.warn("The input is cancelled without display: {}", message);
+            return null;
+        }
         String value;
         if (initValue != null) {
             value = JOptionPane.showInputDialog(findLikelyOwnerWindow(), message, initValue);
@@ -262,6 +285,9 @@ public class GUIUtil {
      * @return the focused Window
      */
     public static Window findLikelyOwnerWindow() {
+        if (isHeadless()) {
+            return null;
+        }
         Window result = KeyboardFocusManager.getCurrentKeyboardFocusManager()
                 .getFocusedWindow();
 
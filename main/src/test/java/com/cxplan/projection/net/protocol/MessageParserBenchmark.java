@@ -0,0 +1,145 @@
+package com.cxplan.projection.net.protocol;
+
+import com.cxplan.projection.MonkeyConstant;
+import com.cxplan.projection.net.message.JID;
+import com.cxplan.projection.net.message.Message;
+import com.cxplan.projection.net.message.MessageUtil;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The benchmark of message parser, compares the fast path with the resumable state machine.
+ *
+ * The traffic is a recorded byte stream of message channel if system property 'cx.traffic.file'
+ * is specified, otherwise a synthetic stream which simulates a session of script recording is used:
+ * heart, touch events, view node notification, clipboard and hierarchy dump.
+ *
+ * The stream is fed either as a whole, or split into segments of TCP MSS(1460 bytes)
+ * which is how the cumulative decoder receives it.
+ *
+ * Run the main method with test classpath after 'mvn test-compile'.
+ *
+ * @author Kenny
+ * created on 2019/5/13
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageParserBenchmark {
+
+    private static final int SEGMENT_SIZE = 1460;
+
+    @Param({"true", "false"})
+    public boolean fastPath;
+
+    @Param({"whole", "segment"})
+    public String feed;
+
+    private byte[] traffic;
+    private List<byte[]> segments;
+    private IoBuffer cumulative;
+
+    @Setup
+    public void setup() throws Exception {
+        String file = System.getProperty("cx.traffic.file");
+        if (file != null) {
+            traffic = Files.readAllBytes(new File(file).toPath());
+        } else {
+            traffic = buildTraffic();
+        }
+        segments = new ArrayList<>();
+        for (int i = 0; i < traffic.length; i += SEGMENT_SIZE) {
+            int len = Math.min(SEGMENT_SIZE, traffic.length - i);
+            byte[] seg = new byte[len];
+            System.arraycopy(traffic, i, seg, 0, len);
+            segments.add(seg);
+        }
+        cumulative = IoBuffer.allocate(64 * 1024).setAutoExpand(true);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        MessageParser parser = new MessageParser(fastPath);
+        if ("whole".equals(feed)) {
+            parser.readMessage(IoBuffer.wrap(traffic));
+        } else {
+            //The same as CumulativeProtocolDecoder: append, parse, compact.
+            cumulative.clear();
+            for (byte[] seg : segments) {
+                cumulative.put(seg);
+                cumulative.flip();
+                parser.readMessage(cumulative);
+                cumulative.compact();
+            }
+        }
+        blackhole.consume(parser.getResult().size());
+    }
+
+    static byte[] buildTraffic() throws Exception {
+        IoBuffer out = IoBuffer.allocate(256 * 1024).setAutoExpand(true);
+        String viewNode = "{\"t\":\"Contacts\",\"ri\":\"com.tencent.mm:id/title\",\"cn\":\"android.widget.TextView\"," +
+                "\"pn\":\"com.tencent.mm\",\"cd\":\"\",\"ic\":false,\"icd\":false,\"ica\":true,\"ie\":true,\"if\":false," +
+                "\"ifd\":false,\"is\":false,\"ilc\":false,\"ip\":false,\"isd\":false,\"iv\":true,\"iea\":false," +
+                "\"b\":{\"l\":32,\"t\":180,\"r\":540,\"b\":260}}";
+        StringBuilder hierarchy = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            hierarchy.append("<node index=\"").append(i).append("\" text=\"item ").append(i)
+                    .append("\" resource-id=\"com.tencent.mm:id/item\" class=\"android.widget.TextView\" ")
+                    .append("bounds=\"[0,").append(i * 10).append("][1080,").append(i * 10 + 10).append("]\"/>");
+        }
+
+        for (int round = 0; round < 20; round++) {
+            write(out, new Message(MessageUtil.CMD_PING_HEART));
+            for (int i = 0; i < 30; i++) {
+                Message monkey = new Message(MessageUtil.CMD_DEVICE_MONKEY);
+                monkey.setParameter("x", 100f + i);
+                monkey.setParameter("y", 800f - i);
+                monkey.setParameter("type", MonkeyConstant.EVENT_TOUCH_MOVE);
+                write(out, monkey);
+            }
+            Message node = new Message(MessageUtil.CMD_CONTROLLER_SCRIPT_VIEW_NODE);
+            node.setFrom(JID.createDeviceID("emulator-5554"));
+            node.setParameter("seq", round);
+            node.setParameter("data", viewNode);
+            write(out, node);
+
+            Message clipboard = new Message(MessageUtil.CMD_CONTROLLER_CLIPBOARD);
+            clipboard.setParameter("text", "clipboard content " + round);
+            write(out, clipboard);
+        }
+        Message dump = new Message(MessageUtil.CMD_DEVICE_SCRIPT_DUMP);
+        dump.setParameter("data", hierarchy.toString().getBytes(MessageUtil.CHARSET_UTF8));
+        write(out, dump);
+
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static void write(IoBuffer out, Message message) throws Exception {
+        IoBuffer buffer = message.getBinary();
+        buffer.flip();
+        out.put(buffer);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(MessageParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,173 @@
+package com.cxplan.projection.net.protocol;
+
+import com.cxplan.projection.net.message.JID;
+import com.cxplan.projection.net.message.Message;
+import com.cxplan.projection.net.message.MessageUtil;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fast path of message parser should produce the same messages as the resumable state machine.
+ *
+ * @author Kenny
+ * created on 2019/5/13
+ */
+public class MessageParserTest {
+
+    private static final int SEGMENT_SIZE = 1460;
+
+    @Test
+    public void testTrafficParity() throws Exception {
+        byte[] traffic = MessageParserBenchmark.buildTraffic();
+        List<Message> expected = parseWhole(new MessageParser(false), traffic);
+        assertFalse(expected.isEmpty());
+
+        assertSameMessages(expected, parseWhole(new MessageParser(true), traffic));
+        assertSameMessages(expected, parseSegments(new MessageParser(true), traffic, SEGMENT_SIZE));
+        assertSameMessages(expected, parseSegments(new MessageParser(false), traffic, SEGMENT_SIZE));
+        //every message is split at every position.
+        assertSameMessages(expected, parseSegments(new MessageParser(true), traffic, 1));
+    }
+
+    @Test
+    public void testCompressedParity() throws Exception {
+        IoBuffer out = IoBuffer.allocate(1024).setAutoExpand(true);
+        for (int i = 0; i < 10; i++) {
+            Message message = new Message(MessageUtil.CMD_CONTROLLER_SCRIPT_VIEW_NODE);
+            message.setFrom(JID.createDeviceID("emulator-5554"));
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < i * 100; j++) {
+                sb.append("android.widget.TextView ");
+            }
+            message.setParameter("data", sb.toString());
+            IoBuffer buffer = message.getBinary();
+            buffer.flip();
+            IoBuffer frame = FrameCompressor.compress(buffer, FrameCompressor.DICTIONARY_VIEW_V1);
+            out.put(frame == null ? buffer : frame);
+        }
+        out.flip();
+        byte[] traffic = new byte[out.remaining()];
+        out.get(traffic);
+
+        List<Message> expected = parseWhole(new MessageParser(false), traffic);
+        assertEquals(10, expected.size());
+        assertSameMessages(expected, parseWhole(new MessageParser(true), traffic));
+        assertSameMessages(expected, parseSegments(new MessageParser(true), traffic, 7));
+    }
+
+    @Test
+    public void testTerminatedStringParity() throws Exception {
+        byte[] utf8 = "测试".getBytes(MessageUtil.CHARSET_UTF8);
+        List<byte[]> fields = new ArrayList<>();
+        fields.add("abc".getBytes(MessageUtil.CHARSET_UTF8));
+        fields.add(new byte[]{'a', 'b', 0, 'c'});
+        fields.add(new byte[]{0, 'a'});
+        fields.add(utf8);
+        fields.add(concat(utf8, new byte[]{0, 'x'}));
+
+        for (byte[] field : fields) {
+            //the field is used as id, command, key, string value and error.
+            byte[] message = rawMessage(field, field, field, field, field);
+            assertSameMessages(parseWhole(new MessageParser(false), message),
+                    parseWhole(new MessageParser(true), message));
+        }
+    }
+
+    @Test
+    public void testMalformedCommand() throws Exception {
+        byte[] message = rawMessage("id".getBytes(MessageUtil.CHARSET_UTF8), new byte[]{'a', (byte) 0xC3, 'b'},
+                "k".getBytes(MessageUtil.CHARSET_UTF8), "v".getBytes(MessageUtil.CHARSET_UTF8), null);
+        for (boolean fastPath : new boolean[]{false, true}) {
+            try {
+                parseWhole(new MessageParser(fastPath), message);
+                fail("The malformed command is accepted, fastPath=" + fastPath);
+            } catch (CharacterCodingException e) {
+                //expected
+            }
+        }
+    }
+
+    private static List<Message> parseWhole(MessageParser parser, byte[] traffic) throws IOException {
+        parser.readMessage(IoBuffer.wrap(traffic));
+        return new ArrayList<>(parser.getResult());
+    }
+
+    private static List<Message> parseSegments(MessageParser parser, byte[] traffic, int segmentSize)
+            throws IOException {
+        List<Message> messageList = new ArrayList<>();
+        IoBuffer cumulative = IoBuffer.allocate(1024).setAutoExpand(true);
+        for (int i = 0; i < traffic.length; i += segmentSize) {
+            cumulative.put(traffic, i, Math.min(segmentSize, traffic.length - i));
+            cumulative.flip();
+            parser.readMessage(cumulative);
+            cumulative.compact();
+            messageList.addAll(parser.getResult());
+            parser.clearResult();
+        }
+        assertEquals(0, cumulative.position());
+        return messageList;
+    }
+
+    private static void assertSameMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Message e = expected.get(i);
+            Message a = actual.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getCommand(), a.getCommand());
+            assertEquals(e.getFrom(), a.getFrom());
+            assertEquals(e.getTo(), a.getTo());
+            assertEquals(e.getError(), a.getError());
+            Map<String, Object> expectedData = e.getData();
+            Map<String, Object> actualData = a.getData();
+            assertEquals(expectedData.keySet(), actualData.keySet());
+            for (Map.Entry<String, Object> entry : expectedData.entrySet()) {
+                Object value = actualData.get(entry.getKey());
+                if (entry.getValue() instanceof byte[]) {
+                    assertArrayEquals((byte[]) entry.getValue(), (byte[]) value);
+                } else {
+                    assertEquals(entry.getValue(), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build a message with one string field, the fields are written as they are.
+     */
+    private static byte[] rawMessage(byte[] id, byte[] command, byte[] key, byte[] value, byte[] error) {
+        IoBuffer out = IoBuffer.allocate(64).setAutoExpand(true);
+        out.put(MessageUtil.START_CODE);
+        out.put((byte) id.length).put(id);
+        out.put((byte) command.length).put(command);
+        out.put((byte) -1);//from
+        out.put((byte) -1);//to
+        out.put((byte) 1);
+        out.put((byte) key.length).put(key);
+        out.put(MessageUtil.FIELD_TYPE_STRING).putInt(value.length).put(value);
+        if (error == null) {
+            out.putShort((short) -1);
+        } else {
+            out.putShort((short) error.length).put(error);
+        }
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+}
@@ -0,0 +1,199 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.script.command.MouseCommand;
+import com.cxplan.projection.script.command.PressCommand;
+import com.cxplan.projection.script.command.ScriptCommand;
+import com.cxplan.projection.script.command.TimeGapCommand;
+import com.cxplan.projection.script.command.TypeCommand;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The indexed script file should read back the written commands, and reject the broken file.
+ *
+ * @author Kenny
+ * created on 2019/5/30
+ */
+public class ScriptFileTest {
+
+    //magic(8) + version(4) + type of first command(4)
+    private static final int FIRST_GAP_OFFSET = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadBack() throws Exception {
+        List<ScriptCommand> commandList = buildCommands(3000);
+        byte[] data = write(commandList);
+        File file = save(data);
+
+        ScriptObject fromFile = ScriptObject.load(file.getPath());
+        ScriptObject fromStream = ScriptObject.load(new ByteArrayInputStream(data));
+        for (ScriptObject script : Arrays.asList(fromFile, fromStream)) {
+            assertEquals(commandList.size(), script.getCommandCount());
+            assertSameCommands(commandList, script.iterator(), 0);
+            for (int i = 0; i < commandList.size(); i += 7) {
+                assertSameCommand(commandList.get(i), script.getCommand(i), i);
+            }
+            assertSameCommands(commandList, script.getCommandList().iterator(), 0);
+        }
+
+        ScriptFile scriptFile = ScriptFile.open(file);
+        scriptFile.verify();
+        for (int from : new int[] {0, 1, 1500, 2999, 3000}) {
+            assertSameCommands(commandList, scriptFile.iterator(from), from);
+        }
+        try {
+            scriptFile.getCommand(3000);
+            fail("The index out of range is accepted");
+        } catch (IndexOutOfBoundsException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testZeroCommands() throws Exception {
+        List<ScriptCommand> empty = Collections.emptyList();
+        byte[] data = write(empty);
+        File file = save(data);
+
+        assertEquals(0, ScriptObject.load(file.getPath()).getCommandCount());
+        assertEquals(0, ScriptObject.load(new ByteArrayInputStream(data)).getCommandCount());
+        ScriptFile scriptFile = ScriptFile.open(file);
+        scriptFile.verify();
+        assertFalse(scriptFile.iterator().hasNext());
+        assertFalse(scriptFile.iterator(0).hasNext());
+    }
+
+    @Test
+    public void testCorruptedByte() throws Exception {
+        List<ScriptCommand> commandList = buildCommands(100);
+        byte[] data = write(commandList);
+        //the gap of first command is changed, the command is still decoded.
+        data[FIRST_GAP_OFFSET + 3] ^= 0x01;
+        File file = save(data);
+
+        try {
+            ScriptObject.load(new ByteArrayInputStream(data));
+            fail("The corrupted script is loaded from stream");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+        try {
+            ScriptFile.open(file).verify();
+            fail("The corrupted script is verified");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+
+        //the file is loaded lazily, the checksum is verified when the last command is read.
+        Iterator<ScriptCommand> it = ScriptObject.load(file.getPath()).iterator();
+        for (int i = 0; i < commandList.size() - 1; i++) {
+            it.next();
+        }
+        try {
+            it.next();
+            fail("The corrupted script is iterated");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void testTruncatedTrailer() throws Exception {
+        for (int commandCount : new int[] {0, 1, 100}) {
+            byte[] data = write(buildCommands(commandCount));
+            for (int cut : new int[] {1, 4, 12, 19}) {
+                byte[] truncated = Arrays.copyOf(data, data.length - cut);
+                try {
+                    ScriptObject.load(new ByteArrayInputStream(truncated));
+                    fail("The truncated script is loaded from stream: count=" + commandCount + ", cut=" + cut);
+                } catch (IOException e) {
+                    //expected
+                }
+                try {
+                    ScriptObject.load(save(truncated).getPath());
+                    fail("The truncated script is loaded from file: count=" + commandCount + ", cut=" + cut);
+                } catch (IOException e) {
+                    //expected
+                }
+            }
+        }
+    }
+
+    private static List<ScriptCommand> buildCommands(int count) {
+        List<ScriptCommand> commandList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0:
+                    commandList.add(new TimeGapCommand(i * 10));
+                    break;
+                case 1:
+                    commandList.add(new MouseCommand(CommandType.MOUSE_DOWN, i % 720, i % 1280));
+                    break;
+                case 2:
+                    commandList.add(new TypeCommand("text-" + i + " \u6D4B\u8BD5"));
+                    break;
+                default:
+                    commandList.add(new PressCommand(i % 256));
+                    break;
+            }
+        }
+        return commandList;
+    }
+
+    private static byte[] write(List<ScriptCommand> commandList) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ScriptObject(commandList).export(output);
+        return output.toByteArray();
+    }
+
+    private File save(byte[] data) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        return file;
+    }
+
+    private static void assertSameCommands(List<ScriptCommand> expected, Iterator<ScriptCommand> it, int from) throws IOException {
+        for (int i = from; i < expected.size(); i++) {
+            assertTrue("The command(" + i + ") is missing", it.hasNext());
+            assertSameCommand(expected.get(i), it.next(), i);
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * The commands are compared by their types and encoded data.
+     */
+    private static void assertSameCommand(ScriptCommand expected, ScriptCommand actual, int index) throws IOException {
+        assertEquals("type of command(" + index + ")", expected.getType(), actual.getType());
+        assertArrayEquals("data of command(" + index + ")", encode(expected), encode(actual));
+    }
+
+    private static byte[] encode(ScriptCommand command) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        command.encode(dataOutput);
+        dataOutput.flush();
+        return output.toByteArray();
+    }
+}
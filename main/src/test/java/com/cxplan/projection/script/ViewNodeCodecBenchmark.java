@@ -0,0 +1,119 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.util.StringUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The benchmark of view node codec, compares the streaming codec with the reflective binding of ObjectMapper.
+ *
+ * The hierarchy is a full hierarchy diff(the 'data' of message 'c_hierarchy_diff') captured from device
+ * if system property 'cx.hierarchy.file' is specified, otherwise a synthetic one of 600 views is used.
+ * The single view node is the first one of the hierarchy.
+ *
+ * Run the main method with test classpath after 'mvn test-compile'.
+ *
+ * @author Kenny
+ * created on 2019/5/29
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewNodeCodecBenchmark {
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    private String hierarchy;
+    private String viewNodeString;
+    private ViewNode viewNode;
+
+    @Setup
+    public void setup() throws Exception {
+        String file = System.getProperty("cx.hierarchy.file");
+        if (file != null) {
+            hierarchy = new String(Files.readAllBytes(new File(file).toPath()), "UTF-8");
+        } else {
+            hierarchy = buildHierarchy(600);
+        }
+        HierarchyDiff diff = StringUtil.json2Object(hierarchy, HierarchyDiff.class);
+        viewNode = diff.getOperations().get(0).getNode();
+        viewNodeString = StringUtil.toJSONString(viewNode);
+    }
+
+    @Benchmark
+    public Object readViewNode() {
+        if (streaming) {
+            return ViewNodeCodec.readViewNode(viewNodeString);
+        } else {
+            return StringUtil.json2Object(viewNodeString, ViewNode.class);
+        }
+    }
+
+    @Benchmark
+    public String writeViewNode() {
+        if (streaming) {
+            return ViewNodeCodec.toJSONString(viewNode);
+        } else {
+            return StringUtil.toJSONString(viewNode);
+        }
+    }
+
+    @Benchmark
+    public void readHierarchy(Blackhole blackhole) {
+        HierarchyDiff diff;
+        if (streaming) {
+            diff = ViewNodeCodec.readHierarchyDiff(hierarchy);
+        } else {
+            diff = StringUtil.json2Object(hierarchy, HierarchyDiff.class);
+        }
+        blackhole.consume(diff.getOperations().size());
+    }
+
+    static String buildHierarchy(int count) {
+        List<HierarchyDiff.Operation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ViewNode node = new ViewNode();
+            node.setText(i % 3 == 0 ? "item " + i : "");
+            node.setResourceId("com.tencent.mm:id/item_" + (i % 20));
+            node.setClassName(i % 4 == 0 ? "android.widget.LinearLayout" : "android.widget.TextView");
+            node.setPackageName("com.tencent.mm");
+            node.setContentDesc("");
+            node.setClickable(i % 2 == 0);
+            node.setEnabled(true);
+            node.setVisible(true);
+            node.setBound(new ScriptRect(0, i * 10 % 1920, 1080, i * 10 % 1920 + 120));
+
+            HierarchyDiff.Operation operation = new HierarchyDiff.Operation();
+            operation.setType(HierarchyDiff.OP_ADD);
+            operation.setId(i);
+            operation.setParentId(i == 0 ? -1 : (i - 1) / 4);
+            operation.setNode(node);
+            operations.add(operation);
+        }
+        HierarchyDiff diff = new HierarchyDiff();
+        diff.setFull(true);
+        diff.setVersion(1);
+        diff.setOperations(operations);
+        return StringUtil.toJSONString(diff);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ViewNodeCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,102 @@
+package com.cxplan.projection.script;
+
+import com.cxplan.projection.util.StringUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The streaming codec of view node should read and write the same json as the reflective binding of ObjectMapper.
+ *
+ * @author Kenny
+ * created on 2019/5/29
+ */
+public class ViewNodeCodecTest {
+
+    @Test
+    public void testReadHierarchyParity() throws Exception {
+        String hierarchy = ViewNodeCodecBenchmark.buildHierarchy(600);
+        HierarchyDiff expected = StringUtil.json2Object(hierarchy, HierarchyDiff.class);
+        HierarchyDiff actual = ViewNodeCodec.readHierarchyDiff(hierarchy);
+        assertEquals(600, actual.getOperations().size());
+        assertSameJson(expected, actual);
+    }
+
+    @Test
+    public void testReadEdgeCaseParity() throws Exception {
+        String hierarchy = "{\"b\":3,\"v\":4,\"f\":false,\"ops\":["
+                + "{\"o\":\"a\",\"id\":1,\"p\":-1,\"n\":{\"t\":\"\\u6D4B\\u8BD5 \\\"quoted\\\"\\n\",\"iv\":true}},"
+                + "{\"o\":\"a\",\"id\":2,\"p\":1,\"i\":0,\"n\":{\"cn\":\"android.view.View\",\"b\":null}},"
+                + "{\"o\":\"u\",\"id\":2,\"n\":{\"ica\":true,\"b\":{\"l\":-1,\"t\":0,\"r\":2147483647,\"b\":5}}},"
+                + "{\"o\":\"r\",\"id\":1,\"n\":null}]}";
+        assertSameJson(StringUtil.json2Object(hierarchy, HierarchyDiff.class),
+                ViewNodeCodec.readHierarchyDiff(hierarchy));
+
+        String empty = "{\"b\":0,\"v\":1,\"f\":true,\"ops\":null}";
+        assertSameJson(StringUtil.json2Object(empty, HierarchyDiff.class), ViewNodeCodec.readHierarchyDiff(empty));
+    }
+
+    @Test
+    public void testUnknownFieldsSkipped() throws Exception {
+        String node = "{\"t\":\"ok\",\"x\":{\"y\":[1,{\"z\":2}]},\"ica\":true,\"w\":[],\"b\":{\"l\":1,\"q\":3,\"r\":2}}";
+        String known = "{\"t\":\"ok\",\"ica\":true,\"b\":{\"l\":1,\"r\":2}}";
+        assertSameJson(StringUtil.json2Object(known, ViewNode.class), ViewNodeCodec.readViewNode(node));
+    }
+
+    @Test
+    public void testWriteParity() throws Exception {
+        HierarchyDiff diff = StringUtil.json2Object(ViewNodeCodecBenchmark.buildHierarchy(600), HierarchyDiff.class);
+        List<ViewNode> nodeList = new ArrayList<>();
+        for (HierarchyDiff.Operation operation : diff.getOperations()) {
+            nodeList.add(operation.getNode());
+        }
+        ViewNode special = new ViewNode();
+        special.setText("\u6D4B\u8BD5 \"quoted\" \\ \n\t");
+        special.setPassword(true);
+        nodeList.add(special);
+        nodeList.add(new ViewNode());
+
+        for (ViewNode node : nodeList) {
+            String json = ViewNodeCodec.toJSONString(node);
+            assertEquals(readTree(StringUtil.toJSONString(node)), readTree(json));
+            //round trip
+            assertSameJson(node, ViewNodeCodec.readViewNode(json));
+            assertSameJson(node, StringUtil.json2Object(json, ViewNode.class));
+        }
+    }
+
+    @Test
+    public void testNullAndMalformed() {
+        assertNull(ViewNodeCodec.readViewNode((String) null));
+        assertNull(ViewNodeCodec.readViewNode("null"));
+        assertNull(ViewNodeCodec.readHierarchyDiff((String) null));
+        try {
+            ViewNodeCodec.readViewNode("[1]");
+            fail("The array is accepted as view node");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            ViewNodeCodec.readHierarchyDiff("{\"ops\":[{\"o\":\"a\",");
+            fail("The truncated hierarchy is accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    /**
+     * The objects are compared by their json trees of reflective binding, the order of fields is ignored.
+     */
+    private static void assertSameJson(Object expected, Object actual) throws IOException {
+        assertEquals(readTree(StringUtil.toJSONString(expected)), readTree(StringUtil.toJSONString(actual)));
+    }
+
+    private static JsonNode readTree(String json) throws IOException {
+        return StringUtil.JSON_MAPPER_NOTNULL.readTree(json);
+    }
+}